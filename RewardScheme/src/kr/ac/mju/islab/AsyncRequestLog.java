@@ -0,0 +1,135 @@
+package kr.ac.mju.islab;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import kr.ac.mju.islab.RewardProto.RewardPacket;
+
+/**
+ * AsyncRequestLog writes a sample of requests to a java.util.logging Logger, off the request thread.
+ * <p>
+ * At INFO, one in sampleRate requests is logged with its pid, request ID, size, and processing time.
+ * At FINE, the fields of the sampled requests are logged as well.
+ * Below INFO, nothing is done but the level check.
+ * <p>
+ * Sampled requests are queued and formatted by a daemon thread.
+ * If the queue is full, the request is not logged, and counted as dropped instead.
+ */
+public class AsyncRequestLog implements RequestLog, Closeable {
+	public static final int DEFAULT_SAMPLE_RATE = 100;
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+	private static AsyncRequestLog defaultLog;
+
+	private final Logger logger;
+	private volatile int sampleRate;
+	private final BlockingQueue<Entry> queue;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread writer;
+
+	/**
+	 * Returns the log shared by RewardServers, which writes to the logger named after RewardServer.
+	 *
+	 * @return the shared log
+	 */
+	public static synchronized AsyncRequestLog getDefault() {
+		if (defaultLog == null) {
+			defaultLog = new AsyncRequestLog(Logger.getLogger(RewardServer.class.getName()), DEFAULT_SAMPLE_RATE, DEFAULT_QUEUE_CAPACITY);
+		}
+		return defaultLog;
+	}
+
+	/**
+	 * Class constructor specifying the logger, the sample rate, and the number of requests which may wait to be logged.
+	 *
+	 * @param logger the logger to write to
+	 * @param sampleRate log one in sampleRate requests, or every request if 1
+	 * @param queueCapacity the maximum number of requests waiting to be logged
+	 */
+	public AsyncRequestLog(Logger logger, int sampleRate, int queueCapacity) {
+		this.logger = logger;
+		setSampleRate(sampleRate);
+		this.queue = new ArrayBlockingQueue<Entry>(queueCapacity);
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						write(queue.take());
+					}
+				} catch (InterruptedException e) { }
+			}
+		}, "AsyncRequestLog");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Sets the sample rate.
+	 *
+	 * @param sampleRate log one in sampleRate requests, or every request if 1
+	 */
+	public void setSampleRate(int sampleRate) {
+		if (sampleRate < 1) {
+			throw new IllegalArgumentException("Invalid sample rate: " + sampleRate);
+		}
+		this.sampleRate = sampleRate;
+	}
+
+	@Override
+	public void log(RewardPacket recvPacket, RewardPacket sendPacket, long elapsedNanos) {
+		if (logger.isLoggable(Level.INFO) == false) {
+			return;
+		}
+		if (count.getAndIncrement() % sampleRate != 0) {
+			return;
+		}
+		if (queue.offer(new Entry(recvPacket, sendPacket, elapsedNanos)) == false) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the number of sampled requests not logged as the queue was full.
+	 *
+	 * @return the number of dropped requests
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Stops the thread which writes to the logger. Requests still queued are not logged.
+	 */
+	@Override
+	public void close() {
+		writer.interrupt();
+	}
+
+	private void write(Entry entry) {
+		logger.info("Recv Packet ID: " + entry.recvPacket.getPid()
+				+ ", Request ID: " + entry.recvPacket.getRid()
+				+ ", Length: " + entry.recvPacket.getSerializedSize()
+				+ ", Send Packet ID: " + entry.sendPacket.getPid()
+				+ ", Elapsed: " + entry.elapsedNanos / 1000 + " us");
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Packet Contents: " + entry.recvPacket.getAllFields());
+		}
+	}
+
+	private static final class Entry {
+		final RewardPacket recvPacket;
+		final RewardPacket sendPacket;
+		final long elapsedNanos;
+
+		Entry(RewardPacket recvPacket, RewardPacket sendPacket, long elapsedNanos) {
+			this.recvPacket = recvPacket;
+			this.sendPacket = sendPacket;
+			this.elapsedNanos = elapsedNanos;
+		}
+	}
+}
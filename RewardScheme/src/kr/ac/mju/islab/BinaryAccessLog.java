@@ -0,0 +1,151 @@
+package kr.ac.mju.islab;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import kr.ac.mju.islab.RewardProto.RewardPacket;
+
+/**
+ * BinaryAccessLog appends a fixed-size binary record of every request to a stream, for audit.
+ * <p>
+ * Each record is RECORD_SIZE bytes, big-endian: <br>
+ * long time (ms since the epoch), long request ID, long elapsed (ns),
+ * int request pid, int request length, int response pid, byte isValid of the response.
+ * <p>
+ * Records are queued and written by a daemon thread, which flushes whenever the queue runs empty.
+ * If the queue is full, the record is counted as dropped instead.
+ * <p>
+ * If the stream fails, the failure is logged to the logger named after BinaryAccessLog,
+ * and kept for getFailure and close. Records logged afterwards are counted as dropped.
+ * RewardServer does nothing for the access log unless one is set.
+ */
+public class BinaryAccessLog implements RequestLog, Closeable {
+	public static final int RECORD_SIZE = 37;
+	public static final int DEFAULT_QUEUE_CAPACITY = 65536;
+
+	private final OutputStream out;
+	private final BlockingQueue<ByteBuffer> queue;
+	private final AtomicLong dropped = new AtomicLong();
+	private final Thread writer;
+	private volatile IOException failure;
+
+	/**
+	 * Class constructor specifying the file to append to.
+	 *
+	 * @param file the file of the access log
+	 * @throws IOException Signals that an I/O exception of some sort has occurred
+	 */
+	public BinaryAccessLog(File file) throws IOException {
+		this(new FileOutputStream(file, true), DEFAULT_QUEUE_CAPACITY);
+	}
+	/**
+	 * Class constructor specifying the stream to write to, and the number of records which may wait to be written.
+	 *
+	 * @param out the stream to write to, which is closed with the log
+	 * @param queueCapacity the maximum number of records waiting to be written
+	 */
+	public BinaryAccessLog(OutputStream out, int queueCapacity) {
+		this.out = new BufferedOutputStream(out, 65536);
+		this.queue = new ArrayBlockingQueue<ByteBuffer>(queueCapacity);
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						write(queue.take());
+						if (queue.isEmpty()) {
+							BinaryAccessLog.this.out.flush();
+						}
+					}
+				} catch (InterruptedException e) {
+				} catch (IOException e) {
+					Logger.getLogger(BinaryAccessLog.class.getName()).log(Level.SEVERE, "Failed to write the access log", e);
+					dropped.addAndGet(queue.size() + 1);	// The record being written, too.
+					queue.clear();
+					failure = e;
+				}
+			}
+		}, "BinaryAccessLog");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	@Override
+	public void log(RewardPacket recvPacket, RewardPacket sendPacket, long elapsedNanos) {
+		if (failure != null) {
+			dropped.incrementAndGet();
+			return;
+		}
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		record.putLong(System.currentTimeMillis())
+				.putLong(recvPacket.getRid())
+				.putLong(elapsedNanos)
+				.putInt(recvPacket.getPid())
+				.putInt(recvPacket.getSerializedSize())
+				.putInt(sendPacket.getPid())
+				.put((byte) (sendPacket.getIsValid() ? 1 : 0));
+		if (queue.offer(record) == false) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the number of records not written as the queue was full, or the stream had failed.
+	 *
+	 * @return the number of dropped records
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the failure of the stream, after which records are no longer written.
+	 *
+	 * @return the failure, or null if the stream has not failed
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Writes the queued records, and closes the stream.
+	 *
+	 * @throws IOException Signals that an I/O exception of some sort has occurred, including an earlier failure of the stream
+	 */
+	@Override
+	public void close() throws IOException {
+		writer.interrupt();
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (failure != null) {
+			dropped.addAndGet(queue.size());
+			queue.clear();
+			try {
+				out.close();
+			} catch (IOException e) { }
+			throw new IOException("Failed to write the access log", failure);
+		}
+		ByteBuffer record;
+		while ((record = queue.poll()) != null) {
+			write(record);
+		}
+		out.close();
+	}
+
+	private void write(ByteBuffer record) throws IOException {
+		out.write(record.array());
+	}
+}
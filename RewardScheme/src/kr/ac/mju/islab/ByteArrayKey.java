@@ -0,0 +1,34 @@
+package kr.ac.mju.islab;
+
+import java.util.Arrays;
+
+/*
+ * ByteArrayKey wraps byte[] so that it can be used as a key of hash based collections.
+ * The wrapped array must not be modified afterwards.
+ */
+final class ByteArrayKey {
+	final byte[] bytes;
+	private final int hash;
+
+	ByteArrayKey(byte[] bytes) {
+		this.bytes = bytes;
+		this.hash = Arrays.hashCode(bytes);
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj instanceof ByteArrayKey == false) {
+			return false;
+		}
+		ByteArrayKey other = (ByteArrayKey) obj;
+		return hash == other.hash && Arrays.equals(bytes, other.bytes);
+	}
+}
@@ -0,0 +1,146 @@
+package kr.ac.mju.islab;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ByteBufferPool recycles direct ByteBuffers for outgoing packets, so that
+ * a response does not leave garbage behind once it is written.
+ * <p>
+ * Buffers come in power-of-two size classes from MIN_BUFFER_SIZE up to maxPooledSize.
+ * Each class keeps at most maxBuffersPerClass free buffers.
+ * Larger requests get an unpooled heap buffer, which release ignores.
+ * <p>
+ * Usage: <br>
+ * ByteBuffer buf = pool.acquire(size); <br>
+ * ... write buf to a channel ... <br>
+ * pool.release(buf);
+ */
+public class ByteBufferPool {
+	public static final int MIN_BUFFER_SIZE = 256;
+	public static final int DEFAULT_MAX_POOLED_SIZE = 1 << 20;
+	public static final int DEFAULT_MAX_BUFFERS_PER_CLASS = 64;
+	private static ByteBufferPool defaultPool;
+
+	private final int maxPooledSize;
+	private final int maxBuffersPerClass;
+	private final List<Queue<ByteBuffer>> free;
+	private final AtomicInteger[] freeCount;
+	private final AtomicLong allocations = new AtomicLong();
+	private final AtomicLong reuses = new AtomicLong();
+
+	/**
+	 * Returns the pool shared by clients.
+	 *
+	 * @return the shared pool
+	 */
+	public static synchronized ByteBufferPool getDefault() {
+		if (defaultPool == null) {
+			defaultPool = new ByteBufferPool();
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * Class constructor - default set to DEFAULT_MAX_POOLED_SIZE and DEFAULT_MAX_BUFFERS_PER_CLASS.
+	 */
+	public ByteBufferPool() {
+		this(DEFAULT_MAX_POOLED_SIZE, DEFAULT_MAX_BUFFERS_PER_CLASS);
+	}
+	/**
+	 * Class constructor specifying the largest pooled buffer and the number of free buffers kept.
+	 *
+	 * @param maxPooledSize the size of the largest pooled buffer in bytes
+	 * @param maxBuffersPerClass the maximum number of free buffers kept for each size class
+	 */
+	public ByteBufferPool(int maxPooledSize, int maxBuffersPerClass) {
+		if (maxPooledSize < MIN_BUFFER_SIZE || maxBuffersPerClass < 0) {
+			throw new IllegalArgumentException("Invalid pool size: " + maxPooledSize + " bytes, " + maxBuffersPerClass + " buffers");
+		}
+		this.maxPooledSize = maxPooledSize;
+		this.maxBuffersPerClass = maxBuffersPerClass;
+		int numClasses = classOf(maxPooledSize) + 1;
+		this.free = new ArrayList<Queue<ByteBuffer>>(numClasses);
+		this.freeCount = new AtomicInteger[numClasses];
+		for (int i = 0; i < numClasses; i++) {
+			free.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			freeCount[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Returns a cleared buffer with room for at least size bytes.
+	 *
+	 * @param size the number of bytes needed
+	 * @return the buffer, direct unless size is larger than the largest pooled buffer
+	 */
+	public ByteBuffer acquire(int size) {
+		if (size > maxPooledSize) {
+			allocations.incrementAndGet();
+			return ByteBuffer.allocate(size);
+		}
+		int c = classOf(size);
+		ByteBuffer buf = free.get(c).poll();
+		if (buf == null) {
+			allocations.incrementAndGet();
+			return ByteBuffer.allocateDirect(MIN_BUFFER_SIZE << c);
+		}
+		freeCount[c].decrementAndGet();
+		reuses.incrementAndGet();
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer from acquire to the pool. The buffer must not be used afterwards.
+	 *
+	 * @param buf the buffer
+	 */
+	public void release(ByteBuffer buf) {
+		if (buf.isDirect() == false || buf.capacity() > maxPooledSize) {
+			return;
+		}
+		int c = classOf(buf.capacity());
+		if ((MIN_BUFFER_SIZE << c) != buf.capacity()) {	// Not from this pool
+			return;
+		}
+		if (freeCount[c].incrementAndGet() > maxBuffersPerClass) {
+			freeCount[c].decrementAndGet();
+			return;
+		}
+		free.get(c).offer(buf);
+	}
+
+	/**
+	 * Returns the number of buffers allocated, pooled or not.
+	 *
+	 * @return the number of allocations
+	 */
+	public long getAllocationCount() {
+		return allocations.get();
+	}
+
+	/**
+	 * Returns the number of buffers handed out again after release.
+	 *
+	 * @return the number of reuses
+	 */
+	public long getReuseCount() {
+		return reuses.get();
+	}
+
+	/*
+	 * Index of the smallest size class which holds size bytes.
+	 */
+	private static int classOf(int size) {
+		if (size <= MIN_BUFFER_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros((size - 1) / MIN_BUFFER_SIZE);
+	}
+}
@@ -0,0 +1,45 @@
+package kr.ac.mju.islab;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ConcurrentSpentSerialStore is the default, heap-based SpentSerialStore.
+ * <p>
+ * Serial numbers are kept in a ConcurrentHashMap, so that lookups are O(1) and 
+ * concurrent verifications only contend on the same hash bin.
+ */
+public class ConcurrentSpentSerialStore implements SpentSerialStore {
+	private final Set<ByteArrayKey> serials;
+
+	/**
+	 * Class constructor - default set to ConcurrentHashMap defaults.
+	 */
+	public ConcurrentSpentSerialStore() {
+		this(16);
+	}
+	/**
+	 * Class constructor specifying the expected number of serial numbers.
+	 * 
+	 * @param initialCapacity the expected number of serial numbers
+	 */
+	public ConcurrentSpentSerialStore(int initialCapacity) {
+		serials = Collections.newSetFromMap(new ConcurrentHashMap<ByteArrayKey, Boolean>(initialCapacity));
+	}
+
+	@Override
+	public boolean contains(byte[] s) {
+		return serials.contains(new ByteArrayKey(s));
+	}
+
+	@Override
+	public boolean addIfAbsent(byte[] s) {
+		return serials.add(new ByteArrayKey(s.clone()));
+	}
+
+	@Override
+	public long size() {
+		return serials.size();
+	}
+}
@@ -0,0 +1,226 @@
+package kr.ac.mju.islab;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import it.unisa.dia.gas.jpbc.Element;
+
+/**
+ * ElementCache is a bounded, thread-safe LRU cache of immutable elements keyed on bytes,
+ * e.g. H(s) keyed on s.toBytes().
+ * <p>
+ * The cache is bounded by the estimated memory of its entries rather than their number,
+ * so that elements of larger curves take proportionally more room.
+ * Entries are spread over segments, each an access-ordered LinkedHashMap with its own lock
+ * and an equal share of the bound, so that concurrent lookups rarely contend.
+ */
+public class ElementCache {
+	/*
+	 * Rough heap cost of an entry besides the key and element bytes:
+	 * map entry, key wrapper, and the element objects with their BigIntegers.
+	 */
+	private static final int ENTRY_OVERHEAD = 256;
+	private static final int DEFAULT_SEGMENTS = 16;
+
+	private final Segment[] segments;
+	private final long maxBytes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Class constructor specifying the maximum estimated memory of entries.
+	 *
+	 * @param maxBytes the maximum estimated memory of entries in bytes
+	 */
+	public ElementCache(long maxBytes) {
+		this(maxBytes, DEFAULT_SEGMENTS);
+	}
+	/**
+	 * Class constructor specifying the maximum estimated memory of entries and
+	 * the number of segments.
+	 *
+	 * @param maxBytes the maximum estimated memory of entries in bytes
+	 * @param numSegments the number of independently locked segments
+	 */
+	public ElementCache(long maxBytes, int numSegments) {
+		if (maxBytes < 0 || numSegments < 1) {
+			throw new IllegalArgumentException("Invalid cache size: " + maxBytes + " bytes, " + numSegments + " segments");
+		}
+		this.maxBytes = maxBytes;
+		this.segments = new Segment[numSegments];
+		for (int i = 0; i < numSegments; i++) {
+			segments[i] = new Segment(maxBytes / numSegments);
+		}
+	}
+
+	/**
+	 * Returns the element cached for the key, or null.
+	 *
+	 * @param key the key
+	 * @return the immutable element, or null if not cached
+	 */
+	public Element get(byte[] key) {
+		ByteArrayKey k = new ByteArrayKey(key);
+		Element value = segmentFor(k).get(k);
+		if (value == null) {
+			misses.incrementAndGet();
+		}
+		else {
+			hits.incrementAndGet();
+		}
+		return value;
+	}
+
+	/**
+	 * Caches the element for the key, evicting the least recently used entries if needed.
+	 *
+	 * @param key the key, which must not be modified afterwards
+	 * @param value the element, which is cached as immutable
+	 * @return the immutable element cached
+	 */
+	public Element put(byte[] key, Element value) {
+		Element immutable = value.isImmutable() ? value : value.getImmutable();
+		ByteArrayKey k = new ByteArrayKey(key);
+		segmentFor(k).put(k, immutable, key.length + immutable.getLengthInBytes() + ENTRY_OVERHEAD);
+		return immutable;
+	}
+
+	/**
+	 * Removes every entry. Counters are kept.
+	 */
+	public void clear() {
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+	}
+
+	/**
+	 * Returns the number of entries.
+	 *
+	 * @return the number of entries
+	 */
+	public long size() {
+		long size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the estimated memory of entries in bytes.
+	 *
+	 * @return the estimated memory of entries in bytes
+	 */
+	public long getBytes() {
+		long bytes = 0;
+		for (Segment segment : segments) {
+			bytes += segment.bytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the maximum estimated memory of entries in bytes.
+	 *
+	 * @return the maximum estimated memory of entries in bytes
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Returns the number of lookups which found an entry.
+	 *
+	 * @return the number of hits
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups which found no entry.
+	 *
+	 * @return the number of misses
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of entries evicted to stay within the bound.
+	 *
+	 * @return the number of evictions
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	private Segment segmentFor(ByteArrayKey key) {
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		return segments[(h & 0x7fffffff) % segments.length];
+	}
+
+	/*
+	 * LRU segment. Values and their weights are kept side by side.
+	 */
+	private final class Segment {
+		private final long maxBytes;
+		private final LinkedHashMap<ByteArrayKey, Entry> map = new LinkedHashMap<ByteArrayKey, Entry>(16, 0.75f, true);
+		private long bytes;
+
+		Segment(long maxBytes) {
+			this.maxBytes = maxBytes;
+		}
+
+		synchronized Element get(ByteArrayKey key) {
+			Entry entry = map.get(key);
+			return entry == null ? null : entry.value;
+		}
+
+		synchronized void put(ByteArrayKey key, Element value, int weight) {
+			if (weight > maxBytes) {
+				return;
+			}
+			Entry old = map.put(key, new Entry(value, weight));
+			if (old != null) {
+				bytes -= old.weight;
+			}
+			bytes += weight;
+
+			Iterator<Map.Entry<ByteArrayKey, Entry>> it = map.entrySet().iterator();
+			while (bytes > maxBytes && it.hasNext()) {
+				bytes -= it.next().getValue().weight;
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+
+		synchronized void clear() {
+			map.clear();
+			bytes = 0;
+		}
+
+		synchronized int size() {
+			return map.size();
+		}
+
+		synchronized long bytes() {
+			return bytes;
+		}
+	}
+
+	private static final class Entry {
+		final Element value;
+		final int weight;
+
+		Entry(Element value, int weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+}
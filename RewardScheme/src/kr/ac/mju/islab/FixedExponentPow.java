@@ -0,0 +1,177 @@
+package kr.ac.mju.islab;
+
+import java.math.BigInteger;
+
+import it.unisa.dia.gas.jpbc.Element;
+
+/**
+ * FixedExponentPow raises many bases to one fixed exponent, e.g. h^x of the master's secret x.
+ * <p>
+ * The exponent is recoded once into a regular signed-digit form, a wNAF variant in which
+ * every digit is odd and non-zero, |d| &lt; 2^w, and the number of digits depends only on
+ * the bit length given, not on the exponent. An even exponent e is recoded as e + 1, and the
+ * result multiplied by base^-1; an odd one is multiplied by one instead.
+ * Each exponentiation then only builds the odd powers of its base and their inverses,
+ * which are cheap on elliptic curves, and walks the digits with w squarings and one
+ * multiplication per digit.
+ * <p>
+ * As the exponent is usually a signing key, the sequence of group operations is the same
+ * for every exponent of the bit length, and the table is scanned in full for each digit,
+ * so that neither the operations nor the table entries read reveal the digits.
+ * This does not make the field arithmetic underneath constant-time.
+ * <p>
+ * Points of curves over a prime field are exponentiated in Jacobian coordinates with JacobianCurve,
+ * and other elements with their own multiplication.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+public class FixedExponentPow {
+	public static final int DEFAULT_WINDOW_SIZE = 4;
+
+	private final BigInteger exponent;
+	private final int windowSize;
+	private final byte[] digits;	// Table indices of the digits of the exponent, least significant first.
+	private final int correction;	// 1 if the exponent is even, and the result is multiplied by base^-1.
+
+	/**
+	 * Class constructor specifying the exponent - default set to DEFAULT_WINDOW_SIZE,
+	 * and the bit length of the exponent.
+	 *
+	 * @param exponent the non-negative exponent
+	 */
+	public FixedExponentPow(BigInteger exponent) {
+		this(exponent, DEFAULT_WINDOW_SIZE);
+	}
+	/**
+	 * Class constructor specifying the exponent and the window size, with the bit length of the exponent.
+	 *
+	 * @param exponent the non-negative exponent
+	 * @param windowSize the window size w, from 2 to 7
+	 */
+	public FixedExponentPow(BigInteger exponent, int windowSize) {
+		this(exponent, windowSize, exponent.bitLength());
+	}
+	/**
+	 * Class constructor specifying the exponent, the window size, and the bit length of exponents,
+	 * e.g. that of the group order, so that every exponent costs the same.
+	 * A base needs 2^(w-1) odd powers, and an exponentiation about bits / w multiplications.
+	 *
+	 * @param exponent the non-negative exponent
+	 * @param windowSize the window size w, from 2 to 7
+	 * @param bitLength the bit length of exponents, at least that of exponent
+	 */
+	public FixedExponentPow(BigInteger exponent, int windowSize, int bitLength) {
+		if (exponent.signum() < 0 || windowSize < 2 || windowSize > 7 || exponent.bitLength() > bitLength) {
+			throw new IllegalArgumentException("Invalid exponent, window size, or bit length: " + windowSize + ", " + bitLength);
+		}
+		this.exponent = exponent;
+		this.windowSize = windowSize;
+		this.correction = exponent.testBit(0) ? 0 : 1;
+		this.digits = recode(exponent.add(BigInteger.valueOf(correction)), windowSize, bitLength + 1);
+	}
+
+	/**
+	 * Returns the exponent.
+	 *
+	 * @return the exponent
+	 */
+	public BigInteger getExponent() {
+		return exponent;
+	}
+
+	/**
+	 * Returns base raised to the exponent. base is left unchanged.
+	 *
+	 * @param base the base
+	 * @return a new element, base^exponent
+	 */
+	public Element pow(Element base) {
+		JacobianCurve curve = JacobianCurve.getInstance(base.getField());
+		if (curve != null && base.isZero() == false) {
+			long[][][] odd = curve.oddMultiples(base, 1 << (windowSize - 1));
+			if (odd != null) {
+				return pow(curve, odd);
+			}
+		}
+		
+		// table[i] = base^(2i - (2^w - 1)): base^-(2^w - 1), ..., base^-1, base, base^3, ..., base^(2^w - 1).
+		int half = 1 << (windowSize - 1);
+		Element[] table = new Element[2 * half];
+		table[half] = base.duplicate();
+		Element square = base.duplicate().square();
+		for (int i = half + 1; i < table.length; i++) {
+			table[i] = table[i - 1].duplicate().mul(square);
+		}
+		for (int i = 0; i < half; i++) {
+			table[half - 1 - i] = table[half + i].duplicate().invert();
+		}
+		Element[] corrections = new Element[] {base.getField().newOneElement(), table[half - 1]};
+
+		Element result = select(table, digits[digits.length - 1]).duplicate();
+		for (int i = digits.length - 2; i >= 0; i--) {
+			for (int j = 0; j < windowSize; j++) {
+				result.square();
+			}
+			result.mul(select(table, digits[i]));
+		}
+		return result.mul(select(corrections, correction));
+	}
+
+	/*
+	 * The same as above in Jacobian coordinates, with odd, the affine odd powers of the base.
+	 */
+	private Element pow(JacobianCurve curve, long[][][] odd) {
+		int half = odd.length;
+		long[][][] table = new long[2 * half][][];
+		for (int i = 0; i < half; i++) {
+			table[half + i] = odd[i];
+			table[half - 1 - i] = curve.negate(odd[i]);
+		}
+
+		long[][] top = select(table, digits[digits.length - 1]);
+		long[][] result = curve.infinity();
+		curve.add(result, top[0], top[1]);
+		for (int i = digits.length - 2; i >= 0; i--) {
+			for (int j = 0; j < windowSize; j++) {
+				curve.twice(result);
+			}
+			long[][] d = select(table, digits[i]);
+			curve.add(result, d[0], d[1]);
+		}
+		long[][] corrected = curve.copy(result);
+		curve.add(corrected, table[half - 1][0], table[half - 1][1]);
+		return curve.toElement(select(new long[][][] {result, corrected}, correction));
+	}
+
+	/*
+	 * Returns table[index], reading every entry.
+	 */
+	private static <T> T select(T[] table, int index) {
+		T selected = table[0];
+		for (int i = 1; i < table.length; i++) {
+			selected = i == index ? table[i] : selected;
+		}
+		return selected;
+	}
+
+	/*
+	 * Regular recoding of the odd k into ceil(bits / w) odd digits d_i, |d_i| < 2^w,
+	 * returned as table indices (d_i + 2^w - 1) / 2, least significant first.
+	 * Each step takes d = (k mod 2^(w+1)) - 2^w, which leaves (k - d) / 2^w odd.
+	 */
+	static byte[] recode(BigInteger k, int w, int bits) {
+		int length = (bits + w - 1) / w;
+		byte[] digits = new byte[length];
+		int modulus = 1 << w;
+		for (int i = 0; i < length - 1; i++) {
+			int d = (k.intValue() & (2 * modulus - 1)) - modulus;
+			digits[i] = (byte) ((d + modulus - 1) >> 1);
+			k = k.subtract(BigInteger.valueOf(d)).shiftRight(w);
+		}
+		if (k.signum() <= 0 || k.bitLength() > w) {	// Never, if k has at most bits bits.
+			throw new IllegalStateException("Exponent out of range");
+		}
+		digits[length - 1] = (byte) ((k.intValue() + modulus - 1) >> 1);
+		return digits;
+	}
+}
@@ -0,0 +1,200 @@
+package kr.ac.mju.islab;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+/**
+ * FrameDecoder splits a byte stream into frames, each prefixed by its length in 4 bytes,
+ * which is how RewardServer and its clients send RewardPackets.
+ * <p>
+ * Frames may arrive in any number of reads, and a read may hold several frames.
+ * The receive buffer grows for a large frame, e.g. an aggregate of many receipts,
+ * and shrinks back once the frame is consumed, so that idle connections hold little memory.
+ * Frames larger than maxFrameSize are rejected.
+ * <p>
+ * Usage with an asynchronous channel: <br>
+ * channel.read(decoder.buffer(), ...); <br>
+ * and on completion: <br>
+ * while ((frame = decoder.poll()) != null) { ... }
+ * <p>
+ * pollBuffer returns a frame as a view of the receive buffer instead of a copy,
+ * e.g. to parse it with CodedInputStream directly.
+ */
+public class FrameDecoder {
+	public static final int DEFAULT_MAX_FRAME_SIZE = 16 << 20;
+	private static final int INITIAL_CAPACITY = 32768;	// Capable of dealing with #100 aggregated receipt
+
+	private final int maxFrameSize;
+	private ByteBuffer buf = ByteBuffer.allocate(INITIAL_CAPACITY);	// In write mode between calls, unless a frame view is out.
+	private boolean viewOut;	// buf is in read mode, past the frame returned by pollBuffer.
+
+	/**
+	 * Class constructor - default set to DEFAULT_MAX_FRAME_SIZE.
+	 */
+	public FrameDecoder() {
+		this(DEFAULT_MAX_FRAME_SIZE);
+	}
+	/**
+	 * Class constructor specifying the maximum frame size.
+	 *
+	 * @param maxFrameSize the maximum length of a frame in bytes, excluding the length prefix
+	 */
+	public FrameDecoder(int maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+	}
+
+	/**
+	 * Returns the buffer to read into. It has room for the rest of the current frame.
+	 * The buffer may change after poll, so get it again for each read.
+	 *
+	 * @return the buffer to read into
+	 */
+	public ByteBuffer buffer() {
+		releaseView();
+		return buf;
+	}
+
+	/**
+	 * Returns the next complete frame read so far, without its length prefix.
+	 *
+	 * @return the frame, or null if no frame is complete yet
+	 * @throws IOException if the frame is longer than the maximum frame size
+	 */
+	public byte[] poll() throws IOException {
+		ByteBuffer view = pollBuffer();
+		if (view == null) {
+			return null;
+		}
+		byte[] frame = new byte[view.remaining()];
+		view.get(frame);
+		return frame;
+	}
+
+	/**
+	 * Returns the next complete frame read so far, without its length prefix, as a view of the receive buffer.
+	 * The view is valid until the next call of poll, pollBuffer, buffer, or readFrame.
+	 *
+	 * @return the view of the frame, or null if no frame is complete yet
+	 * @throws IOException if the frame is longer than the maximum frame size
+	 */
+	public ByteBuffer pollBuffer() throws IOException {
+		releaseView();
+		buf.flip();
+		if (buf.remaining() < 4) {
+			buf.compact();
+			return null;
+		}
+
+		int frameLen = buf.getInt(buf.position());
+		if (frameLen < 0 || frameLen > maxFrameSize) {
+			buf.clear();
+			throw new IOException("Frame size " + frameLen + " exceeds the limit " + maxFrameSize);
+		}
+		if (buf.remaining() - 4 < frameLen) {
+			ensureCapacity(4 + frameLen);
+			return null;
+		}
+
+		int start = buf.position() + 4;
+		ByteBuffer view = buf.duplicate();
+		view.position(start);
+		view.limit(start + frameLen);
+		buf.position(start + frameLen);
+		viewOut = true;
+		return view.slice();
+	}
+
+	/**
+	 * Reads from a blocking channel until a frame is complete, and returns the frame.
+	 *
+	 * @param channel the blocking channel to read from
+	 * @return the frame, without its length prefix
+	 * @throws IOException if the channel is closed before a frame is complete, or the frame is too large
+	 */
+	public byte[] readFrame(ReadableByteChannel channel) throws IOException {
+		byte[] frame;
+		while ((frame = poll()) == null) {
+			if (channel.read(buf) < 0) {
+				throw new EOFException("Connection closed in the middle of a frame");
+			}
+		}
+		return frame;
+	}
+
+	/**
+	 * Returns the frame of a body, prefixed by its length, ready to be written.
+	 *
+	 * @param body the body of the frame
+	 * @return the buffer which holds the frame
+	 */
+	public static ByteBuffer encode(byte[] body) {
+		ByteBuffer frame = ByteBuffer.allocate(4 + body.length);
+		frame.putInt(body.length);
+		frame.put(body);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Returns the frame of a message, prefixed by its length, ready to be written.
+	 * The message is serialized once, straight into a buffer of the pool,
+	 * which should be released to the pool once written.
+	 *
+	 * @param message the message, e.g. a RewardPacket
+	 * @param pool the pool to take the buffer from
+	 * @return the buffer which holds the frame
+	 */
+	public static ByteBuffer encode(MessageLite message, ByteBufferPool pool) {
+		int size = message.getSerializedSize();
+		ByteBuffer frame = pool.acquire(4 + size);
+		frame.putInt(size);
+		CodedOutputStream out = CodedOutputStream.newInstance(frame);
+		try {
+			message.writeTo(out);
+			out.flush();
+		} catch (IOException e) {	// Not expected, as the buffer is large enough.
+			pool.release(frame);
+			throw new IllegalStateException("Fail to serialize " + size + " bytes of message", e);
+		}
+		frame.flip();
+		return frame;
+	}
+
+	/*
+	 * Consumes the frame returned by pollBuffer, and puts buf back in write mode.
+	 */
+	private void releaseView() {
+		if (viewOut == false) {
+			return;
+		}
+		viewOut = false;
+		if (buf.hasRemaining() == false && buf.capacity() > INITIAL_CAPACITY) {
+			buf = ByteBuffer.allocate(INITIAL_CAPACITY);	// Release the buffer of a large frame.
+		}
+		else {
+			buf.compact();
+		}
+	}
+
+	/*
+	 * Grows the buffer to hold capacity bytes. buf is in read mode, and is left in write mode.
+	 */
+	private void ensureCapacity(int capacity) {
+		if (capacity <= buf.capacity()) {
+			buf.compact();
+			return;
+		}
+		int newCapacity = buf.capacity();
+		while (newCapacity < capacity) {
+			newCapacity = (int) Math.min((long) newCapacity * 2, (long) maxFrameSize + 4);
+		}
+		ByteBuffer larger = ByteBuffer.allocate(newCapacity);
+		larger.put(buf);
+		buf = larger;
+	}
+}
@@ -0,0 +1,401 @@
+package kr.ac.mju.islab;
+
+import java.lang.reflect.Field;
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.Point;
+import it.unisa.dia.gas.plaf.jpbc.field.curve.CurveField;
+import it.unisa.dia.gas.plaf.jpbc.field.z.ZrField;
+
+/**
+ * JacobianCurve does scalar multiplication on a CurveField over a prime field, y^2 = x^3 + ax + b,
+ * in Jacobian coordinates.
+ * <p>
+ * CurveElement adds points in affine coordinates, paying a modular inversion for every addition
+ * and doubling, i.e. hundreds of inversions per exponentiation. Here a point (X, Y, Z) stands for
+ * the affine point (X/Z^2, Y/Z^3), so that additions and doublings take only multiplications,
+ * and a single inversion normalizes the result back to a CurveElement.
+ * Tables of odd multiples are normalized together with one inversion, so that each addition
+ * is a mixed addition of an affine point.
+ * <p>
+ * Coordinates are values of the MontgomeryField of q, multiplied without BigInteger.
+ * Points are passed as long[][] {X, Y, Z}, with Z = 0 at infinity, and affine points as {x, y}.
+ * twice and add update the coordinates of p in place, so a point of a table should be copied
+ * before it is added to.
+ * Instances are immutable and can be shared between threads.
+ */
+public class JacobianCurve {
+	public static final int DEFAULT_WINDOW_SIZE = 4;
+	private static final ConcurrentHashMap<CurveField<?>, JacobianCurve> instances = new ConcurrentHashMap<CurveField<?>, JacobianCurve>();
+
+	@SuppressWarnings("rawtypes")
+	private final CurveField field;
+	private final MontgomeryField fq;	// Base field
+	private final long[] a;
+	private final BigInteger cofactor;	// null if none
+	private final int coordinateLength;	// Bytes of a coordinate in toBytes
+
+	/**
+	 * Returns the JacobianCurve of field, or null if field is not a curve over a prime field.
+	 *
+	 * @param field the field of points
+	 * @return the JacobianCurve of field, or null
+	 */
+	@SuppressWarnings("rawtypes")
+	public static JacobianCurve getInstance(it.unisa.dia.gas.jpbc.Field field) {
+		if (field instanceof CurveField == false) {
+			return null;
+		}
+		CurveField curveField = (CurveField) field;
+		JacobianCurve curve = instances.get(curveField);
+		if (curve == null) {
+			if (curveField.getA().getField() instanceof ZrField == false || curveField.getQuotientCmp() != null) {
+				return null;
+			}
+			curve = new JacobianCurve(curveField);
+			instances.putIfAbsent(curveField, curve);
+		}
+		return curve;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private JacobianCurve(CurveField field) {
+		this.field = field;
+		this.fq = new MontgomeryField(field.getA().getField().getOrder());
+		this.a = fq.newElement(field.getA().toBigInteger());
+		this.cofactor = cofactorOf(field);
+		this.coordinateLength = field.getA().getField().getLengthInBytes();
+	}
+
+	/*
+	 * The cofactor of CurveField is not exposed, but needed to hash to the subgroup.
+	 */
+	@SuppressWarnings("rawtypes")
+	private static BigInteger cofactorOf(CurveField field) {
+		try {
+			Field cofac = CurveField.class.getDeclaredField("cofac");
+			cofac.setAccessible(true);
+			return (BigInteger) cofac.get(field);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot read the cofactor of the curve", e);
+		}
+	}
+
+	/**
+	 * Returns base^n, i.e. base added n times, with the width-w NAF of n.
+	 * The time taken depends on n, so n should not be secret.
+	 * A base of small order, whose odd multiples include infinity, is left to CurveElement.
+	 *
+	 * @param base the point
+	 * @param n the non-negative exponent
+	 * @return a new element, base^n
+	 */
+	public Element pow(Element base, BigInteger n) {
+		if (base.isZero() || n.signum() == 0) {
+			return field.newElement();	// Infinity
+		}
+		long[][][] table = oddMultiples(base, 1 << (DEFAULT_WINDOW_SIZE - 2));
+		if (table == null) {
+			return base.duplicate().pow(n);
+		}
+		long[][][] negated = new long[table.length][][];
+		for (int i = 0; i < table.length; i++) {
+			negated[i] = negate(table[i]);
+		}
+		byte[] naf = wnaf(n, DEFAULT_WINDOW_SIZE);
+		long[][] p = infinity();
+		for (int i = naf.length - 1; i >= 0; i--) {
+			twice(p);
+			int d = naf[i];
+			if (d > 0) {
+				add(p, table[d >> 1][0], table[d >> 1][1]);
+			}
+			else if (d < 0) {
+				add(p, negated[(-d) >> 1][0], negated[(-d) >> 1][1]);
+			}
+		}
+		return toElement(p);
+	}
+
+	/**
+	 * Returns a new point from the hash, as CurveElement.setFromHash does, with the cofactor
+	 * multiplied in Jacobian coordinates.
+	 *
+	 * @param source the hash
+	 * @param offset the offset of the hash in source
+	 * @param length the length of the hash
+	 * @return a new element of the curve
+	 */
+	public Element newElementFromHash(byte[] source, int offset, int length) {
+		// Lift x to the curve, as CurveElement does.
+		Element x = field.getA().getField().newElement().setFromHash(source, offset, length);
+		Element t = x.getField().newElement();
+		while (true) {
+			t.set(x).square().add(field.getA()).mul(x).add(field.getB());
+			if (t.isSqr()) {
+				break;
+			}
+			x.square().add(t.setToOne());
+		}
+		Element y = t.sqrt();
+		if (y.sign() < 0) {
+			y.negate();
+		}
+		Element point = toElement(x.toBigInteger(), y.toBigInteger());
+		return cofactor == null ? point : pow(point, cofactor);
+	}
+
+	/**
+	 * Returns the affine points base, base^3, ..., base^(2count - 1), normalized with one inversion.
+	 *
+	 * @param base the point, not infinity
+	 * @param count the number of odd multiples
+	 * @return {x, y} of each odd multiple, or null if any is infinity, i.e. base is of small order
+	 */
+	@SuppressWarnings("rawtypes")
+	public long[][][] oddMultiples(Element base, int count) {
+		Point point = (Point) base;
+		long[] x = fq.newElement(point.getX().toBigInteger());
+		long[] y = fq.newElement(point.getY().toBigInteger());
+		long[][][] jacobian = new long[count][][];
+		jacobian[0] = new long[][] {x, y, fq.newOneElement()};
+		if (count > 1) {
+			long[][] square = copy(jacobian[0]);
+			twice(square);
+			if (fq.isZero(square[2])) {
+				return null;
+			}
+			long[][] squareAffine = normalize(new long[][][] {square})[0];
+			for (int i = 1; i < count; i++) {
+				jacobian[i] = copy(jacobian[i - 1]);
+				add(jacobian[i], squareAffine[0], squareAffine[1]);
+				if (fq.isZero(jacobian[i][2])) {
+					return null;
+				}
+			}
+		}
+		return normalize(jacobian);
+	}
+
+	/**
+	 * Returns the inverse of an affine point.
+	 *
+	 * @param affine {x, y} of the point
+	 * @return {x, -y}
+	 */
+	public long[][] negate(long[][] affine) {
+		long[] y = fq.newElement();
+		fq.negate(affine[1], y);
+		return new long[][] {affine[0], y};
+	}
+
+	/**
+	 * Returns the point at infinity.
+	 *
+	 * @return {1, 1, 0}
+	 */
+	public long[][] infinity() {
+		return new long[][] {fq.newOneElement(), fq.newOneElement(), fq.newElement()};
+	}
+
+	/**
+	 * Returns a copy of p.
+	 *
+	 * @param p the point
+	 * @return a new point
+	 */
+	public long[][] copy(long[][] p) {
+		long[][] copy = new long[p.length][];
+		for (int i = 0; i < p.length; i++) {
+			copy[i] = p[i].clone();
+		}
+		return copy;
+	}
+
+	/**
+	 * Returns p as a new element of the curve. p is left unchanged.
+	 *
+	 * @param p the point in Jacobian coordinates
+	 * @return a new element
+	 */
+	public Element toElement(long[][] p) {
+		if (fq.isZero(p[2])) {
+			return field.newElement();	// Infinity
+		}
+		long[][] affine = normalize(new long[][][] {p})[0];
+		return toElement(fq.toBigInteger(affine[0]), fq.toBigInteger(affine[1]));
+	}
+
+	/**
+	 * Sets p to p + p.
+	 *
+	 * @param p the point in Jacobian coordinates
+	 */
+	public void twice(long[][] p) {
+		long[] x = p[0], y = p[1], z = p[2];
+		if (fq.isZero(z) || fq.isZero(y)) {
+			fq.sub(z, z, z);
+			return;
+		}
+		// dbl-2007-bl
+		long[] xx = fq.newElement(), yy = fq.newElement(), yyyy = fq.newElement(), zz = fq.newElement();
+		long[] s = fq.newElement(), m = fq.newElement(), t = fq.newElement(), u = fq.newElement();
+		fq.square(x, xx);
+		fq.square(y, yy);
+		fq.square(yy, yyyy);
+		fq.square(z, zz);
+		fq.add(x, yy, t);
+		fq.square(t, s);	// s = 2((X + YY)^2 - XX - YYYY)
+		fq.sub(s, xx, s);
+		fq.sub(s, yyyy, s);
+		fq.add(s, s, s);
+		fq.add(xx, xx, m);	// m = 3XX + a ZZ^2
+		fq.add(m, xx, m);
+		if (fq.isZero(a) == false) {
+			fq.square(zz, t);
+			fq.mul(a, t, u);
+			fq.add(m, u, m);
+		}
+		fq.add(y, z, t);	// Z3 = (Y + Z)^2 - YY - ZZ, into u
+		fq.square(t, u);
+		fq.sub(u, yy, u);
+		fq.sub(u, zz, u);
+		fq.square(m, x);	// X3 = m^2 - 2s
+		fq.sub(x, s, x);
+		fq.sub(x, s, x);
+		fq.sub(s, x, t);	// Y3 = m(s - X3) - 8YYYY
+		fq.mul(m, t, y);
+		fq.add(yyyy, yyyy, yyyy);
+		fq.add(yyyy, yyyy, yyyy);
+		fq.add(yyyy, yyyy, yyyy);
+		fq.sub(y, yyyy, y);
+		fq.set(u, z);
+	}
+
+	/**
+	 * Sets p to p + (x, y), a mixed addition of an affine point.
+	 *
+	 * @param p the point in Jacobian coordinates
+	 * @param x the x coordinate of the affine point
+	 * @param y the y coordinate of the affine point
+	 */
+	public void add(long[][] p, long[] x, long[] y) {
+		long[] x1 = p[0], y1 = p[1], z1 = p[2];
+		if (fq.isZero(z1)) {
+			fq.set(x, x1);
+			fq.set(y, y1);
+			fq.set(fq.newOneElement(), z1);
+			return;
+		}
+		// madd-2007-bl
+		long[] z1z1 = fq.newElement(), u2 = fq.newElement(), s2 = fq.newElement(), t = fq.newElement();
+		long[] h = fq.newElement(), r = fq.newElement(), hh = fq.newElement(), i = fq.newElement();
+		long[] j = fq.newElement(), v = fq.newElement(), w = fq.newElement();
+		fq.square(z1, z1z1);
+		fq.mul(x, z1z1, u2);
+		fq.mul(y, z1, t);
+		fq.mul(t, z1z1, s2);
+		fq.sub(u2, x1, h);
+		fq.sub(s2, y1, r);
+		fq.add(r, r, r);
+		if (fq.isZero(h)) {
+			if (fq.isZero(r)) {	// Same point
+				twice(p);
+			}
+			else {	// Inverse points
+				fq.sub(z1, z1, z1);
+			}
+			return;
+		}
+		fq.square(h, hh);
+		fq.add(hh, hh, i);	// I = 4HH
+		fq.add(i, i, i);
+		fq.mul(h, i, j);
+		fq.mul(x1, i, v);
+		fq.mul(y1, j, w);	// 2 Y1 J, before Y1 is overwritten
+		fq.add(w, w, w);
+		fq.add(z1, h, t);	// Z3 = (Z1 + H)^2 - Z1Z1 - HH
+		fq.square(t, z1);
+		fq.sub(z1, z1z1, z1);
+		fq.sub(z1, hh, z1);
+		fq.square(r, x1);	// X3 = r^2 - J - 2V
+		fq.sub(x1, j, x1);
+		fq.sub(x1, v, x1);
+		fq.sub(x1, v, x1);
+		fq.sub(v, x1, t);	// Y3 = r(V - X3) - 2 Y1 J
+		fq.mul(r, t, y1);
+		fq.sub(y1, w, y1);
+	}
+
+	/*
+	 * Returns {x, y} of each point, none of which is infinity, with one inversion (Montgomery's trick).
+	 */
+	private long[][][] normalize(long[][][] points) {
+		int n = points.length;
+		long[][] prefix = new long[n][];
+		long[] acc = fq.newOneElement();
+		for (int i = 0; i < n; i++) {
+			prefix[i] = acc;
+			acc = fq.newElement();
+			fq.mul(prefix[i], points[i][2], acc);
+		}
+		long[] inv = fq.newElement();
+		fq.invert(acc, inv);
+		long[][][] affine = new long[n][][];
+		long[] zInv = fq.newElement(), zInv2 = fq.newElement(), t = fq.newElement();
+		for (int i = n - 1; i >= 0; i--) {
+			fq.mul(inv, prefix[i], zInv);
+			fq.mul(inv, points[i][2], t);
+			fq.set(t, inv);
+			fq.square(zInv, zInv2);
+			long[] x = fq.newElement(), y = fq.newElement();
+			fq.mul(points[i][0], zInv2, x);
+			fq.mul(points[i][1], zInv2, t);
+			fq.mul(t, zInv, y);
+			affine[i] = new long[][] {x, y};
+		}
+		return affine;
+	}
+
+	private Element toElement(BigInteger x, BigInteger y) {
+		byte[] bytes = new byte[2 * coordinateLength];
+		writeFixed(x, bytes, 0);
+		writeFixed(y, bytes, coordinateLength);
+		Element e = field.newElement();
+		e.setFromBytes(bytes);
+		return e;
+	}
+
+	private void writeFixed(BigInteger v, byte[] out, int offset) {
+		byte[] bytes = v.toByteArray();
+		int length = Math.min(bytes.length, coordinateLength);	// Drops the sign byte, if any.
+		System.arraycopy(bytes, bytes.length - length, out, offset + coordinateLength - length, length);
+	}
+
+	/*
+	 * Width-w NAF of e, least significant digit first.
+	 */
+	static byte[] wnaf(BigInteger e, int w) {
+		byte[] digits = new byte[e.bitLength() + 1];
+		int modulus = 1 << w;
+		int length = 0;
+		BigInteger k = e;
+		while (k.signum() > 0) {
+			int d = 0;
+			if (k.testBit(0)) {
+				d = k.intValue() & (modulus - 1);
+				if (d >= modulus >> 1) {
+					d -= modulus;
+				}
+				k = k.subtract(BigInteger.valueOf(d));
+			}
+			digits[length++] = (byte) d;
+			k = k.shiftRight(1);
+		}
+		byte[] naf = new byte[length];
+		System.arraycopy(digits, 0, naf, 0, length);
+		return naf;
+	}
+}
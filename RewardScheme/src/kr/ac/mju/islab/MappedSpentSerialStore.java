@@ -0,0 +1,370 @@
+package kr.ac.mju.islab;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * MappedSpentSerialStore is a disk-backed SpentSerialStore, so that
+ * spent serial numbers survive restarts of RewardServer.
+ * <p>
+ * Serial numbers are kept in an open-addressing hash table of fixed-width slots,
+ * which is memory-mapped from a file. Lookups are O(1) and do not touch the heap.
+ * When the table is half full, it is rehashed into a file of double size,
+ * which atomically replaces the old one.
+ * <p>
+ * A slot is written in order of serial bytes first, then its status byte, so that
+ * a crash while adding a serial number never leaves a half-written serial number behind.
+ * The operating system writes the mapped pages back even if the process dies.
+ * Turn syncOnWrite on to force every addition to the storage device as well,
+ * e.g. to survive power failures.
+ * <p>
+ * A mapping is released explicitly when the table is replaced or the store is closed,
+ * as a file cannot be replaced while it is mapped on Windows. If the JVM offers no way to
+ * release it, the mapping is left to the garbage collector, which suffices on POSIX file systems.
+ * <p>
+ * Usage: <br>
+ * new RewardScheme(CurveName.a, HashName.SHA256, new MappedSpentSerialStore("spent.dat", 20));
+ */
+public class MappedSpentSerialStore implements SpentSerialStore, Closeable {
+	private static final int MAGIC = 0x52575353;	// "RWSS"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;	// magic, version, serial width, seed, capacity, reserved
+	private static final long DEFAULT_CAPACITY = 1 << 16;
+
+	private static final byte EMPTY = 0;
+	private static final byte OCCUPIED = 1;
+
+	private final File file;
+	private final int serialWidth;
+	private final int slotWidth;
+	private final boolean syncOnWrite;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private int seed;
+	private long capacity;
+	private long count;
+	private FileChannel channel;
+	private MappedByteBuffer table;
+
+	/**
+	 * Class constructor specifying file path and the length of a serial number in bytes.
+	 * The file is created if it does not exist.
+	 *
+	 * @param path the path of the store file
+	 * @param serialWidth the length of a serial number in bytes, i.e. Zr.getLengthInBytes()
+	 * @throws IOException Signals that an I/O exception of some sort has occurred
+	 */
+	public MappedSpentSerialStore(String path, int serialWidth) throws IOException {
+		this(path, serialWidth, DEFAULT_CAPACITY, false);
+	}
+	/**
+	 * Class constructor specifying file path, the length of a serial number in bytes,
+	 * initial capacity of the table, and whether every addition is synced to the storage device.
+	 * The file is created if it does not exist.
+	 *
+	 * @param path the path of the store file
+	 * @param serialWidth the length of a serial number in bytes, i.e. Zr.getLengthInBytes()
+	 * @param initialCapacity the number of slots of a newly created file
+	 * @param syncOnWrite force every addition to the storage device
+	 * @throws IOException Signals that an I/O exception of some sort has occurred
+	 */
+	public MappedSpentSerialStore(String path, int serialWidth, long initialCapacity, boolean syncOnWrite) throws IOException {
+		this.file = new File(path);
+		this.serialWidth = serialWidth;
+		this.slotWidth = 1 + serialWidth;
+		this.syncOnWrite = syncOnWrite;
+
+		// Leftover of an interrupted resize. The original file is still intact.
+		Files.deleteIfExists(resizeFile().toPath());
+
+		if (file.exists() && file.length() > 0) {
+			open();
+		}
+		else {
+			create(file, tableSizeFor(initialCapacity), new SecureRandom().nextInt());
+			open();
+		}
+	}
+
+	@Override
+	public boolean contains(byte[] s) {
+		checkWidth(s);
+		lock.readLock().lock();
+		try {
+			checkOpen();
+			return find(table, capacity, s) >= 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean addIfAbsent(byte[] s) {
+		checkWidth(s);
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			long slot = find(table, capacity, s);
+			if (slot >= 0) {
+				return false;
+			}
+			if ((count + 1) * 2 > capacity) {
+				resize(capacity * 2);
+				slot = find(table, capacity, s);
+			}
+			write(table, -slot - 1, s);
+			if (syncOnWrite) {
+				table.force();
+			}
+			count++;
+			return true;
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to resize " + file, e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public long size() {
+		lock.readLock().lock();
+		try {
+			return count;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Forces every spent serial number to the storage device.
+	 */
+	public void force() {
+		lock.writeLock().lock();
+		try {
+			checkOpen();
+			table.force();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (table == null) {
+				return;
+			}
+			table.force();
+			channel.close();
+			unmap(table);
+			table = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private void open() throws IOException {
+		@SuppressWarnings("resource")
+		FileChannel ch = new RandomAccessFile(file, "rw").getChannel();
+		MappedByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+		int magic = header.getInt(0);
+		int version = header.getInt(4);
+		int width = header.getInt(8);
+		seed = header.getInt(12);
+		capacity = header.getLong(16);
+		unmap(header);
+		if (magic != MAGIC || version != VERSION) {
+			ch.close();
+			throw new IOException("Not a spent serial store: " + file);
+		}
+		if (width != serialWidth) {
+			ch.close();
+			throw new IOException("Serial width mismatch: " + width + " in " + file + ", expected " + serialWidth);
+		}
+
+		channel = ch;
+		table = ch.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity * slotWidth);
+
+		count = 0;
+		for (long i = 0; i < capacity; i++) {
+			if (table.get(offset(i)) == OCCUPIED) {
+				count++;
+			}
+		}
+	}
+
+	private void create(File target, long newCapacity, int newSeed) throws IOException {
+		long length = HEADER_SIZE + newCapacity * slotWidth;
+		if (length > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Spent serial store is too large to be mapped: " + newCapacity + " slots");
+		}
+		RandomAccessFile f = new RandomAccessFile(target, "rw");
+		try {
+			f.setLength(length);
+			MappedByteBuffer header = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+			header.putInt(0, MAGIC);
+			header.putInt(4, VERSION);
+			header.putInt(8, serialWidth);
+			header.putInt(12, newSeed);
+			header.putLong(16, newCapacity);
+			header.force();
+			unmap(header);
+		} finally {
+			f.close();
+		}
+	}
+
+	/*
+	 * Rehashes every spent serial number into a new file, and replaces the old file with it.
+	 */
+	private void resize(long newCapacity) throws IOException {
+		File tmp = resizeFile();
+		create(tmp, newCapacity, seed);
+
+		RandomAccessFile f = new RandomAccessFile(tmp, "rw");
+		try {
+			MappedByteBuffer newTable = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + newCapacity * slotWidth);
+			byte[] s = new byte[serialWidth];
+			for (long i = 0; i < capacity; i++) {
+				if (table.get(offset(i)) == OCCUPIED) {
+					read(table, i, s);
+					write(newTable, -find(newTable, newCapacity, s) - 1, s);
+				}
+			}
+			newTable.force();
+			unmap(newTable);
+		} finally {
+			f.close();
+		}
+
+		// Release the old mapping before the file is replaced.
+		table.force();
+		channel.close();
+		unmap(table);
+		table = null;
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			open();	// The old file, if the move failed.
+		}
+	}
+
+	/*
+	 * Returns the slot of s if s is in the table, or (-slot - 1) of the empty slot for s otherwise.
+	 */
+	private long find(MappedByteBuffer t, long cap, byte[] s) {
+		long mask = cap - 1;
+		for (long i = hash(s) & mask; ; i = (i + 1) & mask) {
+			int off = offset(i);
+			if (t.get(off) == EMPTY) {
+				return -i - 1;
+			}
+			boolean equal = true;
+			for (int j = 0; j < serialWidth && equal; j++) {
+				equal = t.get(off + 1 + j) == s[j];
+			}
+			if (equal) {
+				return i;
+			}
+		}
+	}
+
+	private void write(MappedByteBuffer t, long slot, byte[] s) {
+		int off = offset(slot);
+		for (int j = 0; j < serialWidth; j++) {
+			t.put(off + 1 + j, s[j]);
+		}
+		t.put(off, OCCUPIED);	// Publish the slot only after the serial number is written.
+	}
+
+	private void read(MappedByteBuffer t, long slot, byte[] s) {
+		int off = offset(slot);
+		for (int j = 0; j < serialWidth; j++) {
+			s[j] = t.get(off + 1 + j);
+		}
+	}
+
+	private int offset(long slot) {
+		return (int) (HEADER_SIZE + slot * slotWidth);
+	}
+
+	/*
+	 * Seeded per file, so that probe sequences differ between stores.
+	 */
+	private long hash(byte[] s) {
+		long h = seed;
+		for (byte b : s) {
+			h = (h ^ (b & 0xff)) * 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private void checkOpen() {
+		if (table == null) {
+			throw new IllegalStateException("Spent serial store is closed: " + file);
+		}
+	}
+
+	private void checkWidth(byte[] s) {
+		if (s.length != serialWidth) {
+			throw new IllegalArgumentException("Serial number should be " + serialWidth + " bytes, but " + s.length + " bytes.");
+		}
+	}
+
+	private File resizeFile() {
+		return new File(file.getPath() + ".resize");
+	}
+
+	/*
+	 * Releases the mapping of buffer at once, which must not be used afterwards.
+	 * Java 9 and later have Unsafe.invokeCleaner, and Java 8 the cleaner of the buffer.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner;
+			try {
+				invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			} catch (NoSuchMethodException e) {	// Java 8
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null) {
+					Method clean = cleaner.getClass().getMethod("clean");
+					clean.setAccessible(true);
+					clean.invoke(cleaner);
+				}
+				return;
+			}
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Left to the garbage collector.
+		}
+	}
+
+	private static long tableSizeFor(long n) {
+		long cap = 2;
+		while (cap < n) {
+			cap <<= 1;
+		}
+		return cap;
+	}
+}
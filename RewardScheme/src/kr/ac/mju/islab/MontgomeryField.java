@@ -0,0 +1,280 @@
+package kr.ac.mju.islab;
+
+import java.math.BigInteger;
+
+/**
+ * MontgomeryField does arithmetic modulo a fixed odd prime q, e.g. the 512-bit q of curve a,
+ * on values of a fixed number of limbs in Montgomery form.
+ * <p>
+ * BigInteger allocates a new value for every product and reduces it with a full division.
+ * Here a value v is kept as v * 2^(32n) mod q in a long[] of n limbs, least significant first,
+ * so that a product is reduced with multiplications only (CIOS Montgomery multiplication),
+ * into an array of the caller, without allocating.
+ * Each limb holds 32 bits, as Java 8 has no 64 x 64 to 128-bit multiplication, and the 64-bit
+ * long leaves room for the carries.
+ * <p>
+ * Values passed in must be reduced, i.e. come from this field. The result of mul and square
+ * must not be one of the operands; the other operations allow it.
+ * Instances are immutable and can be shared between threads.
+ */
+public class MontgomeryField {
+	private static final long MASK = 0xFFFFFFFFL;
+
+	private final BigInteger modulus;
+	private final int n;	// Number of limbs
+	private final long[] q;
+	private final long qInv;	// -q^-1 mod 2^32
+	private final long[] r2;	// 2^(64n) mod q, to convert into Montgomery form
+	private final long[] one;
+
+	/**
+	 * Class constructor specifying the modulus.
+	 *
+	 * @param modulus the odd modulus q, greater than 2
+	 */
+	public MontgomeryField(BigInteger modulus) {
+		if (modulus.testBit(0) == false || modulus.compareTo(BigInteger.valueOf(2)) <= 0) {
+			throw new IllegalArgumentException("Invalid modulus: " + modulus);
+		}
+		this.modulus = modulus;
+		this.n = (modulus.bitLength() + 31) / 32;
+		this.q = toLimbs(modulus);
+		this.qInv = BigInteger.ONE.shiftLeft(32).subtract(modulus.modInverse(BigInteger.ONE.shiftLeft(32))).longValue();
+		this.r2 = toLimbs(BigInteger.ONE.shiftLeft(64 * n).mod(modulus));
+		this.one = toLimbs(BigInteger.ONE.shiftLeft(32 * n).mod(modulus));
+	}
+
+	/**
+	 * Returns the modulus.
+	 *
+	 * @return the modulus q
+	 */
+	public BigInteger getModulus() {
+		return modulus;
+	}
+
+	/**
+	 * Returns a new value, zero.
+	 *
+	 * @return a new array of limbs
+	 */
+	public long[] newElement() {
+		return new long[n];
+	}
+
+	/**
+	 * Returns v as a new value.
+	 *
+	 * @param v the value, reduced mod q if not already
+	 * @return a new value in Montgomery form
+	 */
+	public long[] newElement(BigInteger v) {
+		long[] r = new long[n];
+		mul(toLimbs(v.mod(modulus)), r2, r);
+		return r;
+	}
+
+	/**
+	 * Returns a new value, one.
+	 *
+	 * @return a new value in Montgomery form
+	 */
+	public long[] newOneElement() {
+		return one.clone();
+	}
+
+	/**
+	 * Returns a as a BigInteger.
+	 *
+	 * @param a the value
+	 * @return a mod q
+	 */
+	public BigInteger toBigInteger(long[] a) {
+		long[] unit = new long[n];
+		unit[0] = 1;
+		long[] r = new long[n];
+		mul(a, unit, r);
+		byte[] bytes = new byte[4 * n + 1];
+		for (int i = 0; i < n; i++) {
+			int offset = bytes.length - 4 * i;
+			bytes[offset - 1] = (byte) r[i];
+			bytes[offset - 2] = (byte) (r[i] >>> 8);
+			bytes[offset - 3] = (byte) (r[i] >>> 16);
+			bytes[offset - 4] = (byte) (r[i] >>> 24);
+		}
+		return new BigInteger(bytes);
+	}
+
+	/**
+	 * Returns whether a is zero.
+	 *
+	 * @param a the value
+	 * @return true if a is zero
+	 */
+	public boolean isZero(long[] a) {
+		long bits = 0;
+		for (int i = 0; i < n; i++) {
+			bits |= a[i];
+		}
+		return bits == 0;
+	}
+
+	/**
+	 * Sets r to a.
+	 *
+	 * @param a the value
+	 * @param r the result
+	 */
+	public void set(long[] a, long[] r) {
+		System.arraycopy(a, 0, r, 0, n);
+	}
+
+	/**
+	 * Sets r to a * b. r must be neither a nor b.
+	 *
+	 * @param a the multiplicand
+	 * @param b the multiplier
+	 * @param r the result
+	 */
+	public void mul(long[] a, long[] b, long[] r) {
+		for (int i = 0; i < n; i++) {
+			r[i] = 0;
+		}
+		long top = 0;
+		for (int i = 0; i < n; i++) {
+			// r += a * b[i]
+			long bi = b[i];
+			long carry = 0;
+			for (int j = 0; j < n; j++) {
+				long s = r[j] + a[j] * bi + carry;	// At most 2^64 - 1, unsigned
+				r[j] = s & MASK;
+				carry = s >>> 32;
+			}
+			long s = top + carry;
+			top = s & MASK;
+			long overflow = s >>> 32;
+
+			// r = (r + m * q) / 2^32, with m such that the lowest limb cancels.
+			long m = (r[0] * qInv) & MASK;
+			carry = (r[0] + m * q[0]) >>> 32;
+			for (int j = 1; j < n; j++) {
+				s = r[j] + m * q[j] + carry;
+				r[j - 1] = s & MASK;
+				carry = s >>> 32;
+			}
+			s = top + carry;
+			r[n - 1] = s & MASK;
+			top = overflow + (s >>> 32);
+		}
+		if (top != 0 || compare(r, q) >= 0) {
+			subtract(r, q, r);
+		}
+	}
+
+	/**
+	 * Sets r to a^2. r must not be a.
+	 *
+	 * @param a the value
+	 * @param r the result
+	 */
+	public void square(long[] a, long[] r) {
+		mul(a, a, r);
+	}
+
+	/**
+	 * Sets r to a + b.
+	 *
+	 * @param a the augend
+	 * @param b the addend
+	 * @param r the result
+	 */
+	public void add(long[] a, long[] b, long[] r) {
+		long carry = 0;
+		for (int i = 0; i < n; i++) {
+			long s = a[i] + b[i] + carry;
+			r[i] = s & MASK;
+			carry = s >>> 32;
+		}
+		if (carry != 0 || compare(r, q) >= 0) {
+			subtract(r, q, r);
+		}
+	}
+
+	/**
+	 * Sets r to a - b.
+	 *
+	 * @param a the minuend
+	 * @param b the subtrahend
+	 * @param r the result
+	 */
+	public void sub(long[] a, long[] b, long[] r) {
+		if (subtract(a, b, r) != 0) {
+			long carry = 0;
+			for (int i = 0; i < n; i++) {
+				long s = r[i] + q[i] + carry;
+				r[i] = s & MASK;
+				carry = s >>> 32;
+			}
+		}
+	}
+
+	/**
+	 * Sets r to -a.
+	 *
+	 * @param a the value
+	 * @param r the result
+	 */
+	public void negate(long[] a, long[] r) {
+		if (isZero(a)) {
+			set(a, r);
+		}
+		else {
+			subtract(q, a, r);
+		}
+	}
+
+	/**
+	 * Sets r to a^-1, or zero if a is zero.
+	 *
+	 * @param a the value
+	 * @param r the result
+	 */
+	public void invert(long[] a, long[] r) {
+		if (isZero(a)) {
+			set(a, r);
+			return;
+		}
+		// Inverts the plain value, and brings it back into Montgomery form.
+		mul(toLimbs(toBigInteger(a).modInverse(modulus)), r2, r);
+	}
+
+	/*
+	 * Sets r to a - b over n limbs, and returns the borrow, 1 if a < b.
+	 */
+	private long subtract(long[] a, long[] b, long[] r) {
+		long borrow = 0;
+		for (int i = 0; i < n; i++) {
+			long s = a[i] - b[i] - borrow;
+			r[i] = s & MASK;
+			borrow = s >>> 63;
+		}
+		return borrow;
+	}
+
+	private int compare(long[] a, long[] b) {
+		for (int i = n - 1; i >= 0; i--) {
+			if (a[i] != b[i]) {
+				return a[i] < b[i] ? -1 : 1;
+			}
+		}
+		return 0;
+	}
+
+	private long[] toLimbs(BigInteger v) {
+		long[] limbs = new long[n];
+		for (int i = 0; i < n; i++) {
+			limbs[i] = v.shiftRight(32 * i).longValue() & MASK;
+		}
+		return limbs;
+	}
+}
@@ -0,0 +1,217 @@
+package kr.ac.mju.islab;
+
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.Field;
+import it.unisa.dia.gas.jpbc.FieldOver;
+import it.unisa.dia.gas.jpbc.Pairing;
+import it.unisa.dia.gas.jpbc.PairingPreProcessing;
+import it.unisa.dia.gas.jpbc.Point;
+import it.unisa.dia.gas.plaf.jpbc.field.gt.GTFiniteElement;
+import it.unisa.dia.gas.plaf.jpbc.field.gt.GTFiniteField;
+import it.unisa.dia.gas.plaf.jpbc.pairing.AbstractPairing;
+import it.unisa.dia.gas.plaf.jpbc.pairing.a.TypeATateNafProjectiveMillerPairingMap;
+import it.unisa.dia.gas.plaf.jpbc.pairing.map.PairingMap;
+import it.unisa.dia.gas.plaf.jpbc.util.io.PairingStreamReader;
+import it.unisa.dia.gas.plaf.jpbc.util.math.BigIntegerUtils;
+
+/**
+ * MultiMillerPairing computes products of Type A pairings,
+ * e(P_1, Q_1) * ... * e(P_n, Q_n), with a single Miller loop and
+ * a single final exponentiation.
+ * <p>
+ * The first arguments P_i are fixed and preprocessed into their Miller-loop
+ * line coefficients, exactly as jPBC's TypeATateNafProjectiveMillerPairingMap does.
+ * The loops of all P_i then share the squarings of the accumulator,
+ * and the final exponentiation, which is as expensive as the loop itself,
+ * is done only once. An equation like e(sigma, g2) == e(H(s), y) is therefore
+ * checked as e(g2, sigma) * e(y, H(s)^-1) == 1 at roughly the cost of one pairing.
+ * <p>
+ * Only jPBC's default Type A pairing map is supported. Check isSupported first.
+ */
+public class MultiMillerPairing {
+	private final Pairing pairing;
+	private final PairingMap pairingMap;
+	@SuppressWarnings("rawtypes")
+	private final Field Fq, Fq2;
+	private final byte[] r;	// NAF of the group order, same as that of the pairing map.
+	private final int numRow;
+
+	/**
+	 * Returns whether products of pairings of the pairing can be computed by this class.
+	 *
+	 * @param pairing the pairing
+	 * @return true if the pairing is a Type A pairing with the NAF projective Miller pairing map
+	 */
+	public static boolean isSupported(Pairing pairing) {
+		return pairing instanceof AbstractPairing
+				&& ((AbstractPairing) pairing).getPairingMap() instanceof TypeATateNafProjectiveMillerPairingMap;
+	}
+
+	/**
+	 * Class constructor specifying the pairing.
+	 *
+	 * @param pairing the Type A pairing
+	 */
+	@SuppressWarnings("rawtypes")
+	public MultiMillerPairing(Pairing pairing) {
+		if (isSupported(pairing) == false) {
+			throw new IllegalArgumentException("Only Type A pairing with the NAF projective Miller pairing map is supported.");
+		}
+		this.pairing = pairing;
+		this.pairingMap = ((AbstractPairing) pairing).getPairingMap();
+		this.Fq = ((FieldOver) pairing.getG1()).getTargetField();
+		this.Fq2 = ((FieldOver) pairing.getGT()).getTargetField();
+		this.r = BigIntegerUtils.naf(pairing.getZr().getOrder(), (byte) 2);
+		this.numRow = r.length - 1 + BigIntegerUtils.hammingWeight(r, r.length - 2);
+	}
+
+	/**
+	 * Returns the line coefficients of the fixed first argument in1.
+	 *
+	 * @param in1 the fixed first argument of pairings
+	 * @return the line coefficients of in1
+	 */
+	public Lines getPairingPreProcessingFromElement(Element in1) {
+		return new Lines(pairing.getPairingPreProcessingFromElement(in1).toBytes());
+	}
+
+	/**
+	 * Returns the line coefficients saved by Lines.toBytes.
+	 *
+	 * @param source the bytes of line coefficients
+	 * @return the line coefficients
+	 */
+	public Lines getPairingPreProcessingFromBytes(byte[] source) {
+		return new Lines(source);
+	}
+
+	/**
+	 * Returns the product of Miller loops f_{P_1}(Q_1) * ... * f_{P_n}(Q_n),
+	 * without the final exponentiation.
+	 *
+	 * @param in1 the line coefficients of P_i
+	 * @param in2 Q_i, which should not be zero
+	 * @return the product of Miller loops, as an element of F_q^2
+	 */
+	public Element millerLoop(Lines[] in1, Element[] in2) {
+		if (in1.length != in2.length) {
+			throw new IllegalArgumentException("Array lengths mismatch.");
+		}
+		Point<?> f = (Point<?>) Fq2.newOneElement();
+		Point<?> u = (Point<?>) Fq2.newElement();
+		Element t = Fq.newElement();
+
+		for (int i = r.length - 2, row = 0; i >= 0; i--) {
+			f.square();
+			for (int j = 0; j < in1.length; j++) {
+				millerStep(u, t, in1[j].table[row], (Point<?>) in2[j]);
+				f.mul(u);
+			}
+			row++;
+
+			if (r[i] != 0) {
+				for (int j = 0; j < in1.length; j++) {
+					millerStep(u, t, in1[j].table[row], (Point<?>) in2[j]);
+					f.mul(u);
+				}
+				row++;
+			}
+		}
+		return f;
+	}
+
+	/**
+	 * Returns the product of pairings e(P_1, Q_1) * ... * e(P_n, Q_n).
+	 *
+	 * @param in1 the line coefficients of P_i
+	 * @param in2 Q_i
+	 * @return the product of pairings
+	 */
+	public Element pairing(Lines[] in1, Element[] in2) {
+		for (Element q : in2) {
+			if (q.isZero()) {
+				return pairing.getGT().newZeroElement();
+			}
+		}
+		Element f = finalPow(millerLoop(in1, in2));
+		return new GTFiniteElement(pairingMap, (GTFiniteField) pairing.getGT(), f);
+	}
+
+	/**
+	 * Returns whether e(P_1, Q_1) * ... * e(P_n, Q_n) == 1.
+	 *
+	 * @param in1 the line coefficients of P_i
+	 * @param in2 Q_i
+	 * @return true if the product of pairings is one
+	 */
+	public boolean isProductOne(Lines[] in1, Element[] in2) {
+		for (Element q : in2) {
+			if (q.isZero()) {
+				return false;
+			}
+		}
+		return finalPow(millerLoop(in1, in2)).isOne();
+	}
+
+	/**
+	 * Returns the final exponentiation f^((q^2 - 1) / r) of a product of Miller loops, in place.
+	 * Products of Miller loops computed separately, e.g. in parallel, can be multiplied first.
+	 *
+	 * @param f the product of Miller loops
+	 * @return f, which is now the product of pairings
+	 */
+	public Element finalPow(Element f) {
+		// The pairing map fails if f is in F_q or i * F_q, where f^(q - 1) = 1 or -1.
+		// The result is one then, as the rest of the exponent, (q + 1) / r, is even.
+		// It does not happen for a single pairing, but does for a product like e(P, Q) * e(P, Q^-1).
+		Point<?> p = (Point<?>) f;
+		if (p.getX().isZero() || p.getY().isZero()) {
+			return f.setToOne();
+		}
+		pairingMap.finalPow(f);
+		return f;
+	}
+
+	/*
+	 * Evaluates the line (a, b, c) at the distorted point of Q:
+	 * u = (c + a * Q.x) + (b * Q.y) i
+	 */
+	private void millerStep(Point<?> u, Element t, Element[] line, Point<?> Q) {
+		u.getX().set(line[2]).add(t.set(line[0]).mul(Q.getX()));
+		u.getY().set(line[1]).mul(Q.getY());
+	}
+
+	/**
+	 * Lines holds the line coefficients of the Miller loop of a fixed point.
+	 * It can be used as an ordinary PairingPreProcessing as well.
+	 */
+	public class Lines implements PairingPreProcessing {
+		private final byte[] source;
+		final Element[][] table;
+
+		Lines(byte[] source) {
+			PairingStreamReader in = new PairingStreamReader(pairing, source, 0);
+			int rows = in.readInt();
+			if (rows != numRow) {
+				throw new IllegalArgumentException("Expected " + numRow + " rows of line coefficients, but " + rows + ".");
+			}
+			this.source = source;
+			this.table = new Element[rows][3];
+			for (int i = 0; i < rows; i++) {
+				table[i][0] = in.readFieldElement(Fq).getImmutable();
+				table[i][1] = in.readFieldElement(Fq).getImmutable();
+				table[i][2] = in.readFieldElement(Fq).getImmutable();
+			}
+		}
+
+		@Override
+		public Element pairing(Element in2) {
+			return MultiMillerPairing.this.pairing(new Lines[] {this}, new Element[] {in2});
+		}
+
+		@Override
+		public byte[] toBytes() {
+			return source.clone();
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package kr.ac.mju.islab;
+
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.Field;
+import it.unisa.dia.gas.jpbc.Point;
+import it.unisa.dia.gas.plaf.jpbc.field.curve.CurveElement;
+
+/**
+ * PointEncoding converts elements to and from bytes, with points of G1 and G2 optionally compressed.
+ * <p>
+ * A compressed point is its x coordinate and the sign of y, half the size of toBytes
+ * (65 bytes instead of 128 on curve a). Decompressing it solves for y with a square root,
+ * which costs about as much as 20 point additions, so a decoder which sees the same point
+ * over and over, such as the verification key y, should cache the result.
+ * Elements other than points, such as those of Zr, are encoded with toBytes either way.
+ * <p>
+ * As any x gives a y, whether or not the point is on the curve, a decompressed point is checked
+ * to be on the curve and in the subgroup of the field, which costs a multiplication by the order.
+ */
+public class PointEncoding {
+	private PointEncoding() { }
+
+	/**
+	 * Returns the bytes of e, compressed if specified and e is a point.
+	 *
+	 * @param e the element
+	 * @param compressed whether to compress points
+	 * @return the bytes of e
+	 */
+	public static byte[] toBytes(Element e, boolean compressed) {
+		if (compressed && e instanceof Point) {
+			return ((Point) e).toBytesCompressed();
+		}
+		return e.toBytes();
+	}
+
+	/**
+	 * Returns a new element of field, read from bytes of toBytes.
+	 *
+	 * @param field the field of the element
+	 * @param bytes the bytes of the element
+	 * @param compressed whether the bytes are of a compressed point
+	 * @return a new element
+	 * @throws IllegalArgumentException if the bytes are of a compressed point not in field
+	 */
+	@SuppressWarnings("rawtypes")
+	public static Element fromBytes(Field field, byte[] bytes, boolean compressed) {
+		Element e = field.newElement();
+		if (compressed && e instanceof Point) {
+			Point p = (Point) e;
+			if (bytes.length != p.getLengthInBytesCompressed()) {
+				throw new IllegalArgumentException("Invalid length of a compressed point: " + bytes.length);
+			}
+			p.setFromBytesCompressed(bytes);
+			if ((p instanceof CurveElement && ((CurveElement) p).isValid() == false) || isInSubgroup(field, p) == false) {
+				throw new IllegalArgumentException("Compressed point not in the group");
+			}
+		}
+		else {
+			e.setFromBytes(bytes);
+		}
+		return e;
+	}
+
+	/**
+	 * Returns whether e is in the subgroup of field, i.e. e^r is infinity, r being the order of field.
+	 * Points decoded from toBytes are on the curve, but may be of a small order.
+	 *
+	 * @param field the field of the element
+	 * @param e the element of field
+	 * @return true if e^r is infinity
+	 */
+	@SuppressWarnings("rawtypes")
+	public static boolean isInSubgroup(Field field, Element e) {
+		JacobianCurve curve = JacobianCurve.getInstance(field);
+		if (curve == null) {
+			return e.duplicate().pow(field.getOrder()).isZero();
+		}
+		return curve.pow(e, field.getOrder()).isZero();
+	}
+
+	/**
+	 * Returns the compressed form of an element of field, given its uncompressed bytes.
+	 * This is cheap, as no square root is taken.
+	 *
+	 * @param field the field of the element
+	 * @param bytes the bytes of the element, from toBytes
+	 * @return the compressed bytes of the element
+	 */
+	@SuppressWarnings("rawtypes")
+	public static byte[] compress(Field field, byte[] bytes) {
+		return toBytes(field.newElementFromBytes(bytes), true);
+	}
+}
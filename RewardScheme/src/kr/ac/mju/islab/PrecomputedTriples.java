@@ -0,0 +1,148 @@
+package kr.ac.mju.islab;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import it.unisa.dia.gas.jpbc.Element;
+
+/**
+ * PrecomputedTriples keeps triples (s, r, h) of RewardScheme.recIssueHelperPre computed ahead of time,
+ * so that issuance takes a ready triple instead of hashing s to G1 and raising g1 to r.
+ * <p>
+ * None of a triple depends on the master, so triples are computed by a background thread
+ * of minimum priority. Whenever a take leaves lowWatermark triples or fewer, the thread refills
+ * the pool up to highWatermark. If the pool runs empty, a triple is computed on the spot.
+ * <p>
+ * The thread exits once idle for IDLE_TIMEOUT seconds, and is started again by the next refill,
+ * so that the triples of a scheme dropped without close are not kept alive by the thread.
+ */
+public class PrecomputedTriples implements Closeable {
+	public static final long IDLE_TIMEOUT = 10;	// s
+	private final RewardScheme rewardScheme;
+	private final int lowWatermark;
+	private final int highWatermark;
+	private final BlockingQueue<Element[]> triples;
+	private final ExecutorService executor;
+	private final AtomicBoolean refilling = new AtomicBoolean();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private volatile boolean closed;
+	private final Runnable refillTask = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				while (closed == false && triples.size() < highWatermark) {
+					triples.offer(rewardScheme.computeHelperPre());
+				}
+			} finally {
+				refilling.set(false);
+			}
+			if (triples.size() <= lowWatermark) {	// Taken while the flag was still set.
+				refill();
+			}
+		}
+	};
+
+	/**
+	 * Class constructor specifying the scheme to compute triples with, and the watermarks.
+	 * The pool starts filling up at once.
+	 *
+	 * @param rewardScheme the scheme of the helper
+	 * @param lowWatermark the number of triples left at which the pool is refilled
+	 * @param highWatermark the number of triples the pool is refilled to
+	 */
+	public PrecomputedTriples(RewardScheme rewardScheme, int lowWatermark, int highWatermark) {
+		if (lowWatermark < 0 || highWatermark < 1 || lowWatermark >= highWatermark) {
+			throw new IllegalArgumentException("Invalid watermarks: " + lowWatermark + ", " + highWatermark);
+		}
+		this.rewardScheme = rewardScheme;
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+		this.triples = new ArrayBlockingQueue<Element[]>(highWatermark);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, IDLE_TIMEOUT, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "PrecomputedTriples");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		this.executor = executor;
+		refill();
+	}
+
+	/**
+	 * Returns a triple (s, r, h), precomputed if available.
+	 *
+	 * @return s, r, and h, as RewardScheme.recIssueHelperPre returns
+	 */
+	public Element[] take() {
+		Element[] triple = triples.poll();
+		if (triples.size() <= lowWatermark) {
+			refill();
+		}
+		if (triple == null) {
+			misses.incrementAndGet();
+			return rewardScheme.computeHelperPre();
+		}
+		hits.incrementAndGet();
+		return triple;
+	}
+
+	/**
+	 * Returns the number of triples ready.
+	 *
+	 * @return the number of triples ready
+	 */
+	public int size() {
+		return triples.size();
+	}
+
+	/**
+	 * Returns the number of takes answered with a precomputed triple.
+	 *
+	 * @return the number of hits
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of takes which found the pool empty, and computed a triple on the spot.
+	 *
+	 * @return the number of misses
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Stops the background thread. Triples left are still taken, but not refilled.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		executor.shutdown();
+	}
+
+	private void refill() {
+		if (closed == false && refilling.compareAndSet(false, true)) {
+			try {
+				executor.execute(refillTask);
+			} catch (RejectedExecutionException e) {	// Closed
+				refilling.set(false);
+			}
+		}
+	}
+}
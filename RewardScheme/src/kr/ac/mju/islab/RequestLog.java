@@ -0,0 +1,21 @@
+package kr.ac.mju.islab;
+
+import kr.ac.mju.islab.RewardProto.RewardPacket;
+
+/**
+ * RequestLog receives every request RewardServer answers, along with its response.
+ * <p>
+ * log is called on the thread which processed the request, so implementations
+ * should return quickly and leave formatting and I/O to another thread,
+ * as AsyncRequestLog and BinaryAccessLog do.
+ */
+public interface RequestLog {
+	/**
+	 * Logs an answered request.
+	 *
+	 * @param recvPacket the request
+	 * @param sendPacket the response
+	 * @param elapsedNanos the time taken to process the request, in nanoseconds
+	 */
+	public void log(RewardPacket recvPacket, RewardPacket sendPacket, long elapsedNanos);
+}
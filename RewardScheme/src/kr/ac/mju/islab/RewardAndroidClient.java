@@ -36,13 +36,7 @@ public class RewardAndroidClient {
 				}
 				
 				// Prepend packetLenInfo to the RewardPacket, so that the other side can determine the packet size
-				int packetLen = packet.toByteArray().length;
-				byte[] packetLenInfo = ByteBuffer.allocate(4).putInt(packetLen).array();
-
-				ByteBuffer buf = ByteBuffer.allocate(4 + packetLen);
-				buf.put(packetLenInfo);
-				buf.put(packet.toByteArray());
-				buf.flip();
+				ByteBuffer buf = FrameDecoder.encode(packet.toByteArray());
 				// END
 				
 				// Write
@@ -54,37 +48,15 @@ public class RewardAndroidClient {
 					}
 				}
 
-				final ByteBuffer recvBuf = ByteBuffer.allocate(32768);	// Capable of dealing with #100 aggregated receipt
-				int bytesRead = -1;
-				while (bytesRead == 0 | bytesRead == -1) {
-					// Read
-					try {
-						bytesRead = sockChannel.read(recvBuf);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				}
-
-				// Process header to get a length of received packet.
-				byte[] recvPacketLenInfo = new byte[4];
-				recvBuf.flip();
-				recvBuf.get(recvPacketLenInfo);
-				recvBuf.compact();
-				
-				byte[] recvBytePacket = new byte[ByteBuffer.wrap(recvPacketLenInfo).getInt()];
-				if (recvBytePacket.length > 32768) {
-					System.out.println("Buffer size is smaller than received packet size: " + recvBytePacket.length);
-				}
-				recvBuf.flip();
-				recvBuf.get(recvBytePacket);
-				recvBuf.compact();
-				// END
-
+				// Read until the whole packet, prefixed by its length, arrives.
 				try {
-					recvPacket = RewardPacket.parseFrom(recvBytePacket);
+					recvPacket = RewardPacket.parseFrom(new FrameDecoder().readFrame(sockChannel));
 				} catch (InvalidProtocolBufferException e) {
 					e.printStackTrace();
+				} catch (IOException e) {
+					e.printStackTrace();
 				}
+				// END
 				
 				try {
 					sockChannel.close();
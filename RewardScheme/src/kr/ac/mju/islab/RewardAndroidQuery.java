@@ -156,6 +156,37 @@ public class RewardAndroidQuery {
 		return isValid;
 	}
 
+	/**
+	 * Returns per-receipt validness of the signatures sigma, all issued under 
+	 * the same verification key y, in a single round trip.
+	 * 
+	 * @param sigmaBytesList the arraylist of receipts generated by Helper
+	 * @param sBytesList the arraylist of random serial number s, in the same order as sigmaBytesList
+	 * @param yBytes the verification key vk
+	 * @return validness of each signature sigma, or null if the server refused the request
+	 * @throws IOException Signals that an I/O exception of some sort has occurred
+	 * @throws InterruptedException Thrown when a thread is waiting, sleeping, or otherwise occupied, and the thread is interrupted, either before or during the activity
+	 */
+	public boolean[] batchVerify(List<byte[]> sigmaBytesList, List<byte[]> sBytesList, byte[] yBytes) throws IOException, InterruptedException {
+		// Packet for RewardScheme.batchVerify / pid 4
+		RewardPacket recvPacket = new RewardAndroidClient(host, port, RewardPacket.newBuilder()
+						.setPid(4)
+						.addAllEList1(BytesListToByteStringList(sigmaBytesList))
+						.addAllEList2(BytesListToByteStringList(sBytesList))
+						.setE3(ByteString.copyFrom(yBytes))
+						.build())
+				.recvPacket;
+		if (recvPacket.getPid() == 999) {
+			return null;
+		}
+
+		boolean[] isValid = new boolean[recvPacket.getIsValidListCount()];
+		for (int i = 0; i < isValid.length; i++) {
+			isValid[i] = recvPacket.getIsValidList(i);
+		}
+		return isValid;
+	}
+
 	/**
 	 * Returns aggregated sigma from provided signature sigmas.
 	 * 
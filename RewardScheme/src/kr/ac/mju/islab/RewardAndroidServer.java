@@ -29,6 +29,7 @@ public class RewardAndroidServer implements Runnable {
 	public int bindPort;
 	private RewardScheme rewardScheme;
 	protected RewardPacket recvPacket;
+	private int maxFrameSize = FrameDecoder.DEFAULT_MAX_FRAME_SIZE;
 
 	/**
 	 * Inherit and concrete these methods to respond directly to any protocol
@@ -42,6 +43,9 @@ public class RewardAndroidServer implements Runnable {
     public boolean onAggVerifyRequest() {
     	return true;
     }
+    public boolean onBatchVerifyRequest() {
+    	return true;
+    }
     public boolean onYRequest() {
     	return true;
     }
@@ -58,6 +62,15 @@ public class RewardAndroidServer implements Runnable {
     	this.rewardScheme = rewardScheme;
     }
 
+    /**
+     * Sets the maximum size of a received packet. A client sending a larger packet is disconnected.
+     * 
+     * @param maxFrameSize the maximum size of a packet in bytes
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+    	this.maxFrameSize = maxFrameSize;
+    }
+
     /**
      * RewardAndroidServer implements Runnable, so could act as thread.
      * <p>
@@ -85,37 +98,24 @@ public class RewardAndroidServer implements Runnable {
 				e1.printStackTrace();
 			}
 
-			// Read
-			ByteBuffer buf = ByteBuffer.allocate(32768);	// Capable of dealing with #100 aggregated receipt
-			try {
-				sockChannel.read(buf);
-			} catch (Exception e1) {
-				if (sockChannel == null) {
-					Thread.currentThread().interrupt();
-					return;
-				}
-				e1.printStackTrace();
+			// Read until the whole packet, prefixed by its length, arrives.
+			if (sockChannel == null) {
+				Thread.currentThread().interrupt();
+				return;
 			}
-
-			// Process header to get a length of received packet.
-			byte[] packetLenInfo = new byte[4];
-			buf.flip();
-			try{
-				buf.get(packetLenInfo);
-			} catch (Exception e) { }	// Ignore errors on client disconnection.
-			buf.compact();
-			
-			int packetLen = ByteBuffer.wrap(packetLenInfo).getInt();
-			if (packetLen == 0) {
+			byte[] recvBytePacket = null;
+			try {
+				recvBytePacket = new FrameDecoder(maxFrameSize).readFrame(sockChannel);
+			} catch (IOException e1) {	// Client disconnection, or oversized packet
+				System.err.println(e1.getMessage());
+				try {
+					sockChannel.close();
+				} catch (IOException e) { }
 				continue;
 			}
-			byte[] recvBytePacket = new byte[packetLen];
-			if (recvBytePacket.length > 32768) {
-				System.out.println("Buffer size is smaller than received packet size: " + recvBytePacket.length);
+			if (recvBytePacket.length == 0) {
+				continue;
 			}
-			buf.flip();
-			buf.get(recvBytePacket);
-			buf.compact();
 			// END
 
 			recvPacket = null;
@@ -135,12 +135,18 @@ public class RewardAndroidServer implements Runnable {
 				}
 				else {
 					Element h = rewardScheme.G1.newElementFromBytes(recvPacket.getE1().toByteArray()).getImmutable();
-					Element psi = rewardScheme.recIssueMaster(h).getImmutable();
+					try {
+						Element psi = rewardScheme.recIssueMaster(h).getImmutable();
 
-					sendPacket = RewardPacket.newBuilder()
-							.setPid(1)	// Is not necessary. Append for analysis
-							.setE1(ByteString.copyFrom(psi.toBytes()))
-							.build();
+						sendPacket = RewardPacket.newBuilder()
+								.setPid(1)	// Is not necessary. Append for analysis
+								.setE1(ByteString.copyFrom(psi.toBytes()))
+								.build();
+					} catch (IllegalArgumentException e) {	// h is not in G1, so the request is refused.
+						sendPacket = RewardPacket.newBuilder()
+								.setPid(999)
+								.build();
+					}
 				}
 			}
 			else if (recvPacket.getPid() == 2) {	// RewardScheme.verify
@@ -177,6 +183,25 @@ public class RewardAndroidServer implements Runnable {
 							.build();
 				}
 			}
+			else if (recvPacket.getPid() == 4) {	// RewardScheme.batchVerify
+				if (this.onBatchVerifyRequest() == false) {	// Notifying that the protocol is refused.
+					sendPacket = RewardPacket.newBuilder()
+							.setPid(999)
+							.build();
+				}
+				else {
+					List<Element> sigmaList = ByteStringListToElementList(recvPacket.getEList1List(), rewardScheme.G1);
+					List<Element> sList = ByteStringListToElementList(recvPacket.getEList2List(), rewardScheme.Zr);
+					Element y = rewardScheme.G2.newElementFromBytes(recvPacket.getE3().toByteArray()).getImmutable();
+		
+					RewardPacket.Builder builder = RewardPacket.newBuilder()
+							.setPid(4);	// Is not necessary. Append for analysis
+					for (boolean isValid : rewardScheme.batchVerify(sigmaList, sList, y)) {
+						builder.addIsValidList(isValid);
+					}
+					sendPacket = builder.build();
+				}
+			}
 			else if (recvPacket.getPid() == 101) {	// RewardScheme.y
 					sendPacket = RewardPacket.newBuilder()
 							.setPid(101)	// Is not necessary. Append for analysis
@@ -190,13 +215,7 @@ public class RewardAndroidServer implements Runnable {
 
 			// Write
 			// Prepend packetLenInfo to the RewardPacket, so that the other side can determine the packet size
-			int sendPacketLen = sendPacket.toByteArray().length;
-			byte[] sendPacketLenInfo = ByteBuffer.allocate(4).putInt(sendPacketLen).array();
-
-			ByteBuffer sendBuf = ByteBuffer.allocate(4 + sendPacketLen);
-			sendBuf.put(sendPacketLenInfo);
-			sendBuf.put(sendPacket.toByteArray());
-			sendBuf.flip();
+			ByteBuffer sendBuf = FrameDecoder.encode(sendPacket.toByteArray());
 			// END
 			
 			while (sendBuf.hasRemaining()) {
@@ -0,0 +1,337 @@
+package kr.ac.mju.islab;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import com.google.protobuf.ByteString;
+
+import it.unisa.dia.gas.jpbc.Element;
+import kr.ac.mju.islab.RewardProto.RewardPacket;
+
+/**
+ * RewardAsyncQuery is a non-blocking RewardQuery.
+ * Queries return at once with a CompletableFuture of the result,
+ * so that a helper can keep many queries in flight without a thread for each.
+ * <p>
+ * Queries are pipelined over the connections of a RewardConnectionPool,
+ * whose channel group completes the futures. Each query fails with TimeoutException
+ * unless answered within the timeout, counted from the time it is sent, and a busy response (pid 998)
+ * is retried as in RewardQuery. Connections are made without blocking, so that neither the caller
+ * nor the timer which retries waits for the server.
+ * <p>
+ * Unlike RewardQuery, RewardAsyncQuery sends y in full, with points uncompressed, and does not
+ * use key IDs. Nor does it fall back to a connection per request for servers without request IDs,
+ * such as RewardAndroidServer, as RewardConnectionPool.query does. Use RewardQuery for those.
+ * <p>
+ * Callbacks on the futures run on the I/O threads of the pool, so they should not block.
+ */
+public class RewardAsyncQuery {
+	public static final long DEFAULT_TIMEOUT = 30000;	// ms
+	public String host;
+	public int port;
+	private RewardScheme rewardScheme;
+	private RewardConnectionPool pool;	// null until the first query, if not specified.
+	private volatile long timeoutMillis = DEFAULT_TIMEOUT;
+
+	/**
+	 * Class constructor specifying host ip and port.
+	 * Queries share connections of RewardConnectionPool.getDefault().
+	 *
+	 * @param host the ip of server to connect
+	 * @param port the port of server to connect
+	 */
+	public RewardAsyncQuery(String host, int port) {
+		this.host = host;
+		this.port = port;
+		this.rewardScheme = new RewardScheme();
+	}
+	/**
+	 * Class constructor specifying host ip, port, and the pool of connections to use.
+	 *
+	 * @param host the ip of server to connect
+	 * @param port the port of server to connect
+	 * @param pool the pool of connections to the server
+	 */
+	public RewardAsyncQuery(String host, int port, RewardConnectionPool pool) {
+		this(host, port);
+		this.pool = pool;
+	}
+
+	/**
+	 * Sets the time to wait for the response of each query, DEFAULT_TIMEOUT unless specified.
+	 *
+	 * @param timeout the time to wait for a response
+	 * @param unit the unit of timeout
+	 */
+	public void setTimeout(long timeout, TimeUnit unit) {
+		this.timeoutMillis = unit.toMillis(timeout);
+	}
+
+	/**
+	 * Makes recIssueHelperPre take triples (s, r, h) precomputed in the background,
+	 * so that issuance does no elliptic curve work before querying the master.
+	 * See RewardScheme.setPrecomputation.
+	 * 
+	 * @param lowWatermark the number of triples left at which they are refilled
+	 * @param highWatermark the number of triples to keep ready, or 0 to disable precomputation
+	 */
+	public void setPrecomputation(int lowWatermark, int highWatermark) {
+		rewardScheme.setPrecomputation(lowWatermark, highWatermark);
+	}
+
+	/**
+	 * Get y that helper currently thinks that Master holds
+	 *
+	 * @return the y that helper currently thinks that Master holds
+	 */
+	public byte[] gety() {
+		return rewardScheme.y.toBytes();
+	}
+
+	/**
+	 * Congifure engine of the query class, so that it can be act as a helper.
+	 *
+	 * @return the future which completes once configured
+	 */
+	public CompletableFuture<Void> configureAsHelper() {
+		// Packet for RewardScheme.y / pid 101
+		return query(RewardPacket.newBuilder()
+						.setPid(101)
+						.build())
+				.thenApply(new Function<RewardPacket, Void>() {
+					@Override
+					public Void apply(RewardPacket recvPacket) {
+						Element y = rewardScheme.G2.newElementFromBytes(recvPacket.getE1().toByteArray()).getImmutable();
+						rewardScheme.configureAsHelper(y);
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * Returns random serial number s, random number r, and
+	 * computed value h to Helper, as RewardQuery.recIssueHelperPre does.
+	 *
+	 * @return the serial number s, random number r, and computed h in Element[] form with corresponding order.
+	 */
+	public byte[][] recIssueHelperPre() {
+		Element[] rtn = rewardScheme.recIssueHelperPre();
+
+		byte[][] rtnBytes = new byte[3][];
+		for (int i = 0; i < rtn.length; i++) {
+			rtnBytes[i] = rtn[i].toBytes();
+		}
+		return rtnBytes;
+	}
+
+	/**
+	 * Returns element psi which master generates in recIssue Process.
+	 *
+	 * @param hBytes the element generated and provided by Helper
+	 * @return the future mid-computation element psi for Helper, which is null if the server refused the request
+	 */
+	public CompletableFuture<byte[]> recIssueMaster(byte[] hBytes) {
+		// Packet for RewardScheme.recIssueMaster / pid 1
+		return query(RewardPacket.newBuilder()
+						.setPid(1)
+						.setE1(ByteString.copyFrom(hBytes))
+						.build())
+				.thenApply(new Function<RewardPacket, byte[]>() {
+					@Override
+					public byte[] apply(RewardPacket recvPacket) {
+						if (recvPacket.getPid() == 999 || recvPacket.getPid() == 998) {
+							return null;
+						}
+						return recvPacket.getE1().toByteArray();
+					}
+				});
+	}
+
+	/**
+	 * Returns elements psi which master generates for many h in a single round trip.
+	 *
+	 * @param hBytesList the elements generated and provided by Helper
+	 * @return the future mid-computation elements psi, in the same order as hBytesList, which is null if the server refused the request
+	 */
+	public CompletableFuture<List<byte[]>> recIssueMasterBatch(List<byte[]> hBytesList) {
+		// Packet for RewardScheme.recIssueMasterBatch / pid 5
+		return query(RewardPacket.newBuilder()
+						.setPid(5)
+						.addAllEList1(BytesListToByteStringList(hBytesList))
+						.build())
+				.thenApply(new Function<RewardPacket, List<byte[]>>() {
+					@Override
+					public List<byte[]> apply(RewardPacket recvPacket) {
+						if (recvPacket.getPid() == 999 || recvPacket.getPid() == 998) {
+							return null;
+						}
+						List<byte[]> psiBytesList = new ArrayList<byte[]>();
+						for (ByteString psi : recvPacket.getEList1List()) {
+							psiBytesList.add(psi.toByteArray());
+						}
+						return psiBytesList;
+					}
+				});
+	}
+
+	/**
+	 * Returns the receipt sigma for Helper, as RewardQuery.recIssueHelperPost does.
+	 *
+	 * @param rBytes mid-computation value generate by Helper
+	 * @param psiBytes mid-computation value generated by Master
+	 * @param yBytes the verification key vk
+	 * @return the receipt sigma for Helper
+	 */
+	public byte[] recIssueHelperPost(byte[] rBytes, byte[] psiBytes, byte[] yBytes) {
+		Element sigma = rewardScheme.recIssueHelperPost(
+				rewardScheme.Zr.newElementFromBytes(rBytes),
+				rewardScheme.G1.newElementFromBytes(psiBytes),
+				rewardScheme.y).getImmutable();
+		return sigma.toBytes();
+	}
+
+	/**
+	 * Returns boolean value which indicates the validness of the signature sigma.
+	 *
+	 * @param sigmaBytes the receipt generated by Helper
+	 * @param sBytes the random number generated by Helper
+	 * @param yBytes the verification key vk
+	 * @return the future validness of the signature sigma
+	 */
+	public CompletableFuture<Boolean> verify(byte[] sigmaBytes, byte[] sBytes, byte[] yBytes) {
+		// Packet for RewardScheme.verify / pid 2
+		return isValid(query(RewardPacket.newBuilder()
+						.setPid(2)
+						.setE1(ByteString.copyFrom(sigmaBytes))
+						.setE2(ByteString.copyFrom(sBytes))
+						.setE3(ByteString.copyFrom(gety()))
+						.build()));
+	}
+
+	/**
+	 * Returns boolean value which indicates the validness of the
+	 * aggregated signature sigma.
+	 *
+	 * @param sigmaAggBytes the aggregated signature sigma
+	 * @param sBytesList the arraylist of random serial number s
+	 * @param yBytesList the arraylist of verification key vk, or y
+	 * @return the future validness of the aggregated signature sigma
+	 */
+	public CompletableFuture<Boolean> aggVerify(byte[] sigmaAggBytes, List<byte[]> sBytesList, List<byte[]> yBytesList) {
+		// Packet for RewardScheme.aggVerify / pid 3
+		return isValid(query(RewardPacket.newBuilder()
+						.setPid(3)
+						.setE1(ByteString.copyFrom(sigmaAggBytes))
+						.addAllEList1(BytesListToByteStringList(sBytesList))
+						.addAllEList2(BytesListToByteStringList(yBytesList))
+						.build()));
+	}
+
+	/**
+	 * Returns per-receipt validness of the signatures sigma, all issued under
+	 * the same verification key y, in a single round trip.
+	 *
+	 * @param sigmaBytesList the arraylist of receipts generated by Helper
+	 * @param sBytesList the arraylist of random serial number s, in the same order as sigmaBytesList
+	 * @param yBytes the verification key vk
+	 * @return the future validness of each signature sigma, which is null if the server refused the request
+	 */
+	public CompletableFuture<boolean[]> batchVerify(List<byte[]> sigmaBytesList, List<byte[]> sBytesList, byte[] yBytes) {
+		// Packet for RewardScheme.batchVerify / pid 4
+		return query(RewardPacket.newBuilder()
+						.setPid(4)
+						.addAllEList1(BytesListToByteStringList(sigmaBytesList))
+						.addAllEList2(BytesListToByteStringList(sBytesList))
+						.setE3(ByteString.copyFrom(yBytes))
+						.build())
+				.thenApply(new Function<RewardPacket, boolean[]>() {
+					@Override
+					public boolean[] apply(RewardPacket recvPacket) {
+						if (recvPacket.getPid() == 999 || recvPacket.getPid() == 998) {
+							return null;
+						}
+						boolean[] isValid = new boolean[recvPacket.getIsValidListCount()];
+						for (int i = 0; i < isValid.length; i++) {
+							isValid[i] = recvPacket.getIsValidList(i);
+						}
+						return isValid;
+					}
+				});
+	}
+
+	private CompletableFuture<Boolean> isValid(CompletableFuture<RewardPacket> response) {
+		return response.thenApply(new Function<RewardPacket, Boolean>() {
+			@Override
+			public Boolean apply(RewardPacket recvPacket) {
+				return recvPacket.getIsValid();
+			}
+		});
+	}
+
+	private CompletableFuture<RewardPacket> query(RewardPacket packet) {
+		return query(packet, 0);
+	}
+
+	/*
+	 * Sends a packet over a pooled connection. A busy response (pid 998) is retried
+	 * after the delay the server asks for, up to RewardQuery.MAX_BUSY_RETRIES times.
+	 */
+	private CompletableFuture<RewardPacket> query(final RewardPacket packet, final int retries) {
+		if (pool == null) {
+			try {
+				pool = RewardConnectionPool.getDefault();
+			} catch (IOException e) {
+				CompletableFuture<RewardPacket> response = new CompletableFuture<RewardPacket>();
+				response.completeExceptionally(e);
+				return response;
+			}
+		}
+		CompletableFuture<RewardPacket> response = pool.getAsync(host, port).thenCompose(new Function<RewardConnection, CompletionStage<RewardPacket>>() {
+			@Override
+			public CompletionStage<RewardPacket> apply(RewardConnection conn) {
+				return conn.send(packet, timeoutMillis, TimeUnit.MILLISECONDS);
+			}
+		});
+
+		return response.thenCompose(new Function<RewardPacket, CompletionStage<RewardPacket>>() {
+			@Override
+			public CompletionStage<RewardPacket> apply(RewardPacket recvPacket) {
+				if (recvPacket.getPid() != 998 || retries >= RewardQuery.MAX_BUSY_RETRIES) {
+					return CompletableFuture.completedFuture(recvPacket);
+				}
+				final CompletableFuture<RewardPacket> retry = new CompletableFuture<RewardPacket>();
+				RewardConnection.timer().schedule(new Runnable() {
+					@Override
+					public void run() {
+						query(packet, retries + 1).whenComplete(new BiConsumer<RewardPacket, Throwable>() {
+							@Override
+							public void accept(RewardPacket recvPacket, Throwable exc) {
+								if (exc != null) {
+									retry.completeExceptionally(exc);
+								}
+								else {
+									retry.complete(recvPacket);
+								}
+							}
+						});
+					}
+				}, recvPacket.getRetryAfter(), TimeUnit.MILLISECONDS);
+				return retry;
+			}
+		});
+	}
+
+	private List<ByteString> BytesListToByteStringList(List<byte[]> bList) {
+		List<ByteString> bsList= new ArrayList<ByteString>();
+		for (byte[] b : bList) {
+			bsList.add(b == null ? null : ByteString.copyFrom(b));
+		}
+		return bsList;
+	}
+}
@@ -9,6 +9,8 @@ import java.nio.channels.CompletionHandler;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import com.google.protobuf.CodedInputStream;
+
 import kr.ac.mju.islab.RewardProto.RewardPacket;
 
 /**
@@ -54,18 +56,17 @@ public class RewardClient {
    
     private void startWrite(final AsynchronousSocketChannel sockChannel, final RewardPacket packet) {
     	// Prepend packetLenInfo to the RewardPacket, so that the other side can determine the packet size
-    	int packetLen = packet.toByteArray().length;
-    	byte[] packetLenInfo = ByteBuffer.allocate(4).putInt(packetLen).array();
-
-        ByteBuffer buf = ByteBuffer.allocate(4 + packetLen);
-        buf.put(packetLenInfo);
-        buf.put(packet.toByteArray());
-        buf.flip();
+        final ByteBuffer buf = FrameDecoder.encode(packet, ByteBufferPool.getDefault());
         // END
 
         sockChannel.write(buf, sockChannel, new CompletionHandler<Integer, AsynchronousSocketChannel>() {
             @Override
             public void completed(Integer result, AsynchronousSocketChannel channel) {
+				if (buf.hasRemaining()) {
+					channel.write(buf, channel, this);
+					return;
+				}
+				ByteBufferPool.getDefault().release(buf);
 				//start to read message
 				startRead(channel); 
 			}
@@ -78,29 +79,38 @@ public class RewardClient {
     }
     
     private void startRead(final AsynchronousSocketChannel sockChannel) {
-        final ByteBuffer buf = ByteBuffer.allocate(32768);	// Capable of dealing with #100 aggregated receipt
-        
-        sockChannel.read(buf, sockChannel, new CompletionHandler<Integer, AsynchronousSocketChannel>(){
+        startRead(sockChannel, new FrameDecoder());
+    }
+    
+    private void startRead(final AsynchronousSocketChannel sockChannel, final FrameDecoder decoder) {
+        sockChannel.read(decoder.buffer(), sockChannel, new CompletionHandler<Integer, AsynchronousSocketChannel>(){
             @Override
             public void completed(Integer result, AsynchronousSocketChannel channel) {   
-            	// Process header to get a length of received packet.
-            	byte[] packetLenInfo = new byte[4];
-				buf.flip();
-            	buf.get(packetLenInfo);
-				buf.compact();
-            	
-				byte[] recvBytePacket = new byte[ByteBuffer.wrap(packetLenInfo).getInt()];
-				if (recvBytePacket.length > 32768) {
-					System.out.println("Buffer size is smaller than received packet size: " + recvBytePacket.length);
+            	// Read until the whole packet, prefixed by its length, arrives.
+				ByteBuffer recvFrame = null;
+				try {
+					recvFrame = decoder.pollBuffer();
+				} catch (IOException e) {	// Oversized packet, whose rest cannot be told from the next
+					System.err.println(e.getMessage());
+					try {
+						sockChannel.close();
+						group.shutdownNow();
+					} catch (IOException e1) {
+						e1.printStackTrace();
+					}
+					return;
+				}
+				if (recvFrame == null && result >= 0) {
+					startRead(channel, decoder);
+					return;
 				}
-				buf.flip();
-				buf.get(recvBytePacket);
-				buf.compact();
 				// END
 
             	// Save received packet from server into public variable rtnPacket
 				try {
-					recvPacket = RewardPacket.parseFrom(recvBytePacket);
+					if (recvFrame != null) {
+						recvPacket = RewardPacket.parseFrom(CodedInputStream.newInstance(recvFrame));
+					}
 					sockChannel.close();
 					group.shutdownNow();
 				} catch (IOException e) {
@@ -0,0 +1,328 @@
+package kr.ac.mju.islab;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import com.google.protobuf.CodedInputStream;
+
+import kr.ac.mju.islab.RewardProto.RewardPacket;
+
+/**
+ * RewardConnection is a long-lived connection to RewardServer,
+ * over which many requests can be outstanding at once.
+ * <p>
+ * Each request is tagged with a request ID (rid), and RewardServer echoes it in the response,
+ * so that responses are matched to requests even if they arrive out of order.
+ * Unlike RewardClient, which connects once per request, a connection is reused until closed.
+ * <p>
+ * A server which does not echo request IDs, e.g. RewardAndroidServer, answers only the first request
+ * of a connection, and closes it. Its response is matched to that request, and the connection is
+ * closed as well, failing other outstanding requests. isLegacy tells such servers apart.
+ * <p>
+ * Usually you would get a connection from RewardConnectionPool rather than create one.
+ */
+public class RewardConnection implements Closeable {
+	private static ScheduledThreadPoolExecutor timer;	// Times out requests. Created on first use.
+
+	private final AsynchronousSocketChannel channel;
+	private final AtomicLong nextRid = new AtomicLong(1);
+	private final Map<Long, CompletableFuture<RewardPacket>> pending = new ConcurrentHashMap<Long, CompletableFuture<RewardPacket>>();
+	private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicBoolean writing = new AtomicBoolean();
+	private final FrameDecoder decoder = new FrameDecoder();
+	private final ByteBufferPool bufferPool = ByteBufferPool.getDefault();
+	private volatile boolean closed;
+	private volatile boolean legacy;	// Whether the server answered without a request ID.
+	private long firstRid;	// The request ID of the first request written, guarded by writeQueue.
+
+	/**
+	 * Class constructor specifying host ip, port, and the channel group to run on.
+	 * Returns once connected.
+	 *
+	 * @param host the ip of server to connect
+	 * @param port the port of server to connect
+	 * @param group the channel group which handles I/O of the connection
+	 * @throws IOException Signals that an I/O exception of some sort has occurred
+	 * @throws InterruptedException Thrown when a thread is waiting, sleeping, or otherwise occupied, and the thread is interrupted, either before or during the activity
+	 */
+	public RewardConnection(String host, int port, AsynchronousChannelGroup group) throws IOException, InterruptedException {
+		channel = AsynchronousSocketChannel.open(group);
+		try {
+			channel.connect(new InetSocketAddress(host, port)).get();
+		} catch (ExecutionException e) {
+			channel.close();
+			throw new IOException("Fail to connect to " + host + ":" + port, e.getCause());
+		} catch (InterruptedException e) {
+			channel.close();
+			throw e;
+		}
+		startRead();
+	}
+
+	private RewardConnection(AsynchronousSocketChannel channel) {
+		this.channel = channel;
+		startRead();
+	}
+
+	/**
+	 * Connects to the server without blocking.
+	 *
+	 * @param host the ip of server to connect
+	 * @param port the port of server to connect
+	 * @param group the channel group which handles I/O of the connection
+	 * @return the future connection, which fails with IOException if it cannot connect
+	 */
+	public static CompletableFuture<RewardConnection> connect(final String host, final int port, AsynchronousChannelGroup group) {
+		final CompletableFuture<RewardConnection> future = new CompletableFuture<RewardConnection>();
+		final AsynchronousSocketChannel channel;
+		try {
+			channel = AsynchronousSocketChannel.open(group);
+		} catch (IOException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+		channel.connect(new InetSocketAddress(host, port), null, new CompletionHandler<Void, Void>() {
+			@Override
+			public void completed(Void result, Void attachment) {
+				future.complete(new RewardConnection(channel));
+			}
+
+			@Override
+			public void failed(Throwable exc, Void attachment) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+				}
+				future.completeExceptionally(new IOException("Fail to connect to " + host + ":" + port, exc));
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Sends a request. The request ID of packet is replaced by a new one of this connection.
+	 *
+	 * @param packet the request
+	 * @return the future response, which fails with IOException if the connection is closed before
+	 */
+	public CompletableFuture<RewardPacket> send(RewardPacket packet) {
+		long rid = nextRid.getAndIncrement();
+		return send(packet, rid);
+	}
+
+	/**
+	 * Sends a request, which fails with TimeoutException unless answered within the timeout.
+	 * A response arriving afterwards is discarded.
+	 * The request ID of packet is replaced by a new one of this connection.
+	 *
+	 * @param packet the request
+	 * @param timeout the time to wait for the response
+	 * @param unit the unit of timeout
+	 * @return the future response, which fails with IOException if the connection is closed before
+	 */
+	public CompletableFuture<RewardPacket> send(RewardPacket packet, long timeout, TimeUnit unit) {
+		final long rid = nextRid.getAndIncrement();
+		final CompletableFuture<RewardPacket> future = send(packet, rid);
+		if (future.isDone()) {
+			return future;
+		}
+		final ScheduledFuture<?> timeoutTask = timer().schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (pending.remove(rid, future)) {
+					future.completeExceptionally(new TimeoutException("No response to request " + rid));
+				}
+			}
+		}, timeout, unit);
+		future.whenComplete(new BiConsumer<RewardPacket, Throwable>() {
+			@Override
+			public void accept(RewardPacket recvPacket, Throwable exc) {
+				timeoutTask.cancel(false);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Returns the daemon thread which times out requests, shared by connections.
+	 * It can run other short tasks as well, e.g. delayed retries.
+	 *
+	 * @return the shared timer
+	 */
+	static synchronized ScheduledExecutorService timer() {
+		if (timer == null) {
+			timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "RewardConnection-timer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			timer.setRemoveOnCancelPolicy(true);	// Most requests are answered in time.
+		}
+		return timer;
+	}
+
+	/**
+	 * Returns whether the connection can send requests.
+	 *
+	 * @return true if the connection is open
+	 */
+	public boolean isOpen() {
+		return closed == false;
+	}
+
+	/**
+	 * Returns whether the server answered without a request ID, as a server which does not support
+	 * persistent connections does. The connection is closed then.
+	 *
+	 * @return true if the server does not echo request IDs
+	 */
+	public boolean isLegacy() {
+		return legacy;
+	}
+
+	/**
+	 * Returns the number of requests waiting for their responses.
+	 *
+	 * @return the number of outstanding requests
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Closes the connection. Outstanding requests fail with IOException.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+		for (Long rid : pending.keySet()) {
+			CompletableFuture<RewardPacket> future = pending.remove(rid);
+			if (future != null) {
+				future.completeExceptionally(new IOException("Connection closed"));
+			}
+		}
+	}
+
+	private CompletableFuture<RewardPacket> send(RewardPacket packet, long rid) {
+		CompletableFuture<RewardPacket> future = new CompletableFuture<RewardPacket>();
+		pending.put(rid, future);
+		if (closed) {
+			pending.remove(rid);
+			future.completeExceptionally(new IOException("Connection closed"));
+			return future;
+		}
+
+		// Prepend packetLenInfo to the RewardPacket, so that the other side can determine the packet size
+		ByteBuffer sendBuf = FrameDecoder.encode(packet.toBuilder().setRid(rid).build(), bufferPool);
+		synchronized (writeQueue) {	// Requests are written in the order they are queued.
+			if (firstRid == 0) {
+				firstRid = rid;
+			}
+			writeQueue.add(sendBuf);
+		}
+		startWrite();
+		return future;
+	}
+
+	/*
+	 * Writes queued requests one at a time, as a channel allows only one pending write.
+	 */
+	private void startWrite() {
+		while (writeQueue.isEmpty() == false && writing.compareAndSet(false, true)) {
+			ByteBuffer sendBuf = writeQueue.peek();
+			if (sendBuf == null) {
+				writing.set(false);
+				continue;
+			}
+			channel.write(sendBuf, sendBuf, new CompletionHandler<Integer, ByteBuffer>() {
+				@Override
+				public void completed(Integer result, ByteBuffer sendBuf) {
+					if (sendBuf.hasRemaining()) {
+						channel.write(sendBuf, sendBuf, this);
+						return;
+					}
+					bufferPool.release(writeQueue.poll());
+					writing.set(false);
+					startWrite();
+				}
+
+				@Override
+				public void failed(Throwable exc, ByteBuffer sendBuf) {
+					close();
+				}
+			});
+			return;
+		}
+	}
+
+	private void startRead() {
+		channel.read(decoder.buffer(), null, new CompletionHandler<Integer, Void>() {
+			@Override
+			public void completed(Integer result, Void attachment) {
+				if (result < 0) {
+					close();
+					return;
+				}
+
+				// Complete every response received, each prefixed by its length.
+				try {
+					ByteBuffer recvFrame;
+					while ((recvFrame = decoder.pollBuffer()) != null) {
+						RewardPacket recvPacket = RewardPacket.parseFrom(CodedInputStream.newInstance(recvFrame));
+						long rid = recvPacket.getRid();
+						if (rid == 0) {	// A legacy server, which answers the first request only.
+							legacy = true;
+							synchronized (writeQueue) {
+								rid = firstRid;
+							}
+						}
+						CompletableFuture<RewardPacket> future = pending.remove(rid);
+						if (future != null) {
+							future.complete(recvPacket);
+						}
+						if (legacy) {
+							close();
+							return;
+						}
+					}
+				} catch (IOException e) {	// Malformed or oversized packet
+					close();
+					return;
+				}
+				startRead();
+			}
+
+			@Override
+			public void failed(Throwable exc, Void attachment) {
+				close();
+			}
+		});
+	}
+}
@@ -0,0 +1,207 @@
+package kr.ac.mju.islab;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import kr.ac.mju.islab.RewardProto.RewardPacket;
+
+/**
+ * RewardConnectionPool keeps RewardConnections to RewardServers open, so that
+ * queries reuse connections instead of paying for a TCP setup and a thread pool each time.
+ * <p>
+ * Each server gets up to connectionsPerServer connections, which are handed out round-robin
+ * and reopened when closed. All connections share one channel group of daemon threads.
+ * getAsync connects without blocking, for callers which must not wait, such as RewardAsyncQuery.
+ * <p>
+ * A server which turns out not to echo request IDs, such as RewardAndroidServer or a RewardServer
+ * older than persistent connections, is remembered, and query falls back to a connection
+ * per request for it, as RewardClient does.
+ * <p>
+ * RewardQuery uses the pool returned by getDefault() unless specified.
+ */
+public class RewardConnectionPool implements Closeable {
+	public static final int DEFAULT_CONNECTIONS_PER_SERVER = 2;
+	public static final int DEFAULT_THREADS = 2;
+	private static RewardConnectionPool defaultPool;
+
+	private final AsynchronousChannelGroup group;
+	private final int connectionsPerServer;
+	private final ConcurrentHashMap<String, List<CompletableFuture<RewardConnection>>> connections = new ConcurrentHashMap<String, List<CompletableFuture<RewardConnection>>>();
+	private final AtomicInteger next = new AtomicInteger();
+	private final Set<String> legacyServers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Returns the pool shared by RewardQuery objects.
+	 *
+	 * @return the shared pool
+	 * @throws IOException Signals that an I/O exception of some sort has occurred
+	 */
+	public static synchronized RewardConnectionPool getDefault() throws IOException {
+		if (defaultPool == null) {
+			defaultPool = new RewardConnectionPool(DEFAULT_CONNECTIONS_PER_SERVER, DEFAULT_THREADS);
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * Class constructor specifying the number of connections per server, and
+	 * the number of I/O threads.
+	 *
+	 * @param connectionsPerServer the maximum number of connections to each server
+	 * @param numThreads the number of threads which handle I/O of every connection
+	 * @throws IOException Signals that an I/O exception of some sort has occurred
+	 */
+	public RewardConnectionPool(int connectionsPerServer, int numThreads) throws IOException {
+		this.connectionsPerServer = connectionsPerServer;
+		this.group = AsynchronousChannelGroup.withFixedThreadPool(numThreads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "RewardConnectionPool-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Returns an open connection to the server, connecting if needed.
+	 *
+	 * @param host the ip of server to connect
+	 * @param port the port of server to connect
+	 * @return an open connection
+	 * @throws IOException Signals that an I/O exception of some sort has occurred
+	 * @throws InterruptedException Thrown when a thread is waiting, sleeping, or otherwise occupied, and the thread is interrupted, either before or during the activity
+	 */
+	public RewardConnection get(String host, int port) throws IOException, InterruptedException {
+		try {
+			return getAsync(host, port).get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Returns an open connection to the server, connecting without blocking if needed.
+	 * Callers of a connection still connecting share its future.
+	 *
+	 * @param host the ip of server to connect
+	 * @param port the port of server to connect
+	 * @return the future connection, which fails with IOException if it cannot connect
+	 */
+	public CompletableFuture<RewardConnection> getAsync(String host, int port) {
+		String key = host + ":" + port;
+		List<CompletableFuture<RewardConnection>> slots = connections.get(key);
+		if (slots == null) {
+			connections.putIfAbsent(key, new ArrayList<CompletableFuture<RewardConnection>>(Collections.nCopies(connectionsPerServer, (CompletableFuture<RewardConnection>) null)));
+			slots = connections.get(key);
+		}
+
+		int i = (next.getAndIncrement() & 0x7fffffff) % slots.size();
+		synchronized (slots) {
+			CompletableFuture<RewardConnection> conn = slots.get(i);
+			if (conn == null || conn.isCompletedExceptionally() || (conn.isDone() && conn.join().isOpen() == false)) {
+				conn = RewardConnection.connect(host, port, group);
+				slots.set(i, conn);
+			}
+			return conn;
+		}
+	}
+
+	/**
+	 * Sends a request to the server and waits for its response.
+	 *
+	 * @param host the ip of server to connect
+	 * @param port the port of server to connect
+	 * @param packet the request
+	 * @return the response
+	 * @throws IOException Signals that an I/O exception of some sort has occurred
+	 * @throws InterruptedException Thrown when a thread is waiting, sleeping, or otherwise occupied, and the thread is interrupted, either before or during the activity
+	 */
+	public RewardPacket query(String host, int port, RewardPacket packet) throws IOException, InterruptedException {
+		if (isLegacy(host, port)) {
+			return queryOnce(host, port, packet);
+		}
+		RewardConnection conn = get(host, port);
+		try {
+			RewardPacket recvPacket = conn.send(packet).get();
+			if (conn.isLegacy()) {
+				legacyServers.add(host + ":" + port);
+			}
+			return recvPacket;
+		} catch (ExecutionException e) {
+			if (conn.isLegacy()) {	// Another request was answered on the connection, and this one dropped.
+				legacyServers.add(host + ":" + port);
+				return queryOnce(host, port, packet);
+			}
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Returns whether the server is known not to echo request IDs, so that it is sent
+	 * a request per connection.
+	 *
+	 * @param host the ip of server
+	 * @param port the port of server
+	 * @return true if the server does not support persistent connections
+	 */
+	public boolean isLegacy(String host, int port) {
+		return legacyServers.contains(host + ":" + port);
+	}
+
+	/*
+	 * Sends a request on a connection of its own, as servers without request IDs expect.
+	 */
+	private RewardPacket queryOnce(String host, int port, RewardPacket packet) throws IOException, InterruptedException {
+		RewardPacket recvPacket = new RewardClient(host, port, packet.toBuilder().clearRid().build()).recvPacket;
+		if (recvPacket == null) {
+			throw new IOException("No response from " + host + ":" + port);
+		}
+		return recvPacket;
+	}
+
+	/**
+	 * Closes every connection and the channel group.
+	 */
+	@Override
+	public void close() {
+		for (List<CompletableFuture<RewardConnection>> slots : connections.values()) {
+			synchronized (slots) {
+				for (CompletableFuture<RewardConnection> conn : slots) {
+					if (conn != null) {
+						conn.thenAccept(new Consumer<RewardConnection>() {	// Once connected, if still connecting.
+							@Override
+							public void accept(RewardConnection conn) {
+								conn.close();
+							}
+						});
+					}
+				}
+			}
+		}
+		connections.clear();
+		try {
+			group.shutdownNow();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -87,6 +87,59 @@ public final class RewardProto {
      */
     com.google.protobuf.ByteString
         getAuxBytes(int index);
+
+    /**
+     * <code>repeated bool isValidList = 9;</code>
+     */
+    java.util.List<java.lang.Boolean> getIsValidListList();
+    /**
+     * <code>repeated bool isValidList = 9;</code>
+     */
+    int getIsValidListCount();
+    /**
+     * <code>repeated bool isValidList = 9;</code>
+     */
+    boolean getIsValidList(int index);
+
+    /**
+     * <pre>
+     * Request ID, echoed in the response. Non-zero keeps the connection open for more requests.
+     * </pre>
+     *
+     * <code>optional int64 rid = 10;</code>
+     */
+    long getRid();
+
+    /**
+     * <pre>
+     * Milliseconds to wait before retrying, sent with pid 998 when the server is too busy to accept the request.
+     * </pre>
+     *
+     * <code>optional int32 retryAfter = 11;</code>
+     */
+    int getRetryAfter();
+
+    /**
+     * <pre>
+     * Identifier of the verification key y, advertised with y in pid 101 responses.
+     * Verify requests may carry it instead of y, and pid 101 requests carry the one already known,
+     * so that y is sent only if it has changed. A stale one is answered with pid 997.
+     * </pre>
+     *
+     * <code>optional int64 keyId = 12;</code>
+     */
+    long getKeyId();
+
+    /**
+     * <pre>
+     * Whether the points (G1 and G2 elements) of the packet are compressed, i.e. the x coordinate and the sign of y.
+     * Sent in a pid 101 request to ask for compressed points. A server which supports them answers with it set,
+     * and then answers requests which set it in kind. Other servers ignore it, so that points are sent in full.
+     * </pre>
+     *
+     * <code>optional bool compressed = 13;</code>
+     */
+    boolean getCompressed();
   }
   /**
    * Protobuf type {@code reward.RewardPacket}
@@ -108,6 +161,11 @@ public final class RewardProto {
       eList1_ = java.util.Collections.emptyList();
       eList2_ = java.util.Collections.emptyList();
       aux_ = com.google.protobuf.LazyStringArrayList.EMPTY;
+      isValidList_ = java.util.Collections.emptyList();
+      rid_ = 0L;
+      retryAfter_ = 0;
+      keyId_ = 0L;
+      compressed_ = false;
     }
 
     @java.lang.Override
@@ -185,6 +243,47 @@ public final class RewardProto {
               aux_.add(s);
               break;
             }
+            case 72: {
+              if (!((mutable_bitField0_ & 0x00000100) == 0x00000100)) {
+                isValidList_ = new java.util.ArrayList<java.lang.Boolean>();
+                mutable_bitField0_ |= 0x00000100;
+              }
+              isValidList_.add(input.readBool());
+              break;
+            }
+            case 74: {
+              int length = input.readRawVarint32();
+              int limit = input.pushLimit(length);
+              if (!((mutable_bitField0_ & 0x00000100) == 0x00000100) && input.getBytesUntilLimit() > 0) {
+                isValidList_ = new java.util.ArrayList<java.lang.Boolean>();
+                mutable_bitField0_ |= 0x00000100;
+              }
+              while (input.getBytesUntilLimit() > 0) {
+                isValidList_.add(input.readBool());
+              }
+              input.popLimit(limit);
+              break;
+            }
+            case 80: {
+
+              rid_ = input.readInt64();
+              break;
+            }
+            case 88: {
+
+              retryAfter_ = input.readInt32();
+              break;
+            }
+            case 96: {
+
+              keyId_ = input.readInt64();
+              break;
+            }
+            case 104: {
+
+              compressed_ = input.readBool();
+              break;
+            }
           }
         }
       } catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -202,6 +301,9 @@ public final class RewardProto {
         if (((mutable_bitField0_ & 0x00000080) == 0x00000080)) {
           aux_ = aux_.getUnmodifiableView();
         }
+        if (((mutable_bitField0_ & 0x00000100) == 0x00000100)) {
+          isValidList_ = java.util.Collections.unmodifiableList(isValidList_);
+        }
         makeExtensionsImmutable();
       }
     }
@@ -336,6 +438,85 @@ public final class RewardProto {
       return aux_.getByteString(index);
     }
 
+    public static final int ISVALIDLIST_FIELD_NUMBER = 9;
+    private java.util.List<java.lang.Boolean> isValidList_;
+    /**
+     * <code>repeated bool isValidList = 9;</code>
+     */
+    public java.util.List<java.lang.Boolean>
+        getIsValidListList() {
+      return isValidList_;
+    }
+    /**
+     * <code>repeated bool isValidList = 9;</code>
+     */
+    public int getIsValidListCount() {
+      return isValidList_.size();
+    }
+    /**
+     * <code>repeated bool isValidList = 9;</code>
+     */
+    public boolean getIsValidList(int index) {
+      return isValidList_.get(index);
+    }
+    private int isValidListMemoizedSerializedSize = -1;
+
+    public static final int RID_FIELD_NUMBER = 10;
+    private long rid_;
+    /**
+     * <pre>
+     * Request ID, echoed in the response. Non-zero keeps the connection open for more requests.
+     * </pre>
+     *
+     * <code>optional int64 rid = 10;</code>
+     */
+    public long getRid() {
+      return rid_;
+    }
+
+    public static final int RETRYAFTER_FIELD_NUMBER = 11;
+    private int retryAfter_;
+    /**
+     * <pre>
+     * Milliseconds to wait before retrying, sent with pid 998 when the server is too busy to accept the request.
+     * </pre>
+     *
+     * <code>optional int32 retryAfter = 11;</code>
+     */
+    public int getRetryAfter() {
+      return retryAfter_;
+    }
+
+    public static final int KEYID_FIELD_NUMBER = 12;
+    private long keyId_;
+    /**
+     * <pre>
+     * Identifier of the verification key y, advertised with y in pid 101 responses.
+     * Verify requests may carry it instead of y, and pid 101 requests carry the one already known,
+     * so that y is sent only if it has changed. A stale one is answered with pid 997.
+     * </pre>
+     *
+     * <code>optional int64 keyId = 12;</code>
+     */
+    public long getKeyId() {
+      return keyId_;
+    }
+
+    public static final int COMPRESSED_FIELD_NUMBER = 13;
+    private boolean compressed_;
+    /**
+     * <pre>
+     * Whether the points (G1 and G2 elements) of the packet are compressed, i.e. the x coordinate and the sign of y.
+     * Sent in a pid 101 request to ask for compressed points. A server which supports them answers with it set,
+     * and then answers requests which set it in kind. Other servers ignore it, so that points are sent in full.
+     * </pre>
+     *
+     * <code>optional bool compressed = 13;</code>
+     */
+    public boolean getCompressed() {
+      return compressed_;
+    }
+
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
       byte isInitialized = memoizedIsInitialized;
@@ -348,6 +529,7 @@ public final class RewardProto {
 
     public void writeTo(com.google.protobuf.CodedOutputStream output)
                         throws java.io.IOException {
+      getSerializedSize();
       if (pid_ != 0) {
         output.writeInt32(1, pid_);
       }
@@ -372,6 +554,25 @@ public final class RewardProto {
       for (int i = 0; i < aux_.size(); i++) {
         com.google.protobuf.GeneratedMessageV3.writeString(output, 8, aux_.getRaw(i));
       }
+      if (getIsValidListList().size() > 0) {
+        output.writeUInt32NoTag(74);
+        output.writeUInt32NoTag(isValidListMemoizedSerializedSize);
+      }
+      for (int i = 0; i < isValidList_.size(); i++) {
+        output.writeBoolNoTag(isValidList_.get(i));
+      }
+      if (rid_ != 0L) {
+        output.writeInt64(10, rid_);
+      }
+      if (retryAfter_ != 0) {
+        output.writeInt32(11, retryAfter_);
+      }
+      if (keyId_ != 0L) {
+        output.writeInt64(12, keyId_);
+      }
+      if (compressed_ != false) {
+        output.writeBool(13, compressed_);
+      }
     }
 
     public int getSerializedSize() {
@@ -425,6 +626,33 @@ public final class RewardProto {
         size += dataSize;
         size += 1 * getAuxList().size();
       }
+      {
+        int dataSize = 0;
+        dataSize = 1 * getIsValidListList().size();
+        size += dataSize;
+        if (!getIsValidListList().isEmpty()) {
+          size += 1;
+          size += com.google.protobuf.CodedOutputStream
+              .computeInt32SizeNoTag(dataSize);
+        }
+        isValidListMemoizedSerializedSize = dataSize;
+      }
+      if (rid_ != 0L) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt64Size(10, rid_);
+      }
+      if (retryAfter_ != 0) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt32Size(11, retryAfter_);
+      }
+      if (keyId_ != 0L) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeInt64Size(12, keyId_);
+      }
+      if (compressed_ != false) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(13, compressed_);
+      }
       memoizedSize = size;
       return size;
     }
@@ -457,6 +685,16 @@ public final class RewardProto {
           .equals(other.getEList2List());
       result = result && getAuxList()
           .equals(other.getAuxList());
+      result = result && getIsValidListList()
+          .equals(other.getIsValidListList());
+      result = result && (getRid()
+          == other.getRid());
+      result = result && (getRetryAfter()
+          == other.getRetryAfter());
+      result = result && (getKeyId()
+          == other.getKeyId());
+      result = result && (getCompressed()
+          == other.getCompressed());
       return result;
     }
 
@@ -490,6 +728,21 @@ public final class RewardProto {
         hash = (37 * hash) + AUX_FIELD_NUMBER;
         hash = (53 * hash) + getAuxList().hashCode();
       }
+      if (getIsValidListCount() > 0) {
+        hash = (37 * hash) + ISVALIDLIST_FIELD_NUMBER;
+        hash = (53 * hash) + getIsValidListList().hashCode();
+      }
+      hash = (37 * hash) + RID_FIELD_NUMBER;
+      hash = (53 * hash) + com.google.protobuf.Internal.hashLong(
+          getRid());
+      hash = (37 * hash) + RETRYAFTER_FIELD_NUMBER;
+      hash = (53 * hash) + getRetryAfter();
+      hash = (37 * hash) + KEYID_FIELD_NUMBER;
+      hash = (53 * hash) + com.google.protobuf.Internal.hashLong(
+          getKeyId());
+      hash = (37 * hash) + COMPRESSED_FIELD_NUMBER;
+      hash = (53 * hash) + com.google.protobuf.Internal.hashBoolean(
+          getCompressed());
       hash = (29 * hash) + unknownFields.hashCode();
       memoizedHashCode = hash;
       return hash;
@@ -624,6 +877,16 @@ public final class RewardProto {
         bitField0_ = (bitField0_ & ~0x00000040);
         aux_ = com.google.protobuf.LazyStringArrayList.EMPTY;
         bitField0_ = (bitField0_ & ~0x00000080);
+        isValidList_ = java.util.Collections.emptyList();
+        bitField0_ = (bitField0_ & ~0x00000100);
+        rid_ = 0L;
+
+        retryAfter_ = 0;
+
+        keyId_ = 0L;
+
+        compressed_ = false;
+
         return this;
       }
 
@@ -668,6 +931,15 @@ public final class RewardProto {
           bitField0_ = (bitField0_ & ~0x00000080);
         }
         result.aux_ = aux_;
+        if (((bitField0_ & 0x00000100) == 0x00000100)) {
+          isValidList_ = java.util.Collections.unmodifiableList(isValidList_);
+          bitField0_ = (bitField0_ & ~0x00000100);
+        }
+        result.isValidList_ = isValidList_;
+        result.rid_ = rid_;
+        result.retryAfter_ = retryAfter_;
+        result.keyId_ = keyId_;
+        result.compressed_ = compressed_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -755,6 +1027,28 @@ public final class RewardProto {
           }
           onChanged();
         }
+        if (!other.isValidList_.isEmpty()) {
+          if (isValidList_.isEmpty()) {
+            isValidList_ = other.isValidList_;
+            bitField0_ = (bitField0_ & ~0x00000100);
+          } else {
+            ensureIsValidListIsMutable();
+            isValidList_.addAll(other.isValidList_);
+          }
+          onChanged();
+        }
+        if (other.getRid() != 0L) {
+          setRid(other.getRid());
+        }
+        if (other.getRetryAfter() != 0) {
+          setRetryAfter(other.getRetryAfter());
+        }
+        if (other.getKeyId() != 0L) {
+          setKeyId(other.getKeyId());
+        }
+        if (other.getCompressed() != false) {
+          setCompressed(other.getCompressed());
+        }
         onChanged();
         return this;
       }
@@ -1158,6 +1452,236 @@ public final class RewardProto {
         onChanged();
         return this;
       }
+
+      private java.util.List<java.lang.Boolean> isValidList_ = java.util.Collections.emptyList();
+      private void ensureIsValidListIsMutable() {
+        if (!((bitField0_ & 0x00000100) == 0x00000100)) {
+          isValidList_ = new java.util.ArrayList<java.lang.Boolean>(isValidList_);
+          bitField0_ |= 0x00000100;
+         }
+      }
+      /**
+       * <code>repeated bool isValidList = 9;</code>
+       */
+      public java.util.List<java.lang.Boolean>
+          getIsValidListList() {
+        return java.util.Collections.unmodifiableList(isValidList_);
+      }
+      /**
+       * <code>repeated bool isValidList = 9;</code>
+       */
+      public int getIsValidListCount() {
+        return isValidList_.size();
+      }
+      /**
+       * <code>repeated bool isValidList = 9;</code>
+       */
+      public boolean getIsValidList(int index) {
+        return isValidList_.get(index);
+      }
+      /**
+       * <code>repeated bool isValidList = 9;</code>
+       */
+      public Builder setIsValidList(
+          int index, boolean value) {
+        ensureIsValidListIsMutable();
+        isValidList_.set(index, value);
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>repeated bool isValidList = 9;</code>
+       */
+      public Builder addIsValidList(boolean value) {
+        ensureIsValidListIsMutable();
+        isValidList_.add(value);
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>repeated bool isValidList = 9;</code>
+       */
+      public Builder addAllIsValidList(
+          java.lang.Iterable<? extends java.lang.Boolean> values) {
+        ensureIsValidListIsMutable();
+        com.google.protobuf.AbstractMessageLite.Builder.addAll(
+            values, isValidList_);
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>repeated bool isValidList = 9;</code>
+       */
+      public Builder clearIsValidList() {
+        isValidList_ = java.util.Collections.emptyList();
+        bitField0_ = (bitField0_ & ~0x00000100);
+        onChanged();
+        return this;
+      }
+
+      private long rid_ ;
+      /**
+       * <pre>
+       * Request ID, echoed in the response. Non-zero keeps the connection open for more requests.
+       * </pre>
+       *
+       * <code>optional int64 rid = 10;</code>
+       */
+      public long getRid() {
+        return rid_;
+      }
+      /**
+       * <pre>
+       * Request ID, echoed in the response. Non-zero keeps the connection open for more requests.
+       * </pre>
+       *
+       * <code>optional int64 rid = 10;</code>
+       */
+      public Builder setRid(long value) {
+        
+        rid_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * Request ID, echoed in the response. Non-zero keeps the connection open for more requests.
+       * </pre>
+       *
+       * <code>optional int64 rid = 10;</code>
+       */
+      public Builder clearRid() {
+        
+        rid_ = 0L;
+        onChanged();
+        return this;
+      }
+
+      private int retryAfter_ ;
+      /**
+       * <pre>
+       * Milliseconds to wait before retrying, sent with pid 998 when the server is too busy to accept the request.
+       * </pre>
+       *
+       * <code>optional int32 retryAfter = 11;</code>
+       */
+      public int getRetryAfter() {
+        return retryAfter_;
+      }
+      /**
+       * <pre>
+       * Milliseconds to wait before retrying, sent with pid 998 when the server is too busy to accept the request.
+       * </pre>
+       *
+       * <code>optional int32 retryAfter = 11;</code>
+       */
+      public Builder setRetryAfter(int value) {
+        
+        retryAfter_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * Milliseconds to wait before retrying, sent with pid 998 when the server is too busy to accept the request.
+       * </pre>
+       *
+       * <code>optional int32 retryAfter = 11;</code>
+       */
+      public Builder clearRetryAfter() {
+        
+        retryAfter_ = 0;
+        onChanged();
+        return this;
+      }
+
+      private long keyId_ ;
+      /**
+       * <pre>
+       * Identifier of the verification key y, advertised with y in pid 101 responses.
+       * Verify requests may carry it instead of y, and pid 101 requests carry the one already known,
+       * so that y is sent only if it has changed. A stale one is answered with pid 997.
+       * </pre>
+       *
+       * <code>optional int64 keyId = 12;</code>
+       */
+      public long getKeyId() {
+        return keyId_;
+      }
+      /**
+       * <pre>
+       * Identifier of the verification key y, advertised with y in pid 101 responses.
+       * Verify requests may carry it instead of y, and pid 101 requests carry the one already known,
+       * so that y is sent only if it has changed. A stale one is answered with pid 997.
+       * </pre>
+       *
+       * <code>optional int64 keyId = 12;</code>
+       */
+      public Builder setKeyId(long value) {
+        
+        keyId_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * Identifier of the verification key y, advertised with y in pid 101 responses.
+       * Verify requests may carry it instead of y, and pid 101 requests carry the one already known,
+       * so that y is sent only if it has changed. A stale one is answered with pid 997.
+       * </pre>
+       *
+       * <code>optional int64 keyId = 12;</code>
+       */
+      public Builder clearKeyId() {
+        
+        keyId_ = 0L;
+        onChanged();
+        return this;
+      }
+
+      private boolean compressed_ ;
+      /**
+       * <pre>
+       * Whether the points (G1 and G2 elements) of the packet are compressed, i.e. the x coordinate and the sign of y.
+       * Sent in a pid 101 request to ask for compressed points. A server which supports them answers with it set,
+       * and then answers requests which set it in kind. Other servers ignore it, so that points are sent in full.
+       * </pre>
+       *
+       * <code>optional bool compressed = 13;</code>
+       */
+      public boolean getCompressed() {
+        return compressed_;
+      }
+      /**
+       * <pre>
+       * Whether the points (G1 and G2 elements) of the packet are compressed, i.e. the x coordinate and the sign of y.
+       * Sent in a pid 101 request to ask for compressed points. A server which supports them answers with it set,
+       * and then answers requests which set it in kind. Other servers ignore it, so that points are sent in full.
+       * </pre>
+       *
+       * <code>optional bool compressed = 13;</code>
+       */
+      public Builder setCompressed(boolean value) {
+        
+        compressed_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <pre>
+       * Whether the points (G1 and G2 elements) of the packet are compressed, i.e. the x coordinate and the sign of y.
+       * Sent in a pid 101 request to ask for compressed points. A server which supports them answers with it set,
+       * and then answers requests which set it in kind. Other servers ignore it, so that points are sent in full.
+       * </pre>
+       *
+       * <code>optional bool compressed = 13;</code>
+       */
+      public Builder clearCompressed() {
+        
+        compressed_ = false;
+        onChanged();
+        return this;
+      }
       public final Builder setUnknownFields(
           final com.google.protobuf.UnknownFieldSet unknownFields) {
         return this;
@@ -1221,11 +1745,14 @@ public final class RewardProto {
       descriptor;
   static {
     java.lang.String[] descriptorData = {
-      "\n\022RewardPacket.proto\022\006reward\"}\n\014RewardPa" +
-      "cket\022\013\n\003pid\030\001 \001(\005\022\017\n\007isValid\030\002 \001(\010\022\n\n\002e1" +
-      "\030\003 \001(\014\022\n\n\002e2\030\004 \001(\014\022\n\n\002e3\030\005 \001(\014\022\016\n\006eList1" +
-      "\030\006 \003(\014\022\016\n\006eList2\030\007 \003(\014\022\013\n\003aux\030\010 \003(\tB\036\n\017k" +
-      "r.ac.mju.islabB\013RewardProtob\006proto3"
+      "\n\022RewardPacket.proto\022\006reward\"\326\001\n\014RewardP" +
+      "acket\022\013\n\003pid\030\001 \001(\005\022\017\n\007isValid\030\002 \001(\010\022\n\n\002e" +
+      "1\030\003 \001(\014\022\n\n\002e2\030\004 \001(\014\022\n\n\002e3\030\005 \001(\014\022\016\n\006eList" +
+      "1\030\006 \003(\014\022\016\n\006eList2\030\007 \003(\014\022\013\n\003aux\030\010 \003(\t\022\023\n\013" +
+      "isValidList\030\t \003(\010\022\013\n\003rid\030\n \001(\003\022\022\n\nretryA" +
+      "fter\030\013 \001(\005\022\r\n\005keyId\030\014 \001(\003\022\022\n\ncompressed\030" +
+      "\r \001(\010B\036\n\017kr.ac.mju.islabB\013RewardProtob\006p" +
+      "roto3"
     };
     com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
         new com.google.protobuf.Descriptors.FileDescriptor.    InternalDescriptorAssigner() {
@@ -1244,7 +1771,7 @@ public final class RewardProto {
     internal_static_reward_RewardPacket_fieldAccessorTable = new
       com.google.protobuf.GeneratedMessageV3.FieldAccessorTable(
         internal_static_reward_RewardPacket_descriptor,
-        new java.lang.String[] { "Pid", "IsValid", "E1", "E2", "E3", "EList1", "EList2", "Aux", });
+        new java.lang.String[] { "Pid", "IsValid", "E1", "E2", "E3", "EList1", "EList2", "Aux", "IsValidList", "Rid", "RetryAfter", "KeyId", "Compressed", });
   }
 
   // @@protoc_insertion_point(outer_class_scope)
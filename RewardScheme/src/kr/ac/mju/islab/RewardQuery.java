@@ -5,7 +5,9 @@ import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.IOUtils;
@@ -13,6 +15,8 @@ import org.apache.commons.io.IOUtils;
 import com.google.protobuf.ByteString;
 
 import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.ElementPowPreProcessing;
+import it.unisa.dia.gas.jpbc.Field;
 import kr.ac.mju.islab.RewardProto.RewardPacket;
 
 /**
@@ -24,18 +28,44 @@ import kr.ac.mju.islab.RewardProto.RewardPacket;
  * <p>
  * If you are only interested on application,
  * you do not need to check detailed class like RewardScheme.
+ * <p>
+ * The verification key y is cached under its key ID, along with its fixed-base table,
+ * and shared by every RewardQuery. Once configured, requests carry the key ID instead of y,
+ * and configureAsHelper fetches y again only if the server has a new key.
+ * Key IDs are computed from the keys received, and a server reporting another ID for its key
+ * is refused, so that no server can have the key of another used in its place.
+ * If a request is answered that the server has a new key (pid 997), the new key is fetched,
+ * and the request is sent again with the old y itself.
+ * <p>
+ * configureAsHelper also asks the server for compressed points. If it agrees,
+ * sigma, h, psi, and y are sent compressed, at half the size. Either way,
+ * the methods of RewardQuery take and return points as toBytes does.
  * 
  * @author jwlee
  * @version 1.0.0
  * @since 2017-03-08
  */
 public class RewardQuery {
+	public static final int MAX_BUSY_RETRIES = 3;
 	public String host;
 	public int port;
 	private RewardScheme rewardScheme;
+	private RewardConnectionPool pool;	// null until the first query, if not specified.
+	private CachedKey key;	// The key of rewardScheme.y, null until configured.
+	private boolean useKeyId;	// Whether the server knows keys by their IDs.
+	private boolean compressPoints = true;	// Whether to ask for compressed points.
+	private boolean compressed = false;	// Whether the server agreed to compressed points.
+
+	/*
+	 * Keys seen by any RewardQuery, keyed on the key ID computed from y, and the last key ID of each server.
+	 * As a key ID is derived from y, a cached key is valid for any server with the same ID.
+	 */
+	private static final ConcurrentHashMap<Long, CachedKey> keys = new ConcurrentHashMap<Long, CachedKey>();
+	private static final ConcurrentHashMap<String, Long> lastKeyIds = new ConcurrentHashMap<String, Long>();
 
 	/**
 	 * Class constructor specifying host ip and port.
+	 * Queries share connections of RewardConnectionPool.getDefault().
 	 * 
 	 * @param host the ip of server to connect
 	 * @param port the port of server to connect
@@ -45,6 +75,47 @@ public class RewardQuery {
 		this.port = port;
 		this.rewardScheme = new RewardScheme();
 	}
+	/**
+	 * Class constructor specifying host ip, port, and the pool of connections to use.
+	 * 
+	 * @param host the ip of server to connect
+	 * @param port the port of server to connect
+	 * @param pool the pool of connections to the server
+	 */
+	public RewardQuery(String host, int port, RewardConnectionPool pool) {
+		this(host, port);
+		this.pool = pool;
+	}
+	
+	/**
+	 * Sets whether configureAsHelper asks the server for compressed points, true unless specified.
+	 * 
+	 * @param compressPoints whether to ask for compressed points
+	 */
+	public void setCompressPoints(boolean compressPoints) {
+		this.compressPoints = compressPoints;
+	}
+	
+	/**
+	 * Makes recIssueHelperPre take triples (s, r, h) precomputed in the background,
+	 * so that issuance does no elliptic curve work before querying the master.
+	 * See RewardScheme.setPrecomputation.
+	 * 
+	 * @param lowWatermark the number of triples left at which they are refilled
+	 * @param highWatermark the number of triples to keep ready, or 0 to disable precomputation
+	 */
+	public void setPrecomputation(int lowWatermark, int highWatermark) {
+		rewardScheme.setPrecomputation(lowWatermark, highWatermark);
+	}
+	
+	/**
+	 * Returns whether points are sent compressed, which the server agrees to in configureAsHelper.
+	 * 
+	 * @return whether points are sent compressed
+	 */
+	public boolean isCompressed() {
+		return compressed;
+	}
 	
 	/**
 	 * Get y that helper currently thinks that Master holds
@@ -64,15 +135,54 @@ public class RewardQuery {
 	 * @throws InterruptedException Thrown when a thread is waiting, sleeping, or otherwise occupied, and the thread is interrupted, either before or during the activity
 	 */
 	public void configureAsHelper() throws IOException, InterruptedException {
-		// Packet for RewardScheme.y / pid 101
-		Element y = rewardScheme.G2.newElementFromBytes(
-				new RewardClient(host, port, RewardPacket.newBuilder()
+		// Packet for RewardScheme.y / pid 101, with the key ID we already have, if any.
+		String server = host + ":" + port;
+		Long lastKeyId = lastKeyIds.get(server);
+		RewardPacket recvPacket = query(RewardPacket.newBuilder()
 						.setPid(101)
-						.build())
-				.recvPacket.getE1().toByteArray()
-				).getImmutable();
-
-		this.rewardScheme.configureAsHelper(y);
+						.setKeyId(lastKeyId == null ? 0 : lastKeyId)
+						.setCompressed(compressPoints)
+						.build());
+		this.compressed = recvPacket.getCompressed();
+		
+		// y is left out only if the server has the key we asked with, whose ID we computed ourselves.
+		CachedKey key = null;
+		if (recvPacket.getE1().isEmpty()) {
+			if (lastKeyId != null && recvPacket.getKeyId() == lastKeyId) {
+				key = keys.get(lastKeyId);
+			}
+			if (key == null) {	// y is not cached any more, so ask for it.
+				recvPacket = query(RewardPacket.newBuilder()
+						.setPid(101)
+						.setCompressed(compressed)
+						.build());
+			}
+		}
+		if (key == null) {
+			if (recvPacket.getE1().isEmpty()) {
+				throw new IOException("No verification key from " + server);
+			}
+			Element y = decodePoint(recvPacket.getE1(), compressed, rewardScheme.G2);
+			long keyId = RewardScheme.getKeyId(y);
+			if (recvPacket.getKeyId() != 0 && recvPacket.getKeyId() != keyId) {	// 0 if the server has no key ID.
+				throw new IOException("Key ID mismatch from " + server + ": " + recvPacket.getKeyId() + " for a key of ID " + keyId);
+			}
+			key = keys.get(keyId);
+			if (key == null || key.y.isEqual(y) == false) {
+				this.rewardScheme.configureAsHelper(y);
+				key = new CachedKey(keyId, y, rewardScheme.getYPowTable());
+				keys.put(keyId, key);
+			}
+		}
+		this.rewardScheme.configureAsHelper(key.y, key.yTable);
+		this.useKeyId = recvPacket.getKeyId() != 0;
+		if (useKeyId) {
+			lastKeyIds.put(server, key.keyId);
+		}
+		else {
+			lastKeyIds.remove(server);
+		}
+		this.key = key;
 	}
 	
 	/**
@@ -107,20 +217,78 @@ public class RewardQuery {
 	public byte[] recIssueMaster(byte[] hBytes) throws IOException, InterruptedException {
 		// Pass h to master
 		// Packet for RewardScheme.recIssueMaster / pid 1
-		RewardAndroidClient rtn = new RewardAndroidClient(host, port, RewardPacket.newBuilder()
+		RewardPacket recvPacket = query(RewardPacket.newBuilder()
 						.setPid(1)
-						.setE1(ByteString.copyFrom(hBytes))
+						.setE1(encodePoint(hBytes, rewardScheme.G1))
+						.setCompressed(compressed)
 						.build());
 		Element psi = null;
-		if (rtn.recvPacket.getPid() == 999) {
+		if (recvPacket.getPid() == 999 || recvPacket.getPid() == 998) {
 			return null;
 		}
 		else {
-			psi = rewardScheme.G1.newElementFromBytes(rtn.recvPacket.getE1().toByteArray()).getImmutable();
+			psi = decodePoint(recvPacket.getE1(), recvPacket.getCompressed(), rewardScheme.G1);
 		}
 		return psi.toBytes();
 	}
 	
+	/**
+	 * Returns random serial numbers s, random numbers r, and computed values h
+	 * for n receipts, to be issued at once with recIssueMasterBatch.
+	 * 
+	 * @param n the number of receipts
+	 * @return s, r, and h of each receipt, as recIssueHelperPre returns
+	 */
+	public List<byte[][]> recIssueHelperPreBatch(int n) {
+		List<byte[][]> rtn = new ArrayList<byte[][]>();
+		for (int i = 0; i < n; i++) {
+			rtn.add(recIssueHelperPre());
+		}
+		return rtn;
+	}
+	
+	/**
+	 * Returns elements psi which master generates for many h in a single round trip.
+	 * 
+	 * @param hBytesList the elements generated and provided by Helper
+	 * @return the mid-computation elements psi for Helper, in the same order as hBytesList, or null if the server refused the request
+	 * @throws IOException Signals that an I/O exception of some sort has occurred
+	 * @throws InterruptedException Thrown when a thread is waiting, sleeping, or otherwise occupied, and the thread is interrupted, either before or during the activity
+	 */
+	public List<byte[]> recIssueMasterBatch(List<byte[]> hBytesList) throws IOException, InterruptedException {
+		// Packet for RewardScheme.recIssueMasterBatch / pid 5
+		RewardPacket recvPacket = query(RewardPacket.newBuilder()
+						.setPid(5)
+						.addAllEList1(encodePoints(hBytesList, rewardScheme.G1))
+						.setCompressed(compressed)
+						.build());
+		if (recvPacket.getPid() == 999 || recvPacket.getPid() == 998) {
+			return null;
+		}
+		
+		List<byte[]> psiBytesList = new ArrayList<byte[]>();
+		for (ByteString psi : recvPacket.getEList1List()) {
+			psiBytesList.add(decodePoint(psi, recvPacket.getCompressed(), rewardScheme.G1).toBytes());
+		}
+		return psiBytesList;
+	}
+	
+	/**
+	 * Returns the receipts sigma for Helper from the results of recIssueHelperPreBatch and recIssueMasterBatch.
+	 * 
+	 * @param rBytesList mid-computation values generated by Helper
+	 * @param psiBytesList mid-computation values generated by Master, in the same order as rBytesList
+	 * @param yBytes the verification key vk
+	 * @return the receipts sigma for Helper
+	 */
+	public List<byte[]> recIssueHelperPostBatch(List<byte[]> rBytesList, List<byte[]> psiBytesList, byte[] yBytes) {
+		List<byte[]> sigmaBytesList = new ArrayList<byte[]>();
+		for (int i = 0; i < rBytesList.size(); i++) {
+			sigmaBytesList.add(recIssueHelperPost(rBytesList.get(i), psiBytesList.get(i), yBytes));
+		}
+		return sigmaBytesList;
+	}
+	
 	/**
 	 * Returns the receipt sigma for Helper.
 	 * sigma, along with random number s and verification key y,
@@ -152,13 +320,55 @@ public class RewardQuery {
 	 */
 	public boolean verify(byte[] sigmaBytes, byte[] sBytes, byte[] yBytes) throws IOException, InterruptedException {
 		// Packet for RewardScheme.verify / pid 2
-		boolean isValid = new RewardClient(host, port, RewardPacket.newBuilder()
+		RewardPacket.Builder builder = RewardPacket.newBuilder()
 						.setPid(2)
-						.setE1(ByteString.copyFrom(sigmaBytes))
+						.setE1(encodePoint(sigmaBytes, rewardScheme.G1))
 						.setE2(ByteString.copyFrom(sBytes))
-						.setE3(ByteString.copyFrom(gety()))
-						.build())
-				.recvPacket.getIsValid();
+						.setCompressed(compressed);
+		if (key != null && useKeyId) {
+			builder.setKeyId(key.keyId);
+		}
+		else {
+			builder.setE3(encodePoint(gety(), rewardScheme.G2));
+		}
+		boolean isValid = query(builder.build())
+				.getIsValid();
+		return isValid;
+	}
+
+	/**
+	 * Returns per-receipt validness of the signatures sigma, all issued under 
+	 * the same verification key y, in a single round trip.
+	 * 
+	 * @param sigmaBytesList the arraylist of receipts generated by Helper
+	 * @param sBytesList the arraylist of random serial number s, in the same order as sigmaBytesList
+	 * @param yBytes the verification key vk
+	 * @return validness of each signature sigma, or null if the server refused the request or stayed busy
+	 * @throws IOException Signals that an I/O exception of some sort has occurred
+	 * @throws InterruptedException Thrown when a thread is waiting, sleeping, or otherwise occupied, and the thread is interrupted, either before or during the activity
+	 */
+	public boolean[] batchVerify(List<byte[]> sigmaBytesList, List<byte[]> sBytesList, byte[] yBytes) throws IOException, InterruptedException {
+		// Packet for RewardScheme.batchVerify / pid 4
+		RewardPacket.Builder builder = RewardPacket.newBuilder()
+						.setPid(4)
+						.addAllEList1(encodePoints(sigmaBytesList, rewardScheme.G1))
+						.addAllEList2(BytesListToByteStringList(sBytesList))
+						.setCompressed(compressed);
+		if (isCurrentKey(yBytes)) {
+			builder.setKeyId(key.keyId);
+		}
+		else {
+			builder.setE3(encodePoint(yBytes, rewardScheme.G2));
+		}
+		RewardPacket recvPacket = query(builder.build());
+		if (recvPacket.getPid() == 999 || recvPacket.getPid() == 998) {
+			return null;
+		}
+
+		boolean[] isValid = new boolean[recvPacket.getIsValidListCount()];
+		for (int i = 0; i < isValid.length; i++) {
+			isValid[i] = recvPacket.getIsValidList(i);
+		}
 		return isValid;
 	}
 
@@ -190,13 +400,23 @@ public class RewardQuery {
 	 */
 	public boolean aggVerify(byte[] sigmaAggBytes, List<byte[]> sBytesList, List<byte[]> yBytesList) throws IOException, InterruptedException {
 		// Packet for RewardScheme.aggVerify / pid 2
-		boolean isValid = new RewardClient(host, port, RewardPacket.newBuilder()
+		RewardPacket.Builder builder = RewardPacket.newBuilder()
 						.setPid(3)
-						.setE1(ByteString.copyFrom(sigmaAggBytes))
+						.setE1(encodePoint(sigmaAggBytes, rewardScheme.G1))
 						.addAllEList1(BytesListToByteStringList(sBytesList))
-						.addAllEList2(BytesListToByteStringList(yBytesList))
-						.build())
-				.recvPacket.getIsValid();
+						.setCompressed(compressed);
+		boolean allCurrentKey = true;
+		for (byte[] yBytes : yBytesList) {
+			allCurrentKey &= isCurrentKey(yBytes);
+		}
+		if (allCurrentKey && yBytesList.isEmpty() == false) {	// Send the key ID once, instead of y for each receipt.
+			builder.setKeyId(key.keyId);
+		}
+		else {
+			builder.addAllEList2(encodePoints(yBytesList, rewardScheme.G2));
+		}
+		boolean isValid = query(builder.build())
+				.getIsValid();
 		return isValid;
 	}
 
@@ -263,6 +483,101 @@ public class RewardQuery {
 		return Boolean.valueOf(body);
 	}
 	
+	/*
+	 * Sends a packet over a pooled connection, and returns the response.
+	 * A busy response (pid 998) is retried after the delay the server asks for, up to MAX_BUSY_RETRIES times.
+	 */
+	private RewardPacket query(RewardPacket packet) throws IOException, InterruptedException {
+		if (pool == null) {
+			pool = RewardConnectionPool.getDefault();
+		}
+		RewardPacket recvPacket = pool.query(host, port, packet);
+		for (int i = 0; i < MAX_BUSY_RETRIES && recvPacket.getPid() == 998; i++) {
+			Thread.sleep(recvPacket.getRetryAfter());
+			recvPacket = pool.query(host, port, packet);
+		}
+		if (recvPacket.getPid() == 997 && key != null && packet.getKeyId() == key.keyId) {
+			// The server has a new key. Fetch it for later requests, and send the old y itself this time.
+			CachedKey oldKey = key;
+			configureAsHelper();
+			RewardPacket.Builder builder = packet.toBuilder().clearKeyId();
+			ByteString yBytes = packet.getCompressed() ? oldKey.yCompressed : oldKey.yBytes;
+			if (packet.getPid() == 3) {
+				for (int i = 0; i < packet.getEList1Count(); i++) {
+					builder.addEList2(yBytes);
+				}
+			}
+			else {
+				builder.setE3(yBytes);
+			}
+			recvPacket = query(builder.build());
+		}
+		return recvPacket;
+	}
+	
+	/*
+	 * Whether yBytes is the key of rewardScheme.y, which the server knows by its key ID.
+	 */
+	private boolean isCurrentKey(byte[] yBytes) {
+		return key != null && useKeyId && Arrays.equals(key.yArray, yBytes);
+	}
+	
+	/*
+	 * Returns a point given by its bytes, compressed if the server agreed to it.
+	 */
+	@SuppressWarnings("rawtypes")
+	private ByteString encodePoint(byte[] bytes, Field g) {
+		if (compressed == false) {
+			return ByteString.copyFrom(bytes);
+		}
+		if (key != null && g == rewardScheme.G2 && Arrays.equals(key.yArray, bytes)) {
+			return key.yCompressed;
+		}
+		return ByteString.copyFrom(PointEncoding.compress(g, bytes));
+	}
+	
+	@SuppressWarnings("rawtypes")
+	private List<ByteString> encodePoints(List<byte[]> bList, Field g) {
+		if (compressed == false) {
+			return BytesListToByteStringList(bList);
+		}
+		List<ByteString> bsList = new ArrayList<ByteString>();
+		for (byte[] b : bList) {
+			bsList.add(b == null ? null : encodePoint(b, g));
+		}
+		return bsList;
+	}
+	
+	/*
+	 * Returns a point from the server, refusing a compressed point which is not in g.
+	 */
+	@SuppressWarnings("rawtypes")
+	private Element decodePoint(ByteString b, boolean compressed, Field g) throws IOException {
+		try {
+			return PointEncoding.fromBytes(g, b.toByteArray(), compressed).getImmutable();
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid point from " + host + ":" + port, e);
+		}
+	}
+	
+	private static final class CachedKey {
+		final long keyId;
+		final Element y;
+		final ByteString yBytes;
+		final ByteString yCompressed;
+		final byte[] yArray;
+		final ElementPowPreProcessing yTable;
+		
+		CachedKey(long keyId, Element y, ElementPowPreProcessing yTable) {
+			this.keyId = keyId;
+			this.y = y;
+			this.yArray = y.toBytes();
+			this.yBytes = ByteString.copyFrom(yArray);
+			this.yCompressed = ByteString.copyFrom(PointEncoding.toBytes(y, true));
+			this.yTable = yTable;
+		}
+	}
+	
 	private List<ByteString> BytesListToByteStringList(List<byte[]> bList) {
 		List<ByteString> bsList= new ArrayList<ByteString>();
 		for (byte[] b : bList) {
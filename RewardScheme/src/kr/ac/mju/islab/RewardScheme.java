@@ -1,14 +1,27 @@
 package kr.ac.mju.islab;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
 import java.nio.charset.Charset;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import it.unisa.dia.gas.jpbc.*;
+import it.unisa.dia.gas.plaf.jpbc.field.base.AbstractElementPowPreProcessing;
 import it.unisa.dia.gas.plaf.jpbc.pairing.PairingFactory;
+import it.unisa.dia.gas.plaf.jpbc.util.concurrent.PoolExecutor;
 import it.unisa.dia.gas.plaf.jpbc.util.io.Base64;
 
 import kr.ac.mju.islab.secParam.*;
@@ -36,10 +49,76 @@ public class RewardScheme {
 	public Element g1, g2, x, y;	// x should only be known to master.
 
 	/*
-	 * L is synchronized in the same object. 
-	 * Be careful that L is not synchronized between different objects.
+	 * L is the list of spent serial numbers, keyed on s.toBytes().
+	 * L is thread-safe in the same object. 
+	 * Be careful that L is not shared between different objects, unless you pass the same store.
 	 */
-	public List<Element> L = Collections.synchronizedList(new ArrayList<Element>());
+	public SpentSerialStore L;
+
+	/*
+	 * Bit length of the random exponents used in batchVerify.
+	 * A batch containing an invalid receipt passes with probability at most 2^-BATCH_SECURITY_BITS.
+	 */
+	public static final int BATCH_SECURITY_BITS = 64;
+	private SecureRandom batchRandom = new SecureRandom();
+
+	/*
+	 * Fixed-base exponentiation tables of g1 and y, built lazily on the first issuance
+	 * with the window size powWindowSize, or loaded by loadPowTables.
+	 */
+	private int powWindowSize = AbstractElementPowPreProcessing.DEFAULT_K;
+	private volatile Precomputed<ElementPowPreProcessing> g1Pow, yPow;
+	
+	/*
+	 * Key ID of y, recomputed whenever y has changed.
+	 */
+	private volatile Precomputed<Long> keyId;
+
+	/*
+	 * Preprocessed Miller loops of g2 and y, built lazily on the first verification.
+	 * As the pairing is symmetric, e(sigma, g2) = e(g2, sigma) is computed from the
+	 * line coefficients of g2, and likewise for y.
+	 */
+	private volatile Precomputed<PairingPreProcessing> g2Pairing, yPairing;
+	private MultiMillerPairing multiMiller;	// null if the pairing is not supported.
+	
+	/*
+	 * Cache of H(s) keyed on s.toBytes(), filled by aggVerify, as merchants often 
+	 * resubmit overlapping aggregates. null if disabled.
+	 */
+	public static final long DEFAULT_HASH_CACHE_BYTES = 16L << 20;
+	private volatile ElementCache hashCache = new ElementCache(DEFAULT_HASH_CACHE_BYTES);
+	
+	/*
+	 * Per-thread buffer for digests of serial numbers, which are hashed to G1 right away.
+	 */
+	private final ThreadLocal<byte[]> digestBuffer = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[hash.getDigestLength()];
+		}
+	};
+
+	/*
+	 * aggVerify spreads hash-to-curve and Miller loops over aggVerifyPool 
+	 * if sList has at least aggVerifyThreshold receipts. null for sequential aggVerify.
+	 */
+	public static final int DEFAULT_AGG_VERIFY_THRESHOLD = 64;
+	private ForkJoinPool aggVerifyPool;
+	private int aggVerifyThreshold = DEFAULT_AGG_VERIFY_THRESHOLD;
+	
+	/*
+	 * recIssueMaster and recIssueMasterBatch raise h to x with the recoding of x
+	 * in xPow, rebuilt lazily whenever x has changed. recIssueMasterBatch runs over issuePool,
+	 * which is null for sequential issuance.
+	 */
+	private ForkJoinPool issuePool = ForkJoinPool.commonPool();
+	private volatile Precomputed<FixedExponentPow> xPow;
+	
+	/*
+	 * Triples of recIssueHelperPre computed ahead of time by a background thread. null if disabled.
+	 */
+	private volatile PrecomputedTriples precomputation;
 
 	/**
 	 * Class constructor - default set to curve type a (symmetric) and SHA256.
@@ -57,8 +136,23 @@ public class RewardScheme {
 	 * @param hashName the name of hash function
 	 */
 	public RewardScheme(CurveName curveName, HashName hashName) {
+		this(curveName, hashName, new ConcurrentSpentSerialStore());
+	}
+	/**
+	 * Class constructor specifying curve name, hash name, and the store of 
+	 * spent serial numbers L.
+	 * <p>
+	 * Pass a persistent store, or a store shared with other RewardScheme objects,
+	 * to prevent double spending across them.
+	 * 
+	 * @param curveName the name of elliptic curve
+	 * @param hashName the name of hash function
+	 * @param spentSerialStore the store of spent serial numbers
+	 */
+	public RewardScheme(CurveName curveName, HashName hashName, SpentSerialStore spentSerialStore) {
 		// Setup
 		this.curveName = curveName;
+		this.L = spentSerialStore;
 
 		switch(curveName){	// a, a1 is a symmetric curve.
 			case a:
@@ -73,6 +167,9 @@ public class RewardScheme {
 		Zr = pairing.getZr();
 		G1 = pairing.getG1();
 		G2 = pairing.getG2();
+		if (pairing.isSymmetric() && MultiMillerPairing.isSupported(pairing)) {
+			multiMiller = new MultiMillerPairing(pairing);
+		}
 
 		try {
 			this.hash = new Hash(hashName);
@@ -112,24 +209,232 @@ public class RewardScheme {
 		this.y = y;
 	}
 	
+	/**
+	 * Configure a helper with y and its fixed-base exponentiation table,
+	 * e.g. those cached from another RewardScheme object by getYPowTable.
+	 * 
+	 * @param y the verification key of master
+	 * @param yTable the fixed-base exponentiation table of y
+	 */
+	public void configureAsHelper(Element y, ElementPowPreProcessing yTable) {
+		this.y = y;
+		this.yPow = new Precomputed<ElementPowPreProcessing>(y, yTable);
+	}
+	
+	/**
+	 * Returns the fixed-base exponentiation table of y, building it if needed.
+	 * 
+	 * @return the fixed-base exponentiation table of y
+	 */
+	public ElementPowPreProcessing getYPowTable() {
+		return getYPow().table;
+	}
+	
+	/**
+	 * Returns the identifier of the verification key y, which is the first 8 bytes of SHA-256(y.toBytes()),
+	 * and never 0. A new key gets a new ID, so clients can cache y under its ID
+	 * and send the ID instead of y.
+	 * 
+	 * @return the key ID of y
+	 */
+	public long getKeyId() {
+		Precomputed<Long> id = keyId;
+		Element y = this.y;
+		if (id == null || (id.base != y && id.base.isEqual(y) == false)) {
+			id = new Precomputed<Long>(y, getKeyId(y));
+			keyId = id;
+		}
+		return id.table;
+	}
+	
+	/**
+	 * Returns the identifier of a verification key, as getKeyId does for y.
+	 * Clients compute it from a received key rather than trust the ID a server reports.
+	 * 
+	 * @param y the verification key
+	 * @return the key ID of y, never 0
+	 */
+	public static long getKeyId(Element y) {
+		byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256").digest(y.toBytes());
+		} catch (NoSuchAlgorithmException e) {	// Every Java platform has SHA-256.
+			throw new IllegalStateException(e);
+		}
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (digest[i] & 0xff);
+		}
+		return value == 0 ? 1 : value;
+	}
+	
+	/**
+	 * Makes aggVerify parallel for aggregates of at least threshold receipts.
+	 * Hash-to-curve and Miller loops are spread over the pool, and 
+	 * the final exponentiation is done once as before.
+	 * 
+	 * @param pool the pool to run on, or null to make aggVerify sequential
+	 * @param threshold the minimum number of receipts to go parallel
+	 */
+	public void setAggVerifyPool(ForkJoinPool pool, int threshold) {
+		this.aggVerifyPool = pool;
+		this.aggVerifyThreshold = threshold;
+	}
+	
+	/**
+	 * Sets the pool which recIssueMasterBatch runs on, ForkJoinPool.commonPool() unless specified.
+	 * 
+	 * @param pool the pool to run on, or null to make recIssueMasterBatch sequential
+	 */
+	public void setIssuePool(ForkJoinPool pool) {
+		this.issuePool = pool;
+	}
+	
+	/**
+	 * Makes recIssueHelperPre take triples precomputed in the background, 
+	 * refilled up to highWatermark whenever lowWatermark or fewer are left.
+	 * Triples precomputed so far are discarded.
+	 * 
+	 * @param lowWatermark the number of triples left at which they are refilled
+	 * @param highWatermark the number of triples to keep ready, or 0 to disable precomputation
+	 */
+	public void setPrecomputation(int lowWatermark, int highWatermark) {
+		PrecomputedTriples old = precomputation;
+		precomputation = highWatermark > 0 ? new PrecomputedTriples(this, lowWatermark, highWatermark) : null;
+		if (old != null) {
+			old.close();
+		}
+	}
+	
+	/**
+	 * Returns the precomputed triples, to read their hit/miss counters.
+	 * 
+	 * @return the precomputed triples, or null if disabled
+	 */
+	public PrecomputedTriples getPrecomputation() {
+		return precomputation;
+	}
+	
+	/**
+	 * Sets the maximum estimated memory of the cache of H(s), which saves 
+	 * hashing to G1 again when the same serial numbers are verified more than once.
+	 * The cache is emptied.
+	 * 
+	 * @param maxBytes the maximum estimated memory in bytes, or 0 to disable the cache
+	 */
+	public void setHashCacheSize(long maxBytes) {
+		this.hashCache = maxBytes > 0 ? new ElementCache(maxBytes) : null;
+	}
+	
+	/**
+	 * Returns the cache of H(s), to read its hit/miss counters.
+	 * 
+	 * @return the cache of H(s), or null if disabled
+	 */
+	public ElementCache getHashCache() {
+		return hashCache;
+	}
+	
+	/**
+	 * Sets the window size k of the fixed-base exponentiation tables of g1 and y.
+	 * Each table holds (bits of r / k + 1) * 2^k elements, and an exponentiation
+	 * takes about (bits of r / k) multiplications.
+	 * Tables are rebuilt on the next issuance.
+	 * 
+	 * @param k the window size in bits
+	 */
+	public void setPowWindowSize(int k) {
+		this.powWindowSize = k;
+		this.g1Pow = null;
+		this.yPow = null;
+	}
+	
+	/**
+	 * Saves the fixed-base exponentiation tables of g1 and y to a file,
+	 * so that the tables need not be rebuilt on the next startup.
+	 * 
+	 * @param path the path of the file to save tables
+	 * @throws IOException Signals that an I/O exception of some sort has occurred
+	 */
+	public void savePowTables(String path) throws IOException {
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(path));
+		try {
+			out.writeInt(powWindowSize);
+			writeBytes(out, g1.toBytes());
+			writeBytes(out, getG1Pow().table.toBytes());
+			writeBytes(out, y.toBytes());
+			writeBytes(out, getYPow().table.toBytes());
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Loads the fixed-base exponentiation tables of g1 and y saved by savePowTables.
+	 * Nothing is loaded unless the file was saved for the current g1, i.e. of the same curve and hash,
+	 * and the table of y is loaded only if it was saved for the current y.
+	 * Tables not loaded are built on first use.
+	 * 
+	 * @param path the path of the file to load tables
+	 * @return true if both tables are loaded
+	 * @throws IOException Signals that an I/O exception of some sort has occurred
+	 */
+	public boolean loadPowTables(String path) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(path));
+		try {
+			int k = in.readInt();
+			if (Arrays.equals(readBytes(in), g1.toBytes()) == false) {
+				return false;
+			}
+			byte[] g1Table = readBytes(in);
+			byte[] yBytes = readBytes(in);
+			byte[] yTable = readBytes(in);
+			
+			this.powWindowSize = k;
+			this.g1Pow = new Precomputed<ElementPowPreProcessing>(g1, new AbstractElementPowPreProcessing(G1, k, g1Table, 0));
+			if (G2.newElementFromBytes(yBytes).isEqual(y)) {
+				this.yPow = new Precomputed<ElementPowPreProcessing>(y, new AbstractElementPowPreProcessing(G2, k, yTable, 0));
+				return true;
+			}
+			else {
+				this.yPow = null;
+				return false;
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
 	/**
 	 * Returns random serial number s, random number r, and 
 	 * computed value h to Helper.
 	 * Helper will use there data in recIssue Process.
 	 * Especially, h will be sent to Master to generate psi.
+	 * <p>
+	 * If precomputation is enabled, a triple computed in the background is returned.
 	 * @return the serial number s, random number r, and computed h in Element[] form with corresponding order.
 	 */
 	public Element[] recIssueHelperPre() {
+		PrecomputedTriples triples = precomputation;
+		if (triples != null) {
+			return triples.take();
+		}
+		return computeHelperPre();
+	}
+	
+	/*
+	 * Computes a triple of recIssueHelperPre.
+	 */
+	Element[] computeHelperPre() {
 		Element s = Zr.newRandomElement().getImmutable();	// Select s.
-		while (L.contains(s) == true){
+		while (L.contains(s.toBytes()) == true){
 			s = Zr.newRandomElement().getImmutable();
 		}
 		
 		Element r = Zr.newRandomElement().getImmutable();	// Select r.
-		byte[] digest = hash.getByteDigest(s.toBytes());
 
-		Element h = g1.powZn(r)	// Select h <- g1^r*H(s).
-				.mul(G1.newElement().setFromHash(digest, 0, digest.length)).getImmutable();
+		Element h = getG1Pow().table.powZn(r)	// Select h <- g1^r*H(s).
+				.mul(hashToG1(s.toBytes())).getImmutable();
 		
 		Element[] rtn = new Element[3];
 		rtn[0] = s;
@@ -142,16 +447,80 @@ public class RewardScheme {
 	/**
 	 * Returns element psi which master generates in recIssue Process.
 	 * Helper provides h, and later generates receipt sigma with returned value psi.
+	 * <p>
+	 * h^x is computed with the cached recoding of x, in the same sequence of group operations for any x.
+	 * h is checked to be in G1 first, as h of a small order d would give away x mod d.
 	 * 
 	 * @param h the element generated and provided by Helper
 	 * @return the mid-computation element psi for Helper
+	 * @throws IllegalArgumentException if h is not in G1
 	 */
 	public Element recIssueMaster(Element h) {
 		// Master.
-		Element psi = h.powZn(x).getImmutable();	// Select psi <- h^x.
+		Element psi = masterPow(getXPow().table, h);	// Select psi <- h^x.
+		if (psi == null) {
+			throw new IllegalArgumentException("h is not in G1");
+		}
 		
 		return psi;
 	}
+	
+	/**
+	 * Returns elements psi_i = h_i^x of many Helpers' h_i at once, as recIssueMaster does for each.
+	 * Exponentiations run in parallel on the issue pool, and share the recoding of x.
+	 * 
+	 * @param hList the elements generated and provided by Helpers
+	 * @return the mid-computation elements psi_i, in the same order as hList
+	 * @throws IllegalArgumentException if any h_i is not in G1
+	 */
+	public List<Element> recIssueMasterBatch(List<Element> hList) {
+		final Element[] hs = hList.toArray(new Element[hList.size()]);
+		final Element[] psis = new Element[hs.length];
+		final FixedExponentPow pow = getXPow().table;
+		
+		ForkJoinPool pool = issuePool;
+		int numChunks = pool == null ? 1 : Math.min(pool.getParallelism(), hs.length);
+		if (numChunks <= 1) {
+			for (int i=0; i<hs.length; i++) {
+				psis[i] = masterPow(pow, hs[i]);
+			}
+			return checkIssued(psis);
+		}
+		
+		PoolExecutor<Object> executor = new PoolExecutor<Object>(pool);
+		for (int c=0; c<numChunks; c++) {
+			final int from = hs.length * c / numChunks;
+			final int to = hs.length * (c + 1) / numChunks;
+			executor.submit(new Runnable() {
+				public void run() {
+					for (int i=from; i<to; i++) {
+						psis[i] = masterPow(pow, hs[i]);
+					}
+				}
+			});
+		}
+		executor.awaitTermination();	// Also makes psis visible.
+		return checkIssued(psis);
+	}
+	
+	/*
+	 * Returns h^x, or null if h is not in G1.
+	 */
+	private Element masterPow(FixedExponentPow pow, Element h) {
+		if (PointEncoding.isInSubgroup(G1, h) == false) {
+			return null;
+		}
+		return pow.pow(h).getImmutable();
+	}
+	
+	private List<Element> checkIssued(Element[] psis) {
+		for (Element psi : psis) {
+			if (psi == null) {
+				throw new IllegalArgumentException("h is not in G1");
+			}
+		}
+		return Arrays.asList(psis);
+	}
 
 	/**
 	 * Returns the receipt sigma for Helper.
@@ -164,7 +533,9 @@ public class RewardScheme {
 	 * @return the receipt sigma for Helper
 	 */
 	public Element recIssueHelperPost(Element r, Element psi, Element y) {
-		Element sigma = y.powZn(r.negate()).mul(psi).getImmutable();	// Select sigma <- y^(-r)*psi.
+		Precomputed<ElementPowPreProcessing> yPow = getYPow();
+		Element yr = (yPow.base == y || yPow.base.isEqual(y)) ? yPow.table.powZn(r.negate()) : y.powZn(r.negate());
+		Element sigma = yr.mul(psi).getImmutable();	// Select sigma <- y^(-r)*psi.
 		
 		return sigma;
 	}
@@ -181,16 +552,267 @@ public class RewardScheme {
 		if (s.getLengthInBytes() > Zr.getLengthInBytes()) {
 			return false;
 		}
-		else if (L.contains(s)) {
+		
+		byte[] sBytes = s.toBytes();
+		if (L.addIfAbsent(sBytes) == false) {	// Check and mark s as spent atomically.
 			return false;
 		}
+		
+		Element hs = cachedHashToG1(sBytes, false);
+		return pairingCheck(sigma, hs, y);
+	}
+	
+	/*
+	 * Returns H(s) as an element of G1. 
+	 * The digest is written to a per-thread buffer, as setFromHash does not keep it.
+	 * The cofactor is multiplied in Jacobian coordinates, if G1 is a curve over a prime field.
+	 */
+	private Element hashToG1(byte[] sBytes) {
+		byte[] digest = digestBuffer.get();
+		int length = hash.digestInto(sBytes, digest, 0);
+		JacobianCurve curve = JacobianCurve.getInstance(G1);
+		if (curve != null) {
+			return curve.newElementFromHash(digest, 0, length);
+		}
+		return G1.newElement().setFromHash(digest, 0, length);
+	}
+	
+	/*
+	 * Returns H(s) as an immutable element of G1, looking up the cache first.
+	 * If store is set, a missed H(s) is cached as well.
+	 */
+	private Element cachedHashToG1(byte[] sBytes, boolean store) {
+		ElementCache cache = hashCache;
+		if (cache == null) {
+			return hashToG1(sBytes).getImmutable();
+		}
+		Element hs = cache.get(sBytes);
+		if (hs == null) {
+			hs = hashToG1(sBytes).getImmutable();
+			if (store) {
+				cache.put(sBytes, hs);
+			}
+		}
+		return hs;
+	}
+
+	/**
+	 * Returns per-receipt validness of the signatures sigma, all issued under 
+	 * the same verification key y.
+	 * <p>
+	 * Receipts are checked together with small random exponents delta_i, i.e.
+	 * e(prod sigma_i^delta_i, g2) == e(prod H(s_i)^delta_i, y), so that a whole batch
+	 * costs one multi-pairing instead of two pairings per receipt.
+	 * If the batch fails, it is bisected until the invalid receipts are found.
+	 * Like verify, every serial number s is marked as spent once it is checked.
+	 * 
+	 * @param sigmas the arraylist of receipts generated by Helper
+	 * @param ss the arraylist of random serial numbers s, in the same order as sigmas
+	 * @param y the verification key vk
+	 * @return validness of each signature sigma, in the same order as sigmas
+	 */
+	public boolean[] batchVerify(List<Element> sigmas, List<Element> ss, Element y) {
+		if (sigmas.size() != ss.size()) {
+			throw new IllegalArgumentException("sigmas and ss have different sizes.");
+		}
+		boolean[] rtn = new boolean[sigmas.size()];
+		
+		List<Integer> candidates = new ArrayList<Integer>();
+		Element[] hs = new Element[ss.size()];
+		for (int i=0; i<ss.size(); i++) {
+			Element s = ss.get(i);
+			if (s.getLengthInBytes() > Zr.getLengthInBytes()) {
+				continue;
+			}
+			byte[] sBytes = s.toBytes();
+			if (L.addIfAbsent(sBytes) == false) {	// Check and mark s as spent atomically.
+				continue;
+			}
+			
+			hs[i] = cachedHashToG1(sBytes, false);
+			candidates.add(i);
+		}
+
+		batchVerifyHelper(sigmas, hs, y, candidates, false, rtn);
+		
+		return rtn;
+	}
+	
+	/*
+	 * Checks receipts of indices at once, and bisects on failure.
+	 * If knownInvalid is set, the caller already knows that the batch fails.
+	 */
+	private void batchVerifyHelper(List<Element> sigmas, Element[] hs, Element y, 
+			List<Integer> indices, boolean knownInvalid, boolean[] rtn) {
+		if (indices.isEmpty()) {
+			return;
+		}
+		if (indices.size() == 1) {
+			int i = indices.get(0);
+			rtn[i] = pairingCheck(sigmas.get(i), hs[i], y);
+			return;
+		}
+		
+		if (knownInvalid == false) {
+			BigInteger[] deltas = new BigInteger[indices.size()];
+			for (int j=0; j<deltas.length; j++) {
+				deltas[j] = new BigInteger(BATCH_SECURITY_BITS, batchRandom).setBit(0);
+			}
+			
+			/*
+			 * Interleaved multi-exponentiation: all the products share
+			 * BATCH_SECURITY_BITS squarings, so that each receipt only costs about 
+			 * BATCH_SECURITY_BITS/2 multiplications per side.
+			 */
+			Element sigmaComb = G1.newOneElement();
+			Element hsComb = G1.newOneElement();
+			for (int bit=BATCH_SECURITY_BITS-1; bit>=0; bit--) {
+				sigmaComb.twice();
+				hsComb.twice();
+				for (int j=0; j<deltas.length; j++) {
+					if (deltas[j].testBit(bit)) {
+						sigmaComb.mul(sigmas.get(indices.get(j)));
+						hsComb.mul(hs[indices.get(j)]);
+					}
+				}
+			}
+			
+			if (pairingCheck(sigmaComb, hsComb, y)) {
+				for (int i : indices) {
+					rtn[i] = true;
+				}
+				return;
+			}
+		}
+		
+		List<Integer> left = indices.subList(0, indices.size() / 2);
+		List<Integer> right = indices.subList(indices.size() / 2, indices.size());
+		batchVerifyHelper(sigmas, hs, y, left, false, rtn);
+		
+		// If left half is valid, invalid receipts must be in the right half.
+		boolean leftValid = true;
+		for (int i : left) {
+			leftValid &= rtn[i];
+		}
+		batchVerifyHelper(sigmas, hs, y, right, leftValid, rtn);
+	}
+	
+	private Precomputed<ElementPowPreProcessing> getG1Pow() {
+		Precomputed<ElementPowPreProcessing> pow = g1Pow;
+		if (pow == null) {
+			pow = new Precomputed<ElementPowPreProcessing>(g1, new AbstractElementPowPreProcessing(g1, powWindowSize));
+			g1Pow = pow;
+		}
+		return pow;
+	}
+	
+	/*
+	 * y is a public field and may be replaced, so the table is rebuilt whenever y has changed.
+	 */
+	private Precomputed<ElementPowPreProcessing> getYPow() {
+		Precomputed<ElementPowPreProcessing> pow = yPow;
+		Element y = this.y;
+		if (pow == null || (pow.base != y && pow.base.isEqual(y) == false)) {
+			pow = new Precomputed<ElementPowPreProcessing>(y, new AbstractElementPowPreProcessing(y, powWindowSize));
+			yPow = pow;
+		}
+		return pow;
+	}
+	
+	/*
+	 * x is a public field and may be replaced, so the recoding is redone whenever x has changed.
+	 * x is recoded to the bit length of the group order, so that every x costs the same.
+	 */
+	private Precomputed<FixedExponentPow> getXPow() {
+		Precomputed<FixedExponentPow> pow = xPow;
+		Element x = this.x;
+		if (pow == null || (pow.base != x && pow.base.isEqual(x) == false)) {
+			pow = new Precomputed<FixedExponentPow>(x, new FixedExponentPow(x.toBigInteger(), 
+					FixedExponentPow.DEFAULT_WINDOW_SIZE, Zr.getOrder().bitLength()));
+			xPow = pow;
+		}
+		return pow;
+	}
+	
+	private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+	
+	/*
+	 * Returns the preprocessed Miller loop of in2 if in2 is g2 or y, or null otherwise.
+	 */
+	private PairingPreProcessing getFixedPairing(Element in2) {
+		if (pairing.isSymmetric() == false) {
+			return null;
+		}
+		
+		Precomputed<PairingPreProcessing> pre = null;
+		if (in2 == g2) {
+			pre = g2Pairing;
+			if (pre == null) {
+				pre = new Precomputed<PairingPreProcessing>(g2, newPairingPreProcessing(g2));
+				g2Pairing = pre;
+			}
+		}
 		else {
-			L.add(s);
+			pre = yPairing;
+			Element y = this.y;
+			if (pre == null || (pre.base != y && pre.base.isEqual(y) == false)) {
+				pre = new Precomputed<PairingPreProcessing>(y, newPairingPreProcessing(y));
+				yPairing = pre;
+			}
+			if (pre.base != in2 && pre.base.isEqual(in2) == false) {
+				return null;
+			}
+		}
+		return pre.table;
+	}
+	
+	private PairingPreProcessing newPairingPreProcessing(Element in1) {
+		if (multiMiller != null) {
+			return multiMiller.getPairingPreProcessingFromElement(in1);
+		}
+		else {
+			return pairing.getPairingPreProcessingFromElement(in1);
+		}
+	}
+	
+	/*
+	 * Returns e(in1, in2), using the preprocessed Miller loop when in2 is g2 or y.
+	 */
+	private Element pairingWithFixed(Element in1, Element in2) {
+		PairingPreProcessing pre = getFixedPairing(in2);
+		if (pre == null) {
+			return pairing.pairing(in1, in2);
+		}
+		if (in1.isZero()) {
+			return pairing.getGT().newZeroElement();
+		}
+		return pre.pairing(in1);
+	}
+	
+	/*
+	 * Returns whether e(sigma, g2) == e(hs, y).
+	 * If possible, it is checked as e(g2, sigma) * e(y, hs^-1) == 1 with a single 
+	 * Miller loop and a single final exponentiation.
+	 */
+	private boolean pairingCheck(Element sigma, Element hs, Element y) {
+		PairingPreProcessing g2Pre = getFixedPairing(g2);
+		PairingPreProcessing yPre = getFixedPairing(y);
+		if (g2Pre instanceof MultiMillerPairing.Lines && yPre instanceof MultiMillerPairing.Lines) {
+			return multiMiller.isProductOne(
+					new MultiMillerPairing.Lines[] {(MultiMillerPairing.Lines) g2Pre, (MultiMillerPairing.Lines) yPre}, 
+					new Element[] {sigma, hs.duplicate().invert()});
 		}
 		
-		byte[] digest = hash.getByteDigest(s.toBytes());
-		Element hs = G1.newElement().setFromHash(digest, 0, digest.length).getImmutable();
-		if (pairing.pairing(sigma, g2).equals(pairing.pairing(hs, y))) {
+		if (pairingWithFixed(sigma, g2).isEqual(pairingWithFixed(hs, y))) {
 			return true;
 		}
 		else {
@@ -223,21 +845,166 @@ public class RewardScheme {
 	 * @return validness of the aggregated signature sigma
 	 */
 	public boolean aggVerify(Element sigmaAgg, List<Element> sList, List<Element> yList){
-		Element comp = pairing.getGT().newOneElement();
-		for (int i=0; i<sList.size(); i++) {
-			if (L.contains(sList.get(i)) == true){
+		int n = sList.size();
+		byte[][] sBytes = new byte[n][];
+		for (int i=0; i<n; i++) {
+			sBytes[i] = sList.get(i).toBytes();
+			if (L.contains(sBytes[i]) == true){
 				return false;
 			}
-			byte[] digest = hash.getByteDigest(sList.get(i).toBytes());
-			comp.mul(pairing.pairing(G1.newElement().setFromHash(digest, 0, digest.length), yList.get(i)));
 		}
 		
-		if (comp.isEqual(pairing.pairing(sigmaAgg, g2))) {
-			return true;
+		ForkJoinPool pool = aggVerifyPool;
+		if (pool == null || n < aggVerifyThreshold) {
+			List<Element[]> groups = new ArrayList<Element[]>(hashAndGroup(sBytes, yList, 0, n).values());
+			return aggPairingCheck(sigmaAgg, groups, null);
 		}
-		else {
+		
+		// Hash to curve in parallel, then merge groups of each chunk.
+		final byte[][] fSBytes = sBytes;
+		final List<Element> fYList = yList;
+		int numChunks = Math.min(pool.getParallelism(), n);
+		final List<Map<ByteArrayKey, Element[]>> chunks = new ArrayList<Map<ByteArrayKey, Element[]>>(numChunks);
+		for (int c=0; c<numChunks; c++) {
+			chunks.add(null);	// Set by the task of each chunk, which does not resize the list.
+		}
+		PoolExecutor<Object> executor = new PoolExecutor<Object>(pool);
+		for (int c=0; c<numChunks; c++) {
+			final int from = n * c / numChunks;
+			final int to = n * (c + 1) / numChunks;
+			final int index = c;
+			executor.submit(new Runnable() {
+				public void run() {
+					chunks.set(index, hashAndGroup(fSBytes, fYList, from, to));
+				}
+			});
+		}
+		executor.awaitTermination();	// Also makes the results of chunks visible.
+		
+		Map<ByteArrayKey, Element[]> groups = new LinkedHashMap<ByteArrayKey, Element[]>();
+		for (Map<ByteArrayKey, Element[]> chunk : chunks) {
+			for (Map.Entry<ByteArrayKey, Element[]> entry : chunk.entrySet()) {
+				Element[] group = groups.get(entry.getKey());
+				if (group == null) {
+					groups.put(entry.getKey(), entry.getValue());
+				}
+				else {
+					group[1].mul(entry.getValue()[1]);
+				}
+			}
+		}
+		return aggPairingCheck(sigmaAgg, new ArrayList<Element[]>(groups.values()), pool);
+	}
+	
+	/*
+	 * Returns H(s_i) of from <= i < to, multiplied together by y, 
+	 * since prod e(H(s_i), y) = e(prod H(s_i), y).
+	 * Each value is {y, prod H(s_i)}.
+	 */
+	private Map<ByteArrayKey, Element[]> hashAndGroup(byte[][] sBytes, List<Element> yList, int from, int to) {
+		Map<ByteArrayKey, Element[]> groups = new LinkedHashMap<ByteArrayKey, Element[]>();
+		for (int i=from; i<to; i++) {
+			Element hs = cachedHashToG1(sBytes[i], true);
+			
+			Element y = yList.get(i);
+			ByteArrayKey yKey = new ByteArrayKey(y.toBytes());
+			Element[] group = groups.get(yKey);
+			if (group == null) {
+				groups.put(yKey, new Element[] {y, hs.duplicate()});
+			}
+			else {
+				group[1].mul(hs);
+			}
+		}
+		return groups;
+	}
+	
+	/*
+	 * Returns whether e(sigmaAgg, g2) == prod e(hs_j, y_j), by checking
+	 * e(g2, sigmaAgg) * prod e(y_j, hs_j^-1) == 1 with a single final exponentiation.
+	 * If pool is not null, Miller loops of groups are run on it.
+	 */
+	private boolean aggPairingCheck(Element sigmaAgg, final List<Element[]> groups, ForkJoinPool pool) {
+		int n = groups.size();
+		if (multiMiller == null) {
+			Element[] in1 = new Element[n + 1];
+			Element[] in2 = new Element[n + 1];
+			for (int j=0; j<n; j++) {
+				in1[j] = groups.get(j)[1];
+				in2[j] = groups.get(j)[0];
+			}
+			in1[n] = sigmaAgg.duplicate().invert();
+			in2[n] = g2;
+			return pairing.pairing(in1, in2).isOne();
+		}
+		
+		if (sigmaAgg.isZero()) {
 			return false;
 		}
+		Element f = multiMiller.millerLoop(
+				new MultiMillerPairing.Lines[] {(MultiMillerPairing.Lines) getFixedPairing(g2)}, 
+				new Element[] {sigmaAgg});
+		
+		final Element[] partials;
+		if (pool == null || n < 2) {
+			partials = new Element[] {aggMillerLoop(groups)};
+		}
+		else {
+			int numChunks = Math.min(pool.getParallelism(), n);
+			partials = new Element[numChunks];
+			PoolExecutor<Object> executor = new PoolExecutor<Object>(pool);
+			for (int c=0; c<numChunks; c++) {
+				final List<Element[]> chunk = groups.subList(n * c / numChunks, n * (c + 1) / numChunks);
+				final int index = c;
+				executor.submit(new Runnable() {
+					public void run() {
+						partials[index] = aggMillerLoop(chunk);
+					}
+				});
+			}
+			executor.awaitTermination();
+		}
+		
+		for (Element partial : partials) {
+			if (partial == null) {
+				return false;
+			}
+			f.mul(partial);
+		}
+		return multiMiller.finalPow(f).isOne();
+	}
+	
+	/*
+	 * Returns prod f_{y_j}(hs_j^-1) without the final exponentiation, or null if some hs_j is zero.
+	 */
+	private Element aggMillerLoop(List<Element[]> groups) {
+		int n = groups.size();
+		MultiMillerPairing.Lines[] in1 = new MultiMillerPairing.Lines[n];
+		Element[] in2 = new Element[n];
+		for (int j=0; j<n; j++) {
+			Element y = groups.get(j)[0];
+			PairingPreProcessing yPre = getFixedPairing(y);
+			in1[j] = yPre instanceof MultiMillerPairing.Lines ? 
+					(MultiMillerPairing.Lines) yPre : multiMiller.getPairingPreProcessingFromElement(y);
+			in2[j] = groups.get(j)[1].duplicate().invert();
+			if (in2[j].isZero()) {
+				return null;
+			}
+		}
+		return multiMiller.millerLoop(in1, in2);
+	}
+
+	/*
+	 * Precomputed table of a fixed element, along with the element.
+	 */
+	private static final class Precomputed<T> {
+		final Element base;
+		final T table;
+		
+		Precomputed(Element base, T table) {
+			this.base = base;
+			this.table = table;
+		}
 	}
 
 	/**
@@ -248,48 +1015,106 @@ public class RewardScheme {
 	 */
 	public class Hash {
 		public HashName hashName;
-		private MessageDigest md;
+		private final String algorithm;
+		private final int digestLength;
+		/*
+		 * MessageDigest is not thread-safe, so each thread gets its own instance.
+		 */
+		private final ThreadLocal<MessageDigest> md = new ThreadLocal<MessageDigest>() {
+			@Override
+			protected MessageDigest initialValue() {
+				try {
+					return MessageDigest.getInstance(algorithm);
+				} catch (NoSuchAlgorithmException e) {
+					throw new IllegalStateException(e);	// Already checked in the constructor.
+				}
+			}
+		};
 
 		public Hash(HashName hashName) throws NoSuchAlgorithmException {
 			this.hashName = hashName;
 			switch(hashName){
 				case SHA1:
-					md = MessageDigest.getInstance("SHA-1");
+					algorithm = "SHA-1";
 					break;
 				case SHA256:
-					md = MessageDigest.getInstance("SHA-256");
+					algorithm = "SHA-256";
 					break;
 				case SHA384:
-					md = MessageDigest.getInstance("SHA-384");
+					algorithm = "SHA-384";
 					break;
 				case SHA512:
-					md = MessageDigest.getInstance("SHA-512");
+					algorithm = "SHA-512";
 					break;
+				default:
+					throw new NoSuchAlgorithmException(hashName.toString());
 			}
+			this.digestLength = MessageDigest.getInstance(algorithm).getDigestLength();
+		}
+		
+		/**
+		 * Returns the length of digests in bytes.
+		 * 
+		 * @return the length of digests in bytes
+		 */
+		public int getDigestLength() {
+			return digestLength;
 		}
 		
 		public String getBase64Digest(String plainText) {
 			return getBase64Digest(plainText.getBytes(Charset.forName("UTF-8")));
 		}
 		public String getBase64Digest(byte[] bytes) {
-			md.update(bytes, 0, bytes.length);
-			return Base64.encodeBytes(md.digest());
+			return Base64.encodeBytes(getByteDigest(bytes));
 		}
 
 		public byte[] getByteDigest(String plainText) {
 			return getByteDigest(plainText.getBytes(Charset.forName("UTF-8")));
 		}
 		public byte[] getByteDigest(byte[] bytes) {
+			MessageDigest md = this.md.get();
 			md.update(bytes, 0, bytes.length);
 			return md.digest();
 		}
+		
+		/**
+		 * Writes the digest of in to out at offset off, without allocating the digest.
+		 * 
+		 * @param in the bytes to digest
+		 * @param out the buffer for the digest, which has at least getDigestLength() bytes from off
+		 * @param off the offset of the digest in out
+		 * @return the length of the digest
+		 */
+		public int digestInto(byte[] in, byte[] out, int off) {
+			return digestInto(in, 0, in.length, out, off);
+		}
+		/**
+		 * Writes the digest of in[inOff .. inOff + inLen) to out at offset off, 
+		 * without allocating the digest.
+		 * 
+		 * @param in the bytes to digest
+		 * @param inOff the offset of the bytes to digest
+		 * @param inLen the number of bytes to digest
+		 * @param out the buffer for the digest, which has at least getDigestLength() bytes from off
+		 * @param off the offset of the digest in out
+		 * @return the length of the digest
+		 */
+		public int digestInto(byte[] in, int inOff, int inLen, byte[] out, int off) {
+			MessageDigest md = this.md.get();
+			md.update(in, inOff, inLen);
+			try {
+				return md.digest(out, off, digestLength);
+			} catch (DigestException e) {
+				md.reset();
+				throw new IllegalArgumentException("Buffer too small for the digest.", e);
+			}
+		}
 
 		public String getHexDigest(String plainText) {
 			return getHexDigest(plainText.getBytes(Charset.forName("UTF-8")));
 		}
 		public String getHexDigest(byte[] bytes) {
-			md.update(bytes, 0, bytes.length);
-			bytes = md.digest();
+			bytes = getByteDigest(bytes);
 
 			StringBuilder hexString = new StringBuilder();
 
@@ -6,16 +6,32 @@ import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.CompletionHandler;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.google.protobuf.ByteString;
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.CodedInputStream;
 
 import it.unisa.dia.gas.jpbc.Element;
 import it.unisa.dia.gas.jpbc.Field;
@@ -30,16 +46,59 @@ import kr.ac.mju.islab.RewardProto.RewardPacket;
  * <p>
  * If you are only interested on application,
  * you do not need to check detailed class like RewardScheme.
+ * <p>
+ * Sockets are served by a few I/O threads, and requests are processed by a bounded pool of
+ * worker threads, one per core by default, behind a bounded queue.
+ * When the queue is full, the request is answered at once with pid 998 and retryAfter,
+ * telling the client to retry later, rather than piling up pairings the server cannot keep up with.
+ * <p>
+ * Alternatively, each connection can be served on its own thread with blocking I/O,
+ * like RewardAndroidServer but concurrently. See useVirtualThreads.
+ * <p>
+ * A client may ask for compressed points with its pid 101 request, and then send and receive
+ * points at half the size. As aggregates repeat y for each receipt, and decompression takes
+ * a square root, decompressed keys are cached. A request with a compressed point which is not
+ * on the curve, or not in the subgroup, is refused (pid 999), as is an issue request of h not in G1.
+ * <p>
+ * Verify requests (pid 2) waiting for a worker are checked together with RewardScheme.batchVerify,
+ * which costs one multi-pairing for the batch rather than two pairings per receipt.
+ * An idle server verifies a request as soon as it arrives, while under load requests pile up
+ * behind the batches in progress, so that batches grow with the load. See setVerifyBatching.
  * 
  * @author jwlee
  * @version 1.0.0
  * @since 2017-03-08
  */
 public class RewardServer implements Runnable {
+	public static final int DEFAULT_IO_THREADS = 2;
+	public static final int DEFAULT_QUEUE_CAPACITY = 256;
+	public static final int DEFAULT_RETRY_AFTER = 100;	// ms
+	public static final long DEFAULT_KEY_CACHE_BYTES = 1 << 20;
+	public static final int DEFAULT_VERIFY_BATCH_SIZE = 64;
+	public static final int DEFAULT_VERIFY_BATCH_DELAY = 2000;	// us
 	public int bindPort;
 	private RewardScheme rewardScheme;
     private AsynchronousServerSocketChannel serverSock = null;
     private AsynchronousChannelGroup group = null;
+    private ThreadPoolExecutor workers = null;
+    private int ioThreads = DEFAULT_IO_THREADS;
+    private int workerThreads = Runtime.getRuntime().availableProcessors();
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private int retryAfter = DEFAULT_RETRY_AFTER;
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private ExecutorService connectionExecutor = null;	// Serves connections with blocking I/O, if not null.
+    private volatile RequestLog requestLog = AsyncRequestLog.getDefault();
+    private volatile RequestLog accessLog = null;
+    private final Set<SocketChannel> blockingChannels = Collections.newSetFromMap(new ConcurrentHashMap<SocketChannel, Boolean>());
+    private int maxFrameSize = FrameDecoder.DEFAULT_MAX_FRAME_SIZE;
+    private final ByteBufferPool bufferPool = new ByteBufferPool();
+    private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    private int verifyBatchSize = DEFAULT_VERIFY_BATCH_SIZE;
+    private int verifyBatchDelay = DEFAULT_VERIFY_BATCH_DELAY;
+    private VerifyBatcher verifyBatcher = null;	// null if verify requests are not batched.
+    private final AtomicLong verifyBatchCount = new AtomicLong();
+    private final AtomicLong batchedVerifyCount = new AtomicLong();
+    private final ElementCache keyCache = new ElementCache(DEFAULT_KEY_CACHE_BYTES);	// Decompressed keys y, keyed on their compressed bytes.
 
 	/**
 	 * Inherit and concrete these methods to respond directly to any protocol
@@ -53,9 +112,15 @@ public class RewardServer implements Runnable {
     public boolean onAggVerifyRequest() {
     	return true;
     }
+    public boolean onBatchVerifyRequest() {
+    	return true;
+    }
     public boolean onYRequest() {
     	return true;
     }
+    public boolean onBatchIssueRequest() {
+    	return true;
+    }
 	
 	/**
 	 * Class constructor specifying bind address, bind port,
@@ -69,6 +134,183 @@ public class RewardServer implements Runnable {
     	this.rewardScheme = rewardScheme;
     }
 
+    /**
+     * Sets the maximum size of a received packet. A client sending a larger packet is disconnected.
+     * Applies to connections accepted afterwards.
+     * 
+     * @param maxFrameSize the maximum size of a packet in bytes
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+    	this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Sets the number of threads which handle socket I/O. Applies when the server starts.
+     * 
+     * @param ioThreads the number of I/O threads
+     */
+    public void setIoThreads(int ioThreads) {
+    	this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Sets the number of threads which process requests, and the number of requests
+     * which may wait for them. Applies when the server starts.
+     * 
+     * @param workerThreads the number of worker threads, usually the number of cores
+     * @param queueCapacity the maximum number of requests waiting for a worker thread
+     */
+    public void setWorkerPool(int workerThreads, int queueCapacity) {
+    	this.workerThreads = workerThreads;
+    	this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sets the delay suggested to clients whose requests are rejected as the server is busy.
+     * 
+     * @param retryAfter the delay in milliseconds
+     */
+    public void setRetryAfter(int retryAfter) {
+    	this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Returns the number of requests waiting for a worker thread.
+     * 
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+    	ThreadPoolExecutor w = workers;
+    	VerifyBatcher batcher = verifyBatcher;
+    	return (w == null ? 0 : w.getQueue().size()) + (batcher == null ? 0 : batcher.queue.size());
+    }
+
+    /**
+     * Sets the maximum number of verify requests checked in one batch, and how long a batch may wait
+     * for more requests to arrive. The batch waits only while the server is loaded,
+     * i.e. the previous batch had more than one request. Applies when the server starts.
+     * 
+     * @param maxBatchSize the maximum number of requests in a batch, or 1 to verify each request on its own
+     * @param maxDelay the maximum time to wait for a batch to fill up, in microseconds, or 0 not to wait
+     */
+    public void setVerifyBatching(int maxBatchSize, int maxDelay) {
+    	if (maxBatchSize < 1 || maxDelay < 0) {
+    		throw new IllegalArgumentException("Invalid batch size or delay: " + maxBatchSize + ", " + maxDelay);
+    	}
+    	this.verifyBatchSize = maxBatchSize;
+    	this.verifyBatchDelay = maxDelay;
+    }
+
+    /**
+     * Returns the number of batches verify requests were checked in.
+     * 
+     * @return the number of batches
+     */
+    public long getVerifyBatchCount() {
+    	return verifyBatchCount.get();
+    }
+
+    /**
+     * Returns the number of verify requests checked in batches. Divided by getVerifyBatchCount,
+     * this is the average batch size.
+     * 
+     * @return the number of batched verify requests
+     */
+    public long getBatchedVerifyCount() {
+    	return batchedVerifyCount.get();
+    }
+
+    /**
+     * Returns the number of requests rejected as the queue was full.
+     * 
+     * @return the number of rejected requests
+     */
+    public long getRejectedCount() {
+    	return rejectedCount.get();
+    }
+
+    /**
+     * Returns the pool of buffers which responses are written from.
+     * 
+     * @return the pool of buffers
+     */
+    public ByteBufferPool getBufferPool() {
+    	return bufferPool;
+    }
+
+    /**
+     * Returns the cache of verification keys y decompressed from requests.
+     * 
+     * @return the cache of decompressed keys
+     */
+    public ElementCache getKeyCache() {
+    	return keyCache;
+    }
+
+    /**
+     * Sets the log of requests, AsyncRequestLog.getDefault() unless specified.
+     * 
+     * @param requestLog the log of requests, or null not to log
+     */
+    public void setRequestLog(RequestLog requestLog) {
+    	this.requestLog = requestLog;
+    }
+
+    /**
+     * Sets the access log, e.g. a BinaryAccessLog for audit, which is called besides the log of requests.
+     * There is none unless specified.
+     * 
+     * @param accessLog the access log, or null not to keep one
+     */
+    public void setAccessLog(RequestLog accessLog) {
+    	this.accessLog = accessLog;
+    }
+
+    /**
+     * Serves each connection on its own virtual thread with blocking I/O, if the runtime supports
+     * virtual threads (Java 21 or later). Otherwise, the server stays asynchronous.
+     * Applies when the server starts. See setConnectionExecutor for what the blocking mode gives up.
+     * 
+     * @return true if virtual threads are used
+     */
+    public boolean useVirtualThreads() {
+    	ExecutorService executor = newVirtualThreadExecutor();
+    	if (executor != null) {
+    		connectionExecutor = executor;
+    	}
+    	return executor != null;
+    }
+
+    /**
+     * Serves each connection on a thread of executor with blocking I/O,
+     * instead of asynchronous I/O and the worker pool. Requests of a connection are processed in order,
+     * on the thread of the connection. Applies when the server starts.
+     * <p>
+     * As requests are not queued for workers, they are never answered busy (pid 998),
+     * and verify requests are not batched.
+     * 
+     * @param executor the executor which runs a task per connection, or null to stay asynchronous
+     */
+    public void setConnectionExecutor(ExecutorService executor) {
+    	this.connectionExecutor = executor;
+    }
+
+    /**
+     * Returns an executor which starts a virtual thread per task, or null if the runtime has no virtual threads.
+     * 
+     * @return the executor, or null before Java 21
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+    	try {
+    		// Looked up at runtime, as the project compiles for Java 8.
+    		return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    	} catch (ReflectiveOperationException e) {
+    		return null;
+    	} catch (RuntimeException e) {	// e.g. preview feature not enabled
+    		return null;
+    	}
+    }
+
     /**
      * RewardServer implements Runnable, so could act as thread.
      * <p>
@@ -78,11 +320,18 @@ public class RewardServer implements Runnable {
      */
     @Override
     public void run() {
+        if (connectionExecutor != null) {
+        	runBlocking();
+        	return;
+        }
         InetSocketAddress sockAddr = new InetSocketAddress(bindPort);
         
         //create a socket channel and bind to local bind address
 		try {
-			group = AsynchronousChannelGroup.withThreadPool(Executors.newCachedThreadPool());
+			workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(queueCapacity));
+			verifyBatcher = verifyBatchSize > 1 ? new VerifyBatcher(verifyBatchSize, verifyBatchDelay, workerThreads, queueCapacity) : null;
+			group = AsynchronousChannelGroup.withFixedThreadPool(ioThreads, Executors.defaultThreadFactory());
 			serverSock = AsynchronousServerSocketChannel.open(group).bind(sockAddr);
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -119,10 +368,49 @@ public class RewardServer implements Runnable {
 				serverSock = AsynchronousServerSocketChannel.open().bind(sockAddr);
 			} catch (IOException e1) { }
 		} finally {
+			for (Connection conn : connections) {
+				conn.closeWhenIdle();
+			}
 			group.shutdown();
+			workers.shutdown();
 		}
     }
     
+    /*
+     * Accepts connections with blocking I/O, and serves each on a thread of connectionExecutor,
+     * until the thread is interrupted.
+     */
+    private void runBlocking() {
+    	ServerSocketChannel serverChannel = null;
+    	try {
+    		serverChannel = ServerSocketChannel.open();
+    		serverChannel.bind(new InetSocketAddress(bindPort));
+    		while (true) {
+    			SocketChannel sockChannel = serverChannel.accept();
+    			blockingChannels.add(sockChannel);
+    			connectionExecutor.execute(new BlockingConnection(sockChannel));
+    		}
+    	} catch (ClosedByInterruptException e) {
+    		System.out.println("Server interrupted.");
+    	} catch (IOException e) {
+    		e.printStackTrace();
+    	} finally {
+    		try {
+    			if (serverChannel != null) {
+    				serverChannel.close();
+    			}
+    		} catch (IOException e) { }
+    		
+    		// Stop reading, so that each connection closes once its current request is answered.
+    		for (SocketChannel sockChannel : blockingChannels) {
+    			try {
+    				sockChannel.shutdownInput();
+    			} catch (IOException e) { }
+    		}
+    		connectionExecutor.shutdown();
+    	}
+    }
+    
     /**
      * stratRead, startWrite implements underlying protocols for server-client
      * communication.
@@ -133,165 +421,697 @@ public class RewardServer implements Runnable {
      * @param sockChannel socket channel
      */
     private void startRead(AsynchronousSocketChannel sockChannel) {
-        final ByteBuffer buf = ByteBuffer.allocate(32768);	// Capable of dealing with #100 aggregated receipt
-        
-        //read message from client
-        sockChannel.read(buf, sockChannel, new CompletionHandler<Integer, AsynchronousSocketChannel>() {
-            @Override
-            public void completed(Integer result, AsynchronousSocketChannel channel) {
-            	// Process header to get a length of received packet.
-            	byte[] packetLenInfo = new byte[4];
-				buf.flip();
-				try{
-					buf.get(packetLenInfo);
-				} catch (Exception e) { }	// Ignore errors on client disconnection.
-				buf.compact();
-            	
-				int packetLen = ByteBuffer.wrap(packetLenInfo).getInt();
-				System.out.println("Received Packet Length: " + packetLen);
-				if (packetLen == 0) {
-					return;
-				}
-				byte[] recvBytePacket = new byte[packetLen];
-				if (recvBytePacket.length > 32768) {
-					System.out.println("Buffer size is smaller than received packet size: " + recvBytePacket.length);
-				}
-				buf.flip();
-				buf.get(recvBytePacket);
-				buf.compact();
-				// END
-
-                RewardPacket recvPacket = null;
-                RewardPacket sendPacket = null;
-				try {
-					recvPacket = RewardPacket.parseFrom(recvBytePacket);
-				} catch (InvalidProtocolBufferException e) {
-					e.printStackTrace();
-				}
+    	Connection conn = new Connection(sockChannel);
+    	connections.add(conn);
+    	conn.startRead();
+    }
+    
+    /**
+     * Returns the response to recvPacket.
+     * A request which cannot be processed, e.g. of an unknown pid, with a compressed point
+     * not in the group, or with h not in G1, is refused, with pid 999, so that the client is not left waiting.
+     * 
+     * @param recvPacket the request
+     * @return the response, carrying the request ID of recvPacket
+     */
+    private RewardPacket process(RewardPacket recvPacket) {
+    	long start = System.nanoTime();
+    	try {
+    		return process(recvPacket, start);
+    	} catch (IllegalArgumentException e) {	// See PointEncoding.fromBytes and RewardScheme.recIssueMaster
+    		return respond(recvPacket, refusedPacket(), start);
+    	} catch (RuntimeException e) {	// Malformed request
+    		e.printStackTrace();
+    		return respond(recvPacket, refusedPacket(), start);
+    	}
+    }
+    
+    private RewardPacket process(RewardPacket recvPacket, long start) {
+		RewardPacket sendPacket = null;
 
-				// Process packet according to its pid.
-				if (recvPacket.getPid() == 1) { // RewardScheme.recIssueMaster
-					if (onIssueRequest() == false) {	// Notifying that the protocol is refused.
-						sendPacket = RewardPacket.newBuilder()
-								.setPid(999)
-								.build();
-					}
-					else {
-						Element h = rewardScheme.G1.newElementFromBytes(recvPacket.getE1().toByteArray()).getImmutable();
-						Element psi = rewardScheme.recIssueMaster(h).getImmutable();
+		// Process packet according to its pid.
+		if (recvPacket.getPid() == 1) { // RewardScheme.recIssueMaster
+			if (onIssueRequest() == false) {	// Notifying that the protocol is refused.
+				sendPacket = RewardPacket.newBuilder()
+						.setPid(999)
+						.build();
+			}
+			else {
+				boolean compressed = recvPacket.getCompressed();
+				Element h = decodePoint(recvPacket.getE1(), rewardScheme.G1, compressed);
+				Element psi = rewardScheme.recIssueMaster(h).getImmutable();
 
-						sendPacket = RewardPacket.newBuilder()
-								.setPid(1)	// Is not necessary. Append for analysis
-								.setE1(ByteString.copyFrom(psi.toBytes()))
-								.build();
-					}
+				sendPacket = RewardPacket.newBuilder()
+						.setPid(1)	// Is not necessary. Append for analysis
+						.setE1(encodePoint(psi, compressed))
+						.setCompressed(compressed)
+						.build();
+			}
+		}
+		else if (recvPacket.getPid() == 2) {	// RewardScheme.verify
+			if (onVerifyRequest() == false) {	// Notifying that the protocol is refused.
+				sendPacket = RewardPacket.newBuilder()
+						.setPid(999)
+						.build();
+			}
+			else if (isKeyStale(recvPacket)) {	// Notifying that the key ID is not of the current key.
+				sendPacket = staleKeyPacket();
+			}
+			else {
+				Element sigma = decodePoint(recvPacket.getE1(), rewardScheme.G1, recvPacket.getCompressed());
+				Element s = rewardScheme.Zr.newElementFromBytes(recvPacket.getE2().toByteArray()).getImmutable();
+				Element y = keyOf(recvPacket);
+				
+				sendPacket = RewardPacket.newBuilder()
+						.setPid(2)	// Is not necessary. Append for analysis
+						.setIsValid(rewardScheme.verify(sigma, s, y))
+						.build();
+			}
+		}
+		else if (recvPacket.getPid() == 3) {	// RewardScheme.aggVerify
+			if (onAggVerifyRequest() == false) {	// Notifying that the protocol is refused.
+				sendPacket = RewardPacket.newBuilder()
+						.setPid(999)
+						.build();
+			}
+			else if (isKeyStale(recvPacket)) {	// Notifying that the key ID is not of the current key.
+				sendPacket = staleKeyPacket();
+			}
+			else {
+				Element sigmaAgg = decodePoint(recvPacket.getE1(), rewardScheme.G1, recvPacket.getCompressed());
+				List<Element> sList = ByteStringListToElementList(recvPacket.getEList1List(), rewardScheme.Zr);
+				List<Element> yList;
+				if (recvPacket.getKeyId() != 0 && recvPacket.getEList2Count() == 0) {	// Every receipt is of the current key.
+					yList = Collections.nCopies(sList.size(), rewardScheme.y);
 				}
-				else if (recvPacket.getPid() == 2) {	// RewardScheme.verify
-					if (onVerifyRequest() == false) {	// Notifying that the protocol is refused.
-						sendPacket = RewardPacket.newBuilder()
-								.setPid(999)
-								.build();
-					}
-					else {
-						Element sigma = rewardScheme.G1.newElementFromBytes(recvPacket.getE1().toByteArray()).getImmutable();
-						Element s = rewardScheme.Zr.newElementFromBytes(recvPacket.getE2().toByteArray()).getImmutable();
-						Element y = rewardScheme.G2.newElementFromBytes(recvPacket.getE3().toByteArray()).getImmutable();
-						
-						sendPacket = RewardPacket.newBuilder()
-								.setPid(2)	// Is not necessary. Append for analysis
-								.setIsValid(rewardScheme.verify(sigma, s, y))
-								.build();
+				else {
+					yList = new ArrayList<Element>();
+					for (ByteString b : recvPacket.getEList2List()) {
+						yList.add(decodeKey(b, recvPacket.getCompressed()));
 					}
 				}
-				else if (recvPacket.getPid() == 3) {	// RewardScheme.aggVerify
-					if (onAggVerifyRequest() == false) {	// Notifying that the protocol is refused.
-						sendPacket = RewardPacket.newBuilder()
-								.setPid(999)
-								.build();
-					}
-					else {
-						Element sigmaAgg = rewardScheme.G1.newElementFromBytes(recvPacket.getE1().toByteArray()).getImmutable();
-						List<Element> sList = ByteStringListToElementList(recvPacket.getEList1List(), rewardScheme.Zr);
-						List<Element> yList = ByteStringListToElementList(recvPacket.getEList2List(), rewardScheme.G2);
-						
-						sendPacket = RewardPacket.newBuilder()
-								.setPid(3)	// Is not necessary. Append for analysis
-								.setIsValid(rewardScheme.aggVerify(sigmaAgg, sList, yList))
-								.build();
-					}
+				
+				sendPacket = RewardPacket.newBuilder()
+						.setPid(3)	// Is not necessary. Append for analysis
+						.setIsValid(rewardScheme.aggVerify(sigmaAgg, sList, yList))
+						.build();
+			}
+		}
+		else if (recvPacket.getPid() == 4) {	// RewardScheme.batchVerify
+			if (onBatchVerifyRequest() == false) {	// Notifying that the protocol is refused.
+				sendPacket = RewardPacket.newBuilder()
+						.setPid(999)
+						.build();
+			}
+			else if (isKeyStale(recvPacket)) {	// Notifying that the key ID is not of the current key.
+				sendPacket = staleKeyPacket();
+			}
+			else {
+				List<Element> sigmaList = ByteStringListToElementList(recvPacket.getEList1List(), rewardScheme.G1, recvPacket.getCompressed());
+				List<Element> sList = ByteStringListToElementList(recvPacket.getEList2List(), rewardScheme.Zr);
+				Element y = keyOf(recvPacket);
+
+				RewardPacket.Builder builder = RewardPacket.newBuilder()
+						.setPid(4);	// Is not necessary. Append for analysis
+				for (boolean isValid : rewardScheme.batchVerify(sigmaList, sList, y)) {
+					builder.addIsValidList(isValid);
 				}
-				else if (recvPacket.getPid() == 101) {	// RewardScheme.y
-					if (onYRequest() == false) {	// Notifying that the protocol is refused.
-						sendPacket = RewardPacket.newBuilder()
-								.setPid(999)
-								.build();
-					}
-					else {
-						sendPacket = RewardPacket.newBuilder()
-								.setPid(101)	// Is not necessary. Append for analysis
-								.setE1(ByteString.copyFrom(rewardScheme.y.toBytes()))
-								.build();
-					}
+				sendPacket = builder.build();
+			}
+		}
+		else if (recvPacket.getPid() == 5) {	// RewardScheme.recIssueMasterBatch
+			if (onBatchIssueRequest() == false) {	// Notifying that the protocol is refused.
+				sendPacket = RewardPacket.newBuilder()
+						.setPid(999)
+						.build();
+			}
+			else {
+				boolean compressed = recvPacket.getCompressed();
+				List<Element> hList = ByteStringListToElementList(recvPacket.getEList1List(), rewardScheme.G1, compressed);
+
+				RewardPacket.Builder builder = RewardPacket.newBuilder()
+						.setPid(5)	// Is not necessary. Append for analysis
+						.setCompressed(compressed);
+				for (Element psi : rewardScheme.recIssueMasterBatch(hList)) {
+					builder.addEList1(encodePoint(psi, compressed));
 				}
-				else {
-					System.err.println("Unexpected: " + recvPacket.getAllFields());
-					startRead(channel);
-					return;
+				sendPacket = builder.build();
+			}
+		}
+		else if (recvPacket.getPid() == 101) {	// RewardScheme.y
+			if (onYRequest() == false) {	// Notifying that the protocol is refused.
+				sendPacket = RewardPacket.newBuilder()
+						.setPid(999)
+						.build();
+			}
+			else {
+				RewardPacket.Builder builder = RewardPacket.newBuilder()
+						.setPid(101)	// Is not necessary. Append for analysis
+						.setKeyId(rewardScheme.getKeyId())
+						.setCompressed(recvPacket.getCompressed());	// Agreeing to compressed points, if asked.
+				if (recvPacket.getKeyId() != rewardScheme.getKeyId()) {	// y is sent only if the client does not have it.
+					builder.setE1(encodePoint(rewardScheme.y, recvPacket.getCompressed()));
 				}
-				System.out.println("Recv Packet ID: " + recvPacket.getPid());
-				System.out.println("Packet Contents: " + recvPacket.getAllFields());
-
-				// Prepend packetLenInfo to the RewardPacket, so that the other side can determine the packet size
-				int sendPacketLen = sendPacket.toByteArray().length;
-				byte[] sendPacketLenInfo = ByteBuffer.allocate(4).putInt(sendPacketLen).array();
-
-				ByteBuffer sendBuf = ByteBuffer.allocate(4 + sendPacketLen);
-				sendBuf.put(sendPacketLenInfo);
-				sendBuf.put(sendPacket.toByteArray());
-				sendBuf.flip();
-                //END
-
-                startWrite(channel, sendBuf);
-            }
-
-            @Override
-            public void failed(Throwable exc, AsynchronousSocketChannel channel ) {
-            	System.err.println("Failed to receive packet from client");
-            }
-        });
+				sendPacket = builder.build();
+			}
+		}
+		else {
+			System.err.println("Unexpected: " + recvPacket.getAllFields());
+			sendPacket = refusedPacket();
+		}
+		
+		return respond(recvPacket, sendPacket, start);
+    }
+    
+    /*
+     * Returns sendPacket with the request ID of recvPacket, and logs the request.
+     * start is the System.nanoTime() processing started at.
+     */
+    private RewardPacket respond(RewardPacket recvPacket, RewardPacket sendPacket, long start) {
+		if (recvPacket.getRid() != 0) {
+			sendPacket = sendPacket.toBuilder().setRid(recvPacket.getRid()).build();
+		}
+		RequestLog requestLog = this.requestLog;
+		RequestLog accessLog = this.accessLog;
+		if (requestLog != null || accessLog != null) {
+			long elapsed = System.nanoTime() - start;
+			if (requestLog != null) {
+				requestLog.log(recvPacket, sendPacket, elapsed);
+			}
+			if (accessLog != null) {
+				accessLog.log(recvPacket, sendPacket, elapsed);
+			}
+		}
+		return sendPacket;
+    }
+    
+    private RewardPacket refusedPacket() {
+    	return RewardPacket.newBuilder()
+    			.setPid(999)
+    			.build();
+    }
+    
+    /*
+     * Whether the request carries the key ID of a key other than the current one.
+     */
+    private boolean isKeyStale(RewardPacket recvPacket) {
+    	return recvPacket.getKeyId() != 0 && recvPacket.getKeyId() != rewardScheme.getKeyId();
+    }
+    
+    /*
+     * Returns the verification key of the request: the current key if the request carries its key ID,
+     * or the key sent in e3.
+     */
+    private Element keyOf(RewardPacket recvPacket) {
+    	if (recvPacket.getKeyId() != 0) {
+    		return rewardScheme.y;
+    	}
+    	return decodeKey(recvPacket.getE3(), recvPacket.getCompressed());
+    }
+    
+    /*
+     * Returns the verification key in b. Compressed keys are decompressed once, and cached.
+     */
+    private Element decodeKey(ByteString b, boolean compressed) {
+    	if (compressed == false) {
+    		return decodePoint(b, rewardScheme.G2, false);
+    	}
+    	byte[] bytes = b.toByteArray();
+    	Element y = keyCache.get(bytes);
+    	if (y == null) {
+    		y = decodePoint(b, rewardScheme.G2, true);
+    		keyCache.put(bytes, y);
+    	}
+    	return y;
+    }
+    
+    @SuppressWarnings("rawtypes")
+    private Element decodePoint(ByteString b, Field g, boolean compressed) {
+    	return PointEncoding.fromBytes(g, b.toByteArray(), compressed).getImmutable();
+    }
+    
+    private ByteString encodePoint(Element e, boolean compressed) {
+    	return ByteString.copyFrom(PointEncoding.toBytes(e, compressed));
+    }
+    
+    private RewardPacket staleKeyPacket() {
+    	return RewardPacket.newBuilder()
+    			.setPid(997)
+    			.setKeyId(rewardScheme.getKeyId())
+    			.build();
+    }
+    
+    /**
+     * Connection is a client connection of RewardServer.
+     * <p>
+     * A request with request ID (rid) 0 is answered and the connection is closed,
+     * as older RewardClient sends one request per connection.
+     * Otherwise, the connection is kept open, and requests are processed concurrently
+     * and answered in order of completion, so that a client can pipeline requests
+     * and match responses by rid.
+     */
+    private class Connection {
+    	private final AsynchronousSocketChannel channel;
+    	private final FrameDecoder decoder = new FrameDecoder(maxFrameSize);
+    	private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+    	private final AtomicBoolean writing = new AtomicBoolean();
+    	private final AtomicInteger inFlight = new AtomicInteger();	// Requests not answered yet
+    	private volatile boolean closeWhenIdle;
+    	
+    	Connection(AsynchronousSocketChannel channel) {
+    		this.channel = channel;
+    	}
+    	
+    	void startRead() {
+    		//read message from client
+    		channel.read(decoder.buffer(), this, new CompletionHandler<Integer, Connection>() {
+    			@Override
+    			public void completed(Integer result, Connection conn) {
+    				if (result < 0) {
+    					conn.closeWhenIdle();
+    					return;
+    				}
+    				
+    				// Process every complete packet, each prefixed by its length.
+    				while (true) {
+    					RewardPacket recvPacket = null;
+    					try {
+    						// Parse straight from the receive buffer.
+    						ByteBuffer recvFrame = decoder.pollBuffer();
+    						if (recvFrame == null) {
+    							break;
+    						}
+    						recvPacket = RewardPacket.parseFrom(CodedInputStream.newInstance(recvFrame));
+    					} catch (IOException e) {	// Oversized or malformed packet
+    						e.printStackTrace();
+    						conn.close();
+    						return;
+    					}
+    					dispatch(recvPacket);
+    					
+    					if (recvPacket.getRid() == 0) {	// One request per connection.
+    						return;
+    					}
+    				}
+    				
+    				startRead();
+    			}
+    			
+    			@Override
+    			public void failed(Throwable exc, Connection conn) {
+    				if (channel.isOpen()) {
+    					System.err.println("Failed to receive packet from client");
+    				}
+    				conn.close();
+    			}
+    		});
+    	}
+    	
+    	/*
+    	 * Processes the request on a worker thread, so that the next request can be read meanwhile.
+    	 * Verify requests are handed to the batcher instead.
+    	 * If every worker is busy and the queue is full, answers with pid 998 instead.
+    	 */
+    	private void dispatch(final RewardPacket recvPacket) {
+    		inFlight.incrementAndGet();
+    		VerifyBatcher batcher = verifyBatcher;
+    		if (recvPacket.getPid() == 2 && batcher != null) {
+    			if (batcher.offer(this, recvPacket) == false) {
+    				busy(recvPacket);
+    			}
+    			return;
+    		}
+    		try {
+    			workers.execute(new Runnable() {
+    				@Override
+    				public void run() {
+    					RewardPacket sendPacket = null;
+    					try {
+    						sendPacket = process(recvPacket);
+    					} finally {
+    						complete(recvPacket, sendPacket);
+    					}
+    				}
+    			});
+    		} catch (RejectedExecutionException e) {	// Busy, or shutting down
+    			busy(recvPacket);
+    		}
+    	}
+    	
+    	/*
+    	 * Sends the response to a dispatched request, or nothing if sendPacket is null,
+    	 * i.e. processing failed with an Error. A connection of request ID 0 is closed either way.
+    	 */
+    	void complete(RewardPacket recvPacket, RewardPacket sendPacket) {
+    		if (sendPacket != null) {
+    			send(sendPacket, recvPacket.getRid() == 0);
+    			return;
+    		}
+    		if (recvPacket.getRid() == 0) {
+    			closeWhenIdle = true;
+    		}
+    		if (inFlight.decrementAndGet() == 0 && closeWhenIdle) {
+    			close();
+    		}
+    	}
+    	
+    	/*
+    	 * Answers a dispatched request with pid 998, as the server is too busy to process it.
+    	 */
+    	void busy(RewardPacket recvPacket) {
+    		rejectedCount.incrementAndGet();
+    		RewardPacket.Builder builder = RewardPacket.newBuilder()
+    				.setPid(998)
+    				.setRetryAfter(retryAfter);
+    		if (recvPacket.getRid() != 0) {
+    			builder.setRid(recvPacket.getRid());
+    		}
+    		send(builder.build(), recvPacket.getRid() == 0);
+    	}
+    	
+    	private void send(RewardPacket sendPacket, boolean closeAfter) {
+    		// Prepend packetLenInfo to the RewardPacket, so that the other side can determine the packet size
+    		ByteBuffer sendBuf = FrameDecoder.encode(sendPacket, bufferPool);
+    		
+    		if (closeAfter) {
+    			closeWhenIdle = true;
+    		}
+    		writeQueue.add(sendBuf);
+    		inFlight.decrementAndGet();
+    		startWrite();
+    	}
+    	
+    	/*
+    	 * Writes queued responses one at a time, as a channel allows only one pending write.
+    	 */
+    	private void startWrite() {
+    		while (writeQueue.isEmpty() == false && writing.compareAndSet(false, true)) {
+    			ByteBuffer sendBuf = writeQueue.peek();
+    			if (sendBuf == null) {
+    				writing.set(false);
+    				continue;
+    			}
+    			channel.write(sendBuf, sendBuf, new CompletionHandler<Integer, ByteBuffer>() {
+    				@Override
+    				public void completed(Integer result, ByteBuffer sendBuf) {
+    					if (sendBuf.hasRemaining()) {
+    						channel.write(sendBuf, sendBuf, this);
+    						return;
+    					}
+    					bufferPool.release(writeQueue.poll());
+    					writing.set(false);
+    					if (writeQueue.isEmpty() && inFlight.get() == 0 && closeWhenIdle) {
+    						close();
+    						return;
+    					}
+    					startWrite();
+    				}
+    				
+    				@Override
+    				public void failed(Throwable exc, ByteBuffer sendBuf) {
+    					System.err.println( "Fail to send packet to client");
+    					close();
+    				}
+    			});
+    			return;
+    		}
+    		if (writeQueue.isEmpty() && inFlight.get() == 0 && closeWhenIdle && writing.get() == false) {
+    			close();
+    		}
+    	}
+    	
+    	/*
+    	 * Closes the connection once every request received so far is answered.
+    	 */
+    	void closeWhenIdle() {
+    		closeWhenIdle = true;
+    		startWrite();
+    	}
+    	
+    	void close() {
+    		connections.remove(this);
+    		try {
+    			channel.close();
+    		} catch (IOException e) {
+    		}
+    	}
+    }
+    
+    /**
+     * VerifyBatcher queues verify requests of Connections, and checks them in batches on worker threads.
+     * <p>
+     * A batch is started whenever a request is queued and fewer than maxDrains batches are in progress,
+     * so that a request on an idle server is checked at once, on its own.
+     * Requests which arrive while every batch is in progress wait in the queue, and the next batch
+     * takes up to maxBatchSize of them. Requests of the same key are checked with one call of
+     * RewardScheme.batchVerify, which checks receipts one by one only if their batch fails.
+     */
+    private class VerifyBatcher {
+    	final BlockingQueue<PendingVerify> queue;
+    	private final int maxBatchSize;
+    	private final long maxDelayNanos;
+    	private final int maxDrains;
+    	private final AtomicInteger drains = new AtomicInteger();	// Batches scheduled or in progress
+    	private volatile int lastBatchSize;
+    	private final Runnable drainTask = new Runnable() {
+    		@Override
+    		public void run() {
+    			try {
+    				verifyBatch(takeBatch());
+    			} finally {
+    				drains.decrementAndGet();
+    				startDrain();	// For requests queued while every batch was in progress.
+    			}
+    		}
+    	};
+    	
+    	VerifyBatcher(int maxBatchSize, int maxDelay, int maxDrains, int queueCapacity) {
+    		this.maxBatchSize = maxBatchSize;
+    		this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelay);
+    		this.maxDrains = maxDrains;
+    		this.queue = new ArrayBlockingQueue<PendingVerify>(queueCapacity);
+    	}
+    	
+    	/*
+    	 * Queues the request, or returns false if the queue is full.
+    	 */
+    	boolean offer(Connection conn, RewardPacket recvPacket) {
+    		if (queue.offer(new PendingVerify(conn, recvPacket)) == false) {
+    			return false;
+    		}
+    		startDrain();
+    		return true;
+    	}
+    	
+    	private void startDrain() {
+    		while (queue.isEmpty() == false) {
+    			int n = drains.get();
+    			if (n >= maxDrains) {	// A batch in progress starts another when done.
+    				return;
+    			}
+    			if (drains.compareAndSet(n, n + 1)) {
+    				try {
+    					workers.execute(drainTask);
+    				} catch (RejectedExecutionException e) {	// Busy, or shutting down
+    					if (drains.decrementAndGet() == 0) {	// Nothing left to take the queued requests.
+    						PendingVerify pending;
+    						while ((pending = queue.poll()) != null) {
+    							pending.conn.busy(pending.recvPacket);
+    						}
+    					}
+    				}
+    				return;
+    			}
+    		}
+    	}
+    	
+    	/*
+    	 * Takes up to maxBatchSize queued requests. If the server is loaded,
+    	 * waits up to maxDelayNanos for more requests to fill the batch.
+    	 */
+    	private List<PendingVerify> takeBatch() {
+    		List<PendingVerify> batch = new ArrayList<PendingVerify>();
+    		queue.drainTo(batch, maxBatchSize);
+    		if (maxDelayNanos > 0 && lastBatchSize > 1) {
+    			long deadline = System.nanoTime() + maxDelayNanos;
+    			try {
+    				while (batch.size() < maxBatchSize) {
+    					long remaining = deadline - System.nanoTime();
+    					PendingVerify pending = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+    					if (pending == null) {
+    						break;
+    					}
+    					batch.add(pending);
+    					queue.drainTo(batch, maxBatchSize - batch.size());
+    				}
+    			} catch (InterruptedException e) {
+    				Thread.currentThread().interrupt();
+    			}
+    		}
+    		lastBatchSize = batch.size();
+    		return batch;
+    	}
+    	
+    	/*
+    	 * Answers each request of the batch, as process would.
+    	 */
+    	private void verifyBatch(List<PendingVerify> batch) {
+    		if (batch.isEmpty()) {
+    			return;
+    		}
+    		long start = System.nanoTime();
+    		verifyBatchCount.incrementAndGet();
+    		batchedVerifyCount.addAndGet(batch.size());
+    		try {
+    			// Requests of the same key, usually all of the current key.
+    			List<Element> keys = new ArrayList<Element>();
+    			List<List<PendingVerify>> groups = new ArrayList<List<PendingVerify>>();
+    			for (PendingVerify pending : batch) {
+    				RewardPacket recvPacket = pending.recvPacket;
+    				if (onVerifyRequest() == false) {	// Notifying that the protocol is refused.
+    					pending.sendPacket = refusedPacket();
+    					continue;
+    				}
+    				if (isKeyStale(recvPacket)) {	// Notifying that the key ID is not of the current key.
+    					pending.sendPacket = staleKeyPacket();
+    					continue;
+    				}
+    				try {
+    					pending.sigma = decodePoint(recvPacket.getE1(), rewardScheme.G1, recvPacket.getCompressed());
+    					pending.s = rewardScheme.Zr.newElementFromBytes(recvPacket.getE2().toByteArray()).getImmutable();
+    					Element y = keyOf(recvPacket);
+    					int i = 0;
+    					while (i < keys.size() && keys.get(i) != y && keys.get(i).isEqual(y) == false) {
+    						i++;
+    					}
+    					if (i == keys.size()) {
+    						keys.add(y);
+    						groups.add(new ArrayList<PendingVerify>());
+    					}
+    					groups.get(i).add(pending);
+    				} catch (IllegalArgumentException e) {	// A compressed point not in the group, refused below.
+    				} catch (RuntimeException e) {	// Malformed request, refused below as well.
+    					e.printStackTrace();
+    				}
+    			}
+    			
+    			for (int i = 0; i < keys.size(); i++) {
+    				List<PendingVerify> group = groups.get(i);
+    				List<Element> sigmaList = new ArrayList<Element>();
+    				List<Element> sList = new ArrayList<Element>();
+    				for (PendingVerify pending : group) {
+    					sigmaList.add(pending.sigma);
+    					sList.add(pending.s);
+    				}
+    				boolean[] isValid = rewardScheme.batchVerify(sigmaList, sList, keys.get(i));
+    				for (int j = 0; j < group.size(); j++) {
+    					group.get(j).sendPacket = RewardPacket.newBuilder()
+    							.setPid(2)	// Is not necessary. Append for analysis
+    							.setIsValid(isValid[j])
+    							.build();
+    				}
+    			}
+    		} finally {	// Every request is answered, if only refused, even if the batch failed.
+    			for (PendingVerify pending : batch) {
+    				RewardPacket sendPacket = respond(pending.recvPacket, pending.sendPacket == null ? refusedPacket() : pending.sendPacket, start);
+    				pending.conn.complete(pending.recvPacket, sendPacket);
+    			}
+    		}
+    	}
+    }
+    
+    private static final class PendingVerify {
+    	final Connection conn;
+    	final RewardPacket recvPacket;
+    	Element sigma;
+    	Element s;
+    	RewardPacket sendPacket;
+    	
+    	PendingVerify(Connection conn, RewardPacket recvPacket) {
+    		this.conn = conn;
+    		this.recvPacket = recvPacket;
+    	}
+    }
+    
+    /**
+     * BlockingConnection serves a client connection with blocking I/O on its own thread,
+     * reading a request, processing it, and writing the response in turn.
+     * As in Connection, a request with request ID 0 closes the connection once answered.
+     */
+    private class BlockingConnection implements Runnable {
+    	private final SocketChannel channel;
+    	
+    	BlockingConnection(SocketChannel channel) {
+    		this.channel = channel;
+    	}
+    	
+    	@Override
+    	public void run() {
+    		FrameDecoder decoder = new FrameDecoder(maxFrameSize);
+    		try {
+    			while (true) {
+    				ByteBuffer recvFrame;
+    				while ((recvFrame = decoder.pollBuffer()) == null) {
+    					if (channel.read(decoder.buffer()) < 0) {
+    						return;
+    					}
+    				}
+    				RewardPacket recvPacket = RewardPacket.parseFrom(CodedInputStream.newInstance(recvFrame));
+    				
+    				RewardPacket sendPacket = process(recvPacket);
+    				if (sendPacket != null) {
+    					ByteBuffer sendBuf = FrameDecoder.encode(sendPacket, bufferPool);
+    					while (sendBuf.hasRemaining()) {
+    						channel.write(sendBuf);
+    					}
+    					bufferPool.release(sendBuf);
+    				}
+    				if (recvPacket.getRid() == 0) {	// One request per connection.
+    					return;
+    				}
+    			}
+    		} catch (IOException e) {	// Oversized or malformed packet, or the connection is lost
+    			if (channel.isOpen()) {
+    				System.err.println(e.getMessage());
+    			}
+    		} finally {
+    			blockingChannels.remove(channel);
+    			try {
+    				channel.close();
+    			} catch (IOException e) { }
+    		}
+    	}
     }
     
-     private void startWrite(AsynchronousSocketChannel sockChannel, final ByteBuffer buf) {
-         sockChannel.write(buf, sockChannel, new CompletionHandler<Integer, AsynchronousSocketChannel>() {
-
-             @Override
-             public void completed(Integer result, AsynchronousSocketChannel channel) { 
-            	try {
-					channel.close();
-					Thread.currentThread().interrupt();
-				} catch (IOException e) {
-				}
-             }
-
-             @Override
-             public void failed(Throwable exc, AsynchronousSocketChannel channel) {
-                 System.err.println( "Fail to send packet to client");
-             }
-         });
-     }
-
      @SuppressWarnings("rawtypes")
 	private List<Element> ByteStringListToElementList(List<ByteString> bList, Field g) {
+    	 return ByteStringListToElementList(bList, g, false);
+     }
+     
+     @SuppressWarnings("rawtypes")
+	private List<Element> ByteStringListToElementList(List<ByteString> bList, Field g, boolean compressed) {
     	 List<Element> eList= new ArrayList<Element>();
     	 for (ByteString b : bList) {
-    		 eList.add(b == null ? null : g.newElementFromBytes(b.toByteArray()).getImmutable());
+    		 eList.add(b == null ? null : decodePoint(b, g, compressed));
     	 }
     	 return eList;
      }
      
+     /**
+      * Starts a server on port 3575. It is asynchronous, with the worker pool and verify batching,
+      * unless run with --virtual-threads, which serves each connection on a virtual thread instead.
+      * 
+      * @param args --virtual-threads, optionally
+      */
      public static void main(String[] args) {
         try {
-			Thread rewardServer = new Thread(new RewardServer(3575, new RewardScheme()));
+			RewardServer server = new RewardServer(3575, new RewardScheme());
+			for (String arg : args) {
+				if (arg.equals("--virtual-threads")) {
+					server.useVirtualThreads();
+				}
+			}
+			Thread rewardServer = new Thread(server);
 			rewardServer.start();
 			System.out.println("Server started");
         } catch (Exception ex) {
@@ -0,0 +1,35 @@
+package kr.ac.mju.islab;
+
+/**
+ * SpentSerialStore is the list L of serial numbers s which are already redeemed.
+ * <p>
+ * Serial numbers are keyed on their canonical encoding, s.toBytes().
+ * Implementations must be thread-safe, and addIfAbsent must be atomic so that 
+ * the same serial number cannot be redeemed twice by concurrent verifications.
+ * <p>
+ * ConcurrentSpentSerialStore is used by RewardScheme unless specified.
+ */
+public interface SpentSerialStore {
+	/**
+	 * Returns whether the serial number s is already spent.
+	 * 
+	 * @param s the canonical encoding of the serial number
+	 * @return true if s is already spent
+	 */
+	public boolean contains(byte[] s);
+
+	/**
+	 * Marks the serial number s as spent, unless it is already spent.
+	 * 
+	 * @param s the canonical encoding of the serial number
+	 * @return true if s is newly marked, false if s was already spent
+	 */
+	public boolean addIfAbsent(byte[] s);
+
+	/**
+	 * Returns the number of spent serial numbers.
+	 * 
+	 * @return the number of spent serial numbers
+	 */
+	public long size();
+}
@@ -5,6 +5,25 @@ import kr.ac.mju.islab.RewardQuery;
 import kr.ac.mju.islab.RewardScheme;
 import kr.ac.mju.islab.RewardServer;
 import kr.ac.mju.islab.RewardClient;
+import kr.ac.mju.islab.RewardAndroidServer;
+import kr.ac.mju.islab.FrameDecoder;
+import kr.ac.mju.islab.ByteBufferPool;
+import kr.ac.mju.islab.RequestLog;
+import kr.ac.mju.islab.RewardAsyncQuery;
+import kr.ac.mju.islab.FixedExponentPow;
+import kr.ac.mju.islab.AsyncRequestLog;
+import kr.ac.mju.islab.BinaryAccessLog;
+import kr.ac.mju.islab.RewardConnection;
+import kr.ac.mju.islab.RewardConnectionPool;
+import kr.ac.mju.islab.SpentSerialStore;
+import kr.ac.mju.islab.ConcurrentSpentSerialStore;
+import kr.ac.mju.islab.MappedSpentSerialStore;
+import kr.ac.mju.islab.MultiMillerPairing;
+import kr.ac.mju.islab.ElementCache;
+import kr.ac.mju.islab.PointEncoding;
+import kr.ac.mju.islab.PrecomputedTriples;
+import kr.ac.mju.islab.JacobianCurve;
+import kr.ac.mju.islab.MontgomeryField;
 import kr.ac.mju.islab.secParam.CurveName;
 import kr.ac.mju.islab.secParam.HashName;
 
@@ -14,13 +33,42 @@ import it.unisa.dia.gas.plaf.jpbc.pairing.PairingFactory;
 import static org.junit.Assert.*;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Ignore;
 import org.junit.Test;
@@ -132,6 +180,835 @@ public class RewardSchemeTest {
 		rewardServer.join();
 	}
 
+	@Test
+	public void batchQueryCheck10() throws IOException, InterruptedException {
+		// Setup
+		Thread rewardServer = new Thread(new RewardServer(6575, new RewardScheme()));
+		rewardServer.start();
+		RewardQuery query = new RewardQuery("127.0.0.1", 6575);
+		List<byte[]> sigmaList = new ArrayList<byte[]>();
+		List<byte[]> sList = new ArrayList<byte[]>();
+
+		query.configureAsHelper();
+		for (int i=0; i<10; i++) {
+			byte[][] rtn = query.recIssueHelperPre();
+			byte[] s = rtn[0];
+			byte[] r = rtn[1];
+			byte[] h = rtn[2];
+			byte[] psi = query.recIssueMaster(h);
+			byte[] sigma = query.recIssueHelperPost(r, psi, query.gety());
+			sigmaList.add(sigma);
+			sList.add(s);
+		}
+		boolean[] isValid = query.batchVerify(sigmaList, sList, query.gety());
+		assertEquals(10, isValid.length);
+		for (int i=0; i<10; i++) {
+			assertEquals(true, isValid[i]);
+		}
+
+		rewardServer.interrupt();
+		rewardServer.join();
+	}
+
+	@Test
+	public void batchIssueQueryCheck10() throws IOException, InterruptedException {
+		// Setup
+		Thread rewardServer = new Thread(new RewardServer(15575, new RewardScheme()));
+		rewardServer.start();
+		RewardQuery query = new RewardQuery("127.0.0.1", 15575);
+		List<byte[]> rList = new ArrayList<byte[]>();
+		List<byte[]> hList = new ArrayList<byte[]>();
+		List<byte[]> sList = new ArrayList<byte[]>();
+
+		query.configureAsHelper();
+		for (byte[][] rtn : query.recIssueHelperPreBatch(10)) {
+			sList.add(rtn[0]);
+			rList.add(rtn[1]);
+			hList.add(rtn[2]);
+		}
+		List<byte[]> psiList = query.recIssueMasterBatch(hList);
+		assertEquals(10, psiList.size());
+		List<byte[]> sigmaList = query.recIssueHelperPostBatch(rList, psiList, query.gety());
+		boolean[] isValid = query.batchVerify(sigmaList, sList, query.gety());
+		for (int i=0; i<10; i++) {
+			assertEquals(true, isValid[i]);
+		}
+
+		rewardServer.interrupt();
+		rewardServer.join();
+	}
+
+	@Test
+	public void keyIdQueryCheck() throws IOException, InterruptedException {
+		// Setup: record what the server receives and sends.
+		RewardScheme rewardS = new RewardScheme();
+		RewardServer server = new RewardServer(16575, rewardS);
+		final List<RewardPacket> recvPackets = new CopyOnWriteArrayList<RewardPacket>();
+		final List<RewardPacket> sendPackets = new CopyOnWriteArrayList<RewardPacket>();
+		server.setRequestLog(new RequestLog() {
+			@Override
+			public void log(RewardPacket recvPacket, RewardPacket sendPacket, long elapsedNanos) {
+				recvPackets.add(recvPacket);
+				sendPackets.add(sendPacket);
+			}
+		});
+		Thread rewardServer = new Thread(server);
+		rewardServer.start();
+		RewardQuery query = new RewardQuery("127.0.0.1", 16575);
+		
+		// y is sent to the first query only.
+		query.configureAsHelper();
+		assertEquals(rewardS.getKeyId(), sendPackets.get(0).getKeyId());
+		assertEquals(false, sendPackets.get(0).getE1().isEmpty());
+		RewardQuery query2 = new RewardQuery("127.0.0.1", 16575);
+		query2.configureAsHelper();
+		assertEquals(rewardS.getKeyId(), recvPackets.get(1).getKeyId());
+		assertEquals(true, sendPackets.get(1).getE1().isEmpty());
+		assertArrayEquals(rewardS.y.toBytes(), query2.gety());
+		
+		// Requests carry the key ID instead of y.
+		List<byte[]> sigmaList = new ArrayList<byte[]>();
+		List<byte[]> sList = new ArrayList<byte[]>();
+		for (int i=0; i<3; i++) {
+			byte[][] rtn = query2.recIssueHelperPre();
+			sigmaList.add(query2.recIssueHelperPost(rtn[1], query2.recIssueMaster(rtn[2]), query2.gety()));
+			sList.add(rtn[0]);
+		}
+		List<byte[]> yList = new ArrayList<byte[]>();
+		yList.add(query2.gety());
+		assertEquals(true, query2.verify(sigmaList.get(0), sList.get(0), query2.gety()));
+		assertEquals(rewardS.getKeyId(), recvPackets.get(5).getKeyId());
+		assertEquals(true, recvPackets.get(5).getE3().isEmpty());
+		assertEquals(true, query2.aggVerify(sigmaList.get(1), sList.subList(1, 2), yList));
+		assertEquals(0, recvPackets.get(6).getEList2Count());
+		
+		// New key: receipts of the old key are still checked against the old key.
+		long oldKeyId = rewardS.getKeyId();
+		rewardS.x = rewardS.Zr.newRandomElement().getImmutable();
+		rewardS.y = rewardS.g2.powZn(rewardS.x).getImmutable();
+		assertTrue(oldKeyId != rewardS.getKeyId());
+		assertEquals(true, query2.aggVerify(sigmaList.get(2), sList.subList(2, 3), yList));
+		assertEquals(997, sendPackets.get(7).getPid());
+		assertEquals(101, recvPackets.get(8).getPid());
+		assertEquals(1, recvPackets.get(9).getEList2Count());
+		
+		// The new key is fetched on the way, so later requests carry its ID without a retry.
+		assertArrayEquals(rewardS.y.toBytes(), query2.gety());
+		byte[][] rtn = query2.recIssueHelperPre();
+		byte[] sigma = query2.recIssueHelperPost(rtn[1], query2.recIssueMaster(rtn[2]), query2.gety());
+		assertEquals(true, query2.verify(sigma, rtn[0], query2.gety()));
+		assertEquals(rewardS.getKeyId(), recvPackets.get(11).getKeyId());
+		assertEquals(2, sendPackets.get(11).getPid());
+		
+		// A server reporting the key ID of another key is refused, instead of having that key used.
+		final long otherKeyId = rewardS.getKeyId();
+		RewardServer liar = new RewardServer(20575, new RewardScheme() {
+			@Override
+			public long getKeyId() {
+				return otherKeyId;
+			}
+		});
+		Thread liarServer = new Thread(liar);
+		liarServer.start();
+		RewardQuery query3 = new RewardQuery("127.0.0.1", 20575);
+		try {
+			query3.configureAsHelper();
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().startsWith("Key ID mismatch"));
+		}
+		
+		liarServer.interrupt();
+		liarServer.join();
+		rewardServer.interrupt();
+		rewardServer.join();
+	}
+
+	@Test
+	public void compressedQueryCheck() throws IOException, InterruptedException {
+		// Setup: record what the server receives and sends.
+		RewardScheme rewardS = new RewardScheme();
+		RewardServer server = new RewardServer(17575, rewardS);
+		final List<RewardPacket> recvPackets = new CopyOnWriteArrayList<RewardPacket>();
+		final List<RewardPacket> sendPackets = new CopyOnWriteArrayList<RewardPacket>();
+		server.setRequestLog(new RequestLog() {
+			@Override
+			public void log(RewardPacket recvPacket, RewardPacket sendPacket, long elapsedNanos) {
+				recvPackets.add(recvPacket);
+				sendPackets.add(sendPacket);
+			}
+		});
+		Thread rewardServer = new Thread(server);
+		rewardServer.start();
+		RewardQuery query = new RewardQuery("127.0.0.1", 17575);
+		
+		// The server agrees to compressed points, and sends y compressed.
+		query.configureAsHelper();
+		assertEquals(true, query.isCompressed());
+		assertEquals(ByteString.copyFrom(PointEncoding.toBytes(rewardS.y, true)), sendPackets.get(0).getE1());
+		assertArrayEquals(rewardS.y.toBytes(), query.gety());
+		
+		// h and psi are compressed, while the query takes and returns them in full.
+		List<byte[]> sigmaList = new ArrayList<byte[]>();
+		List<byte[]> sList = new ArrayList<byte[]>();
+		byte[][] rtn = query.recIssueHelperPre();
+		sigmaList.add(query.recIssueHelperPost(rtn[1], query.recIssueMaster(rtn[2]), query.gety()));
+		sList.add(rtn[0]);
+		assertEquals(true, recvPackets.get(1).getCompressed());
+		assertEquals(rtn[2].length / 2 + 1, recvPackets.get(1).getE1().size());
+		assertEquals(rtn[2].length / 2 + 1, sendPackets.get(1).getE1().size());
+		List<byte[][]> rtnList = query.recIssueHelperPreBatch(3);
+		List<byte[]> rList = new ArrayList<byte[]>();
+		List<byte[]> hList = new ArrayList<byte[]>();
+		for (byte[][] r : rtnList) {
+			rList.add(r[1]);
+			hList.add(r[2]);
+			sList.add(r[0]);
+		}
+		sigmaList.addAll(query.recIssueHelperPostBatch(rList, query.recIssueMasterBatch(hList), query.gety()));
+		assertEquals(true, query.verify(sigmaList.get(0), sList.get(0), query.gety()));
+		
+		// A query which does not ask for compressed points.
+		RewardQuery query2 = new RewardQuery("127.0.0.1", 17575);
+		query2.setCompressPoints(false);
+		query2.configureAsHelper();
+		assertEquals(false, query2.isCompressed());
+		assertEquals(true, query2.verify(sigmaList.get(1), sList.get(1), query2.gety()));
+		assertEquals(false, recvPackets.get(recvPackets.size() - 1).getCompressed());
+		
+		// New key: the old y is sent compressed for each receipt, and decompressed once.
+		List<byte[]> yList = new ArrayList<byte[]>();
+		yList.add(query.gety());
+		yList.add(query.gety());
+		rewardS.x = rewardS.Zr.newRandomElement().getImmutable();
+		rewardS.y = rewardS.g2.powZn(rewardS.x).getImmutable();
+		long hits = server.getKeyCache().getHitCount();
+		assertEquals(true, query.aggVerify(query.aggregate(sigmaList.subList(2, 4)), sList.subList(2, 4), yList));
+		assertEquals(2, recvPackets.get(recvPackets.size() - 1).getEList2Count());
+		assertTrue(server.getKeyCache().getHitCount() > hits);
+		
+		rewardServer.interrupt();
+		rewardServer.join();
+	}
+
+	@Test
+	public void verifyBatchingCheck() throws IOException, InterruptedException, ExecutionException {
+		// Setup: a single worker, so that verify requests pile up.
+		RewardScheme rewardS = new RewardScheme();
+		RewardServer server = new RewardServer(18575, rewardS);
+		server.setWorkerPool(1, 256);
+		server.setVerifyBatching(8, 1000);
+		Thread rewardServer = new Thread(server);
+		rewardServer.start();
+		RewardConnectionPool pool = new RewardConnectionPool(1, 1);
+		Thread.sleep(500);
+		RewardConnection conn = pool.get("127.0.0.1", 18575);
+		
+		// Receipts, of which the last two are invalid: a spent s, and a wrong sigma.
+		List<RewardPacket> packets = new ArrayList<RewardPacket>();
+		for (int i=0; i<12; i++) {
+			Element[] rtn = rewardS.recIssueHelperPre();
+			Element sigma = rewardS.recIssueHelperPost(rtn[1], rewardS.recIssueMaster(rtn[2]), rewardS.y);
+			packets.add(RewardPacket.newBuilder()
+					.setPid(2)
+					.setE1(ByteString.copyFrom(sigma.toBytes()))
+					.setE2(ByteString.copyFrom(rtn[0].toBytes()))
+					.setKeyId(rewardS.getKeyId())
+					.build());
+		}
+		packets.add(packets.get(0));
+		packets.add(packets.get(1).toBuilder().setE1(ByteString.copyFrom(rewardS.g1.toBytes())).build());
+		
+		// Sent at once, answered in batches.
+		List<CompletableFuture<RewardPacket>> futures = new ArrayList<CompletableFuture<RewardPacket>>();
+		for (RewardPacket packet : packets) {
+			futures.add(conn.send(packet));
+		}
+		for (int i=0; i<packets.size(); i++) {
+			RewardPacket recvPacket = futures.get(i).get();
+			assertEquals(2, recvPacket.getPid());
+			assertEquals(i < 12, recvPacket.getIsValid());
+		}
+		assertEquals(packets.size(), server.getBatchedVerifyCount());
+		assertTrue(server.getVerifyBatchCount() < server.getBatchedVerifyCount());
+		
+		// An idle server verifies a request on its own.
+		long batches = server.getVerifyBatchCount();
+		assertEquals(false, conn.send(packets.get(2)).get().getIsValid());
+		assertEquals(batches + 1, server.getVerifyBatchCount());
+		
+		pool.close();
+		rewardServer.interrupt();
+		rewardServer.join();
+	}
+
+	@Test
+	public void pipelinedQueryCheck() throws IOException, InterruptedException, ExecutionException {
+		// Setup
+		RewardScheme rewardS = new RewardScheme();
+		Thread rewardServer = new Thread(new RewardServer(7575, rewardS));
+		rewardServer.start();
+		RewardConnectionPool pool = new RewardConnectionPool(1, 1);
+		RewardQuery query = new RewardQuery("127.0.0.1", 7575, pool);
+		RewardConnection conn = pool.get("127.0.0.1", 7575);
+		
+		// Many requests outstanding on one connection.
+		List<Element> hList = new ArrayList<Element>();
+		List<CompletableFuture<RewardPacket>> futures = new ArrayList<CompletableFuture<RewardPacket>>();
+		for (int i=0; i<20; i++) {
+			Element h = rewardS.G1.newRandomElement().getImmutable();
+			hList.add(h);
+			futures.add(conn.send(RewardPacket.newBuilder()
+					.setPid(1)
+					.setE1(ByteString.copyFrom(h.toBytes()))
+					.build()));
+		}
+		
+		// Each response matches its request.
+		for (int i=0; i<20; i++) {
+			RewardPacket recvPacket = futures.get(i).get();
+			assertEquals(i + 1, recvPacket.getRid());
+			assertEquals(rewardS.recIssueMaster(hList.get(i)), rewardS.G1.newElementFromBytes(recvPacket.getE1().toByteArray()));
+		}
+		assertEquals(0, conn.getPendingCount());
+		assertEquals(conn, pool.get("127.0.0.1", 7575));
+		
+		// Requests which cannot be processed, such as an aggregate without its keys, or of an unknown pid, are refused.
+		List<CompletableFuture<RewardPacket>> refused = new ArrayList<CompletableFuture<RewardPacket>>();
+		refused.add(conn.send(RewardPacket.newBuilder()
+				.setPid(3)
+				.setE1(ByteString.copyFrom(rewardS.g1.toBytes()))
+				.addEList1(ByteString.copyFrom(rewardS.Zr.newRandomElement().toBytes()))
+				.build(), 5, TimeUnit.SECONDS));
+		refused.add(conn.send(RewardPacket.newBuilder()
+				.setPid(6)
+				.build(), 5, TimeUnit.SECONDS));
+		for (CompletableFuture<RewardPacket> future : refused) {
+			assertEquals(999, future.get().getPid());
+		}
+		assertEquals(true, conn.isOpen());
+		
+		// So is a request of a single request connection, which is closed.
+		assertEquals(999, new RewardClient("127.0.0.1", 7575, RewardPacket.newBuilder()
+				.setPid(6)
+				.build()).recvPacket.getPid());
+		
+		// Queries reuse the connection.
+		query.configureAsHelper();
+		assertArrayEquals(rewardS.y.toBytes(), query.gety());
+		assertEquals(true, conn.isOpen());
+		
+		pool.close();
+		rewardServer.interrupt();
+		rewardServer.join();
+	}
+
+	@Test
+	public void legacyServerCheck() throws IOException, InterruptedException {
+		// Setup: a server which does not echo request IDs, and answers a request per connection.
+		// It is left running, as a daemon, since it reports being interrupted with a stack trace.
+		RewardScheme rewardS = new RewardScheme();
+		Thread legacyServer = new Thread(new RewardAndroidServer(19575, rewardS));
+		legacyServer.setDaemon(true);
+		legacyServer.start();
+		Thread.sleep(1000);	// Wait for the server to bind.
+		RewardConnectionPool pool = new RewardConnectionPool(1, 1);
+		RewardQuery query = new RewardQuery("127.0.0.1", 19575, pool);
+		
+		// The first response is matched without its request ID, and the server is remembered.
+		query.configureAsHelper();
+		assertArrayEquals(rewardS.y.toBytes(), query.gety());
+		assertEquals(true, pool.isLegacy("127.0.0.1", 19575));
+		assertEquals(false, query.isCompressed());
+		
+		// Later queries get a connection each.
+		byte[][] pre = query.recIssueHelperPre();
+		byte[] psi = query.recIssueMaster(pre[2]);
+		byte[] sigma = query.recIssueHelperPost(pre[1], psi, query.gety());
+		assertEquals(true, query.verify(sigma, pre[0], query.gety()));
+		assertEquals(false, query.verify(sigma, pre[0], query.gety()));
+		
+		pool.close();
+	}
+
+	@Test
+	public void busyServerCheck() throws IOException, InterruptedException, ExecutionException {
+		// Setup: a single worker, and room for a single request waiting.
+		RewardScheme rewardS = new RewardScheme();
+		RewardServer server = new RewardServer(9575, rewardS);
+		server.setWorkerPool(1, 1);
+		server.setRetryAfter(10);
+		Thread rewardServer = new Thread(server);
+		rewardServer.start();
+		RewardConnectionPool pool = new RewardConnectionPool(1, 1);
+		RewardQuery query = new RewardQuery("127.0.0.1", 9575, pool);
+		RewardConnection conn = pool.get("127.0.0.1", 9575);
+		
+		// A burst of verify requests. Those which do not fit are answered busy.
+		Element s = rewardS.Zr.newRandomElement().getImmutable();
+		RewardPacket packet = RewardPacket.newBuilder()
+				.setPid(2)
+				.setE1(ByteString.copyFrom(rewardS.g1.toBytes()))
+				.setE2(ByteString.copyFrom(s.toBytes()))
+				.setE3(ByteString.copyFrom(rewardS.y.toBytes()))
+				.build();
+		List<CompletableFuture<RewardPacket>> futures = new ArrayList<CompletableFuture<RewardPacket>>();
+		for (int i=0; i<10; i++) {
+			futures.add(conn.send(packet));
+		}
+		int busy = 0;
+		for (int i=0; i<10; i++) {
+			RewardPacket recvPacket = futures.get(i).get();
+			assertEquals(i + 1, recvPacket.getRid());
+			if (recvPacket.getPid() == 998) {
+				assertEquals(10, recvPacket.getRetryAfter());
+				busy++;
+			}
+			else {
+				assertEquals(2, recvPacket.getPid());
+			}
+		}
+		assertTrue(busy > 0);
+		assertEquals(busy, server.getRejectedCount());
+		assertEquals(0, server.getQueueDepth());
+		
+		// Queries still get through.
+		query.configureAsHelper();
+		assertArrayEquals(rewardS.y.toBytes(), query.gety());
+		
+		pool.close();
+		rewardServer.interrupt();
+		rewardServer.join();
+	}
+
+	@Test
+	public void serverModeLoadCheck() throws IOException, InterruptedException, ExecutionException {
+		// Asynchronous server
+		RewardScheme rewardS = new RewardScheme();
+		Thread asyncServer = new Thread(new RewardServer(10575, rewardS));
+		asyncServer.start();
+		
+		// Thread per connection server, on virtual threads if available.
+		// Its worker pool is too small for the load, but is not used.
+		RewardServer server = new RewardServer(11575, rewardS);
+		if (server.useVirtualThreads() == false) {
+			server.setConnectionExecutor(Executors.newCachedThreadPool());
+		}
+		server.setWorkerPool(1, 1);
+		Thread blockingServer = new Thread(server);
+		blockingServer.start();
+		Thread.sleep(1000);	// Wait for the servers to bind.
+		
+		// Legacy one-shot client on the blocking server
+		assertArrayEquals(rewardS.y.toBytes(), new RewardClient("127.0.0.1", 11575, RewardPacket.newBuilder()
+				.setPid(101)
+				.build()).recvPacket.getE1().toByteArray());
+		
+		// Both answer every request, neither busy at this load. The blocking server answers
+		// the requests of a connection in order. A round on each first warms them up.
+		loadTest(rewardS, 10575, 8, 2, false);
+		loadTest(rewardS, 11575, 8, 2, true);
+		long start = System.nanoTime();
+		assertEquals(0, loadTest(rewardS, 10575, 8, 10, false));
+		long asyncNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		assertEquals(0, loadTest(rewardS, 11575, 8, 10, true));
+		long blockingNanos = System.nanoTime() - start;
+		assertEquals(0, server.getRejectedCount());
+		
+		// Neither mode is far slower than the other. The bound is loose, as the machine may be busy.
+		assertTrue("async " + asyncNanos + " ns, blocking " + blockingNanos + " ns", blockingNanos < 10 * asyncNanos);
+		assertTrue("async " + asyncNanos + " ns, blocking " + blockingNanos + " ns", asyncNanos < 10 * blockingNanos);
+		
+		asyncServer.interrupt();
+		asyncServer.join();
+		blockingServer.interrupt();
+		blockingServer.join();
+	}
+	
+	/*
+	 * Pipelines numReq issue requests on each of numConn connections, and checks every response.
+	 * Returns the number of busy responses.
+	 */
+	private int loadTest(RewardScheme rewardS, int port, int numConn, int numReq, boolean inOrder) throws IOException, InterruptedException, ExecutionException {
+		RewardConnectionPool pool = new RewardConnectionPool(numConn, 2);
+		List<RewardConnection> conns = new ArrayList<RewardConnection>();
+		for (int i=0; i<numConn; i++) {
+			conns.add(pool.get("127.0.0.1", port));
+		}
+		Element h = rewardS.G1.newRandomElement().getImmutable();
+		Element psi = rewardS.recIssueMaster(h);
+		RewardPacket packet = RewardPacket.newBuilder()
+				.setPid(1)
+				.setE1(ByteString.copyFrom(h.toBytes()))
+				.build();
+		
+		// Responses of each connection, in the order they arrive.
+		List<List<Long>> arrivals = new ArrayList<List<Long>>();
+		for (int i=0; i<numConn; i++) {
+			arrivals.add(new CopyOnWriteArrayList<Long>());
+		}
+		List<CompletableFuture<RewardPacket>> futures = new ArrayList<CompletableFuture<RewardPacket>>();
+		List<Long> rids = new ArrayList<Long>();
+		for (int j=0; j<numReq; j++) {
+			for (int i=0; i<numConn; i++) {
+				final List<Long> arrival = arrivals.get(i);
+				CompletableFuture<RewardPacket> future = conns.get(i).send(packet);
+				future.thenAccept(new Consumer<RewardPacket>() {
+					public void accept(RewardPacket recvPacket) {
+						arrival.add(recvPacket.getRid());
+					}
+				});
+				futures.add(future);
+				rids.add((long) (j + 1));	// Request IDs of a connection count up from 1.
+			}
+		}
+		int busy = 0;
+		for (int k=0; k<futures.size(); k++) {
+			RewardPacket recvPacket = futures.get(k).get();
+			assertEquals((long) rids.get(k), recvPacket.getRid());
+			if (recvPacket.getPid() == 998) {
+				busy++;
+			}
+			else {
+				assertEquals(1, recvPacket.getPid());
+				assertEquals(psi, rewardS.G1.newElementFromBytes(recvPacket.getE1().toByteArray()));
+			}
+		}
+		if (inOrder) {
+			for (List<Long> arrival : arrivals) {
+				for (int j=0; j<numReq; j++) {
+					assertEquals(j + 1, (long) arrival.get(j));
+				}
+			}
+		}
+		
+		pool.close();
+		return busy;
+	}
+
+	@Test
+	public void requestLogCheck() throws IOException, InterruptedException {
+		// Setup
+		RewardScheme rewardS = new RewardScheme();
+		RewardServer server = new RewardServer(12575, rewardS);
+		final List<RewardPacket> logged = new CopyOnWriteArrayList<RewardPacket>();
+		server.setRequestLog(new RequestLog() {
+			@Override
+			public void log(RewardPacket recvPacket, RewardPacket sendPacket, long elapsedNanos) {
+				logged.add(recvPacket);
+			}
+		});
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryAccessLog accessLog = new BinaryAccessLog(out, 16);
+		server.setAccessLog(accessLog);
+		Thread rewardServer = new Thread(server);
+		rewardServer.start();
+		RewardConnectionPool pool = new RewardConnectionPool(1, 1);
+		RewardQuery query = new RewardQuery("127.0.0.1", 12575, pool);
+		
+		query.configureAsHelper();
+		Element s = rewardS.Zr.newRandomElement().getImmutable();
+		assertEquals(false, query.verify(rewardS.g1.toBytes(), s.toBytes(), rewardS.y.toBytes()));
+		pool.close();
+		rewardServer.interrupt();
+		rewardServer.join();
+		
+		// Both logs have every request, in order.
+		assertEquals(2, logged.size());
+		assertEquals(101, logged.get(0).getPid());
+		assertEquals(2, logged.get(1).getPid());
+		accessLog.close();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(2 * BinaryAccessLog.RECORD_SIZE, out.size());
+		for (int pid : new int[] {101, 2}) {
+			in.readLong();	// time
+			assertEquals(logged.get(pid == 101 ? 0 : 1).getRid(), in.readLong());
+			assertTrue(in.readLong() > 0);	// elapsed
+			assertEquals(pid, in.readInt());
+			in.readInt();	// length
+			assertEquals(pid, in.readInt());
+			assertEquals(0, in.readByte());
+		}
+		
+		// Sampling, and nothing at all below INFO
+		Logger logger = Logger.getAnonymousLogger();
+		logger.setUseParentHandlers(false);
+		final List<String> messages = new CopyOnWriteArrayList<String>();
+		logger.addHandler(new Handler() {
+			@Override
+			public void publish(LogRecord record) {
+				messages.add(record.getMessage());
+			}
+			@Override
+			public void flush() { }
+			@Override
+			public void close() { }
+		});
+		AsyncRequestLog requestLog = new AsyncRequestLog(logger, 2, 16);
+		for (int i=0; i<4; i++) {
+			requestLog.log(logged.get(1), logged.get(1), 1000);
+		}
+		for (int i=0; i<100 && messages.size() < 2; i++) {
+			Thread.sleep(10);
+		}
+		logger.setLevel(Level.WARNING);
+		requestLog.log(logged.get(1), logged.get(1), 1000);
+		Thread.sleep(50);
+		assertEquals(2, messages.size());
+		assertTrue(messages.get(0).startsWith("Recv Packet ID: 2"));
+		requestLog.close();
+	}
+
+	@Test
+	public void accessLogFailureCheck() throws InterruptedException {
+		// Setup: a stream which fails, and a handler in place of the console.
+		Logger logger = Logger.getLogger(BinaryAccessLog.class.getName());
+		logger.setUseParentHandlers(false);
+		final List<LogRecord> records = new CopyOnWriteArrayList<LogRecord>();
+		Handler handler = new Handler() {
+			@Override
+			public void publish(LogRecord record) {
+				records.add(record);
+			}
+			@Override
+			public void flush() { }
+			@Override
+			public void close() { }
+		};
+		logger.addHandler(handler);
+		BinaryAccessLog accessLog = new BinaryAccessLog(new java.io.OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("Disk full");
+			}
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				throw new IOException("Disk full");
+			}
+		}, 16);
+		RewardPacket packet = RewardPacket.newBuilder().setPid(2).setIsValid(true).build();
+		
+		// The failure is logged and kept, and later records are dropped.
+		try {
+			accessLog.log(packet, packet, 1000);
+			for (int i=0; i<100 && accessLog.getFailure() == null; i++) {
+				Thread.sleep(10);
+			}
+			assertEquals("Disk full", accessLog.getFailure().getMessage());
+			assertEquals(1, records.size());
+			assertEquals(Level.SEVERE, records.get(0).getLevel());
+			assertEquals(1, accessLog.getDroppedCount());
+			accessLog.log(packet, packet, 1000);
+			assertEquals(2, accessLog.getDroppedCount());
+			
+			// close reports it, too.
+			try {
+				accessLog.close();
+				fail();
+			} catch (IOException e) {
+				assertEquals(accessLog.getFailure(), e.getCause());
+			}
+		} finally {
+			logger.removeHandler(handler);
+			logger.setUseParentHandlers(true);
+		}
+	}
+
+	@Test
+	public void asyncQueryCheck() throws IOException, InterruptedException, ExecutionException {
+		// Setup
+		RewardScheme rewardS = new RewardScheme();
+		Thread rewardServer = new Thread(new RewardServer(13575, rewardS));
+		rewardServer.start();
+		RewardConnectionPool pool = new RewardConnectionPool(1, 1);
+		final RewardAsyncQuery query = new RewardAsyncQuery("127.0.0.1", 13575, pool);
+		Thread.sleep(500);	// Wait for the server to bind.
+		query.configureAsHelper().get();
+		assertArrayEquals(rewardS.y.toBytes(), query.gety());
+		
+		// Issue receipts, all in flight at once.
+		List<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>();
+		for (int i=0; i<10; i++) {
+			final byte[][] pre = query.recIssueHelperPre();
+			futures.add(query.recIssueMaster(pre[2]).thenCompose(new Function<byte[], CompletionStage<Boolean>>() {
+				@Override
+				public CompletionStage<Boolean> apply(byte[] psi) {
+					byte[] sigma = query.recIssueHelperPost(pre[1], psi, query.gety());
+					return query.verify(sigma, pre[0], query.gety());
+				}
+			}));
+		}
+		for (CompletableFuture<Boolean> future : futures) {
+			assertEquals(true, future.get());
+		}
+		pool.close();
+		rewardServer.interrupt();
+		rewardServer.join();
+		
+		// A server which never answers
+		ServerSocketChannel silentServer = ServerSocketChannel.open().bind(new InetSocketAddress(14575));
+		pool = new RewardConnectionPool(1, 1);
+		RewardAsyncQuery silentQuery = new RewardAsyncQuery("127.0.0.1", 14575, pool);
+		silentQuery.setTimeout(200, TimeUnit.MILLISECONDS);
+		try {
+			silentQuery.recIssueMaster(rewardS.g1.toBytes()).get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		assertEquals(0, pool.get("127.0.0.1", 14575).getPendingCount());
+		pool.close();
+		silentServer.close();
+		
+		// A server which is not there fails the future, rather than the call.
+		pool = new RewardConnectionPool(1, 1);
+		RewardAsyncQuery downQuery = new RewardAsyncQuery("127.0.0.1", 14575, pool);
+		CompletableFuture<byte[]> psi = downQuery.recIssueMaster(rewardS.g1.toBytes());
+		try {
+			psi.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		pool.close();
+	}
+
+	@Test
+	public void largeAggQueryCheck() throws IOException, InterruptedException {
+		// Setup
+		RewardScheme rewardS = new RewardScheme();
+		Thread rewardServer = new Thread(new RewardServer(8575, rewardS));
+		rewardServer.start();
+		RewardQuery query = new RewardQuery("127.0.0.1", 8575);
+		List<byte[]> sList = new ArrayList<byte[]>();
+		List<byte[]> yList = new ArrayList<byte[]>();
+		
+		// About 1 MB of packet. The first serial number is spent, so that the server answers quickly.
+		for (int i=0; i<5000; i++) {
+			sList.add(rewardS.Zr.newRandomElement().toBytes());
+			yList.add(rewardS.y.toBytes());
+		}
+		rewardS.L.addIfAbsent(sList.get(0));
+		assertEquals(false, query.aggVerify(rewardS.g1.toBytes(), sList, yList));
+		assertEquals(false, new RewardClient("127.0.0.1", 8575, RewardPacket.newBuilder()
+				.setPid(3)
+				.setE1(ByteString.copyFrom(rewardS.g1.toBytes()))
+				.addAllEList1(BytesListToByteStringList(sList))
+				.addAllEList2(BytesListToByteStringList(yList))
+				.build()).recvPacket.getIsValid());
+		
+		rewardServer.interrupt();
+		rewardServer.join();
+	}
+	
+	@Test
+	public void frameDecoderCheck() throws IOException {
+		// Three frames, of which the second is larger than the initial buffer.
+		byte[][] frames = new byte[][] {"abc".getBytes(), new byte[100000], new byte[0]};
+		frames[1][99999] = 7;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] frame : frames) {
+			ByteBuffer buf = FrameDecoder.encode(frame);
+			out.write(buf.array(), 0, buf.limit());
+		}
+		final ByteBuffer stream = ByteBuffer.wrap(out.toByteArray());
+		
+		// A channel which returns at most 1000 bytes per read.
+		ReadableByteChannel channel = new ReadableByteChannel() {
+			public int read(ByteBuffer dst) {
+				if (stream.hasRemaining() == false) {
+					return -1;
+				}
+				int n = Math.min(Math.min(1000, dst.remaining()), stream.remaining());
+				for (int i=0; i<n; i++) {
+					dst.put(stream.get());
+				}
+				return n;
+			}
+			public boolean isOpen() {
+				return true;
+			}
+			public void close() {
+			}
+		};
+		FrameDecoder decoder = new FrameDecoder();
+		for (byte[] frame : frames) {
+			assertArrayEquals(frame, decoder.readFrame(channel));
+		}
+		assertEquals(null, decoder.poll());
+		
+		// Oversized
+		decoder = new FrameDecoder(10);
+		decoder.buffer().put(FrameDecoder.encode(new byte[11]));
+		try {
+			decoder.poll();
+			fail();
+		} catch (IOException e) { }
+	}
+
+	@Test
+	public void oversizedResponseCheck() throws IOException, InterruptedException {
+		// Setup: a server which answers with an oversized frame, then, once that is read, a valid one.
+		final ServerSocketChannel badServer = ServerSocketChannel.open().bind(new InetSocketAddress(22575));
+		Thread serverThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try (SocketChannel channel = badServer.accept()) {
+					channel.read(ByteBuffer.allocate(1024));
+					ByteBuffer oversized = ByteBuffer.allocate(12);
+					oversized.putInt(Integer.MAX_VALUE).flip();
+					channel.write(oversized);
+					Thread.sleep(300);
+					channel.write(FrameDecoder.encode(RewardPacket.newBuilder().setPid(1).build().toByteArray()));
+					while (channel.read(ByteBuffer.allocate(1024)) >= 0) { }	// Until the client closes.
+				} catch (IOException e) {	// The client closed first.
+				} catch (InterruptedException e) {
+				}
+			}
+		});
+		serverThread.start();
+		
+		// The client gives up on the oversized frame, rather than read on from the middle of it.
+		assertNull(new RewardClient("127.0.0.1", 22575, RewardPacket.newBuilder()
+				.setPid(101)
+				.build()).recvPacket);
+		
+		serverThread.join(5000);
+		badServer.close();
+	}
+
+	@Test
+	public void bufferPoolCheck() throws IOException {
+		ByteBufferPool pool = new ByteBufferPool(4096, 2);
+		
+		// Size classes
+		ByteBuffer buf = pool.acquire(300);
+		assertEquals(true, buf.isDirect());
+		assertEquals(512, buf.capacity());
+		pool.release(buf);
+		assertSame(buf, pool.acquire(400));
+		assertEquals(1, pool.getReuseCount());
+		assertEquals(false, pool.acquire(5000).isDirect());
+		
+		// Encoded packet is decoded as it was, straight from the receive buffer.
+		RewardScheme rewardS = new RewardScheme();
+		RewardPacket packet = RewardPacket.newBuilder()
+				.setPid(2)
+				.setE1(ByteString.copyFrom(rewardS.g1.toBytes()))
+				.setRid(7)
+				.build();
+		FrameDecoder decoder = new FrameDecoder();
+		buf = FrameDecoder.encode(packet, pool);
+		decoder.buffer().put(buf);
+		decoder.buffer().put(FrameDecoder.encode(packet, pool));
+		pool.release(buf);
+		for (int i=0; i<2; i++) {
+			assertEquals(packet, RewardPacket.parseFrom(CodedInputStream.newInstance(decoder.pollBuffer())));
+		}
+		assertEquals(null, decoder.pollBuffer());
+	}
+
 	/*
 	 * RewardClient related tests.
 	 */
@@ -189,6 +1066,256 @@ public class RewardSchemeTest {
 		}
 	}
 
+	@Test
+	public void pointEncodingCheck() {
+		// Setup
+		RewardScheme rewardS = new RewardScheme();
+		Element g1 = rewardS.G1.newRandomElement().getImmutable();
+		Element g2 = rewardS.G2.newRandomElement().getImmutable();
+		Element zr = rewardS.Zr.newRandomElement().getImmutable();
+		
+		// Points are compressed to half the size, and read back.
+		assertEquals(g1.toBytes().length / 2 + 1, PointEncoding.toBytes(g1, true).length);
+		assertEquals(g1, PointEncoding.fromBytes(rewardS.G1, PointEncoding.toBytes(g1, true), true));
+		assertEquals(g2, PointEncoding.fromBytes(rewardS.G2, PointEncoding.compress(rewardS.G2, g2.toBytes()), true));
+		assertEquals(g1, PointEncoding.fromBytes(rewardS.G1, PointEncoding.toBytes(g1, false), false));
+		
+		// Others are not.
+		assertArrayEquals(zr.toBytes(), PointEncoding.toBytes(zr, true));
+		assertEquals(zr, PointEncoding.fromBytes(rewardS.Zr, zr.toBytes(), true));
+		
+		// An x not on the curve, an x on the curve but not in the subgroup, and a truncated point are refused.
+		for (byte[] bytes : new byte[][] {compressedX(rewardS, false), compressedX(rewardS, true), Arrays.copyOf(PointEncoding.toBytes(g1, true), 64)}) {
+			try {
+				PointEncoding.fromBytes(rewardS.G1, bytes, true);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+		}
+	}
+
+	@Test
+	public void invalidPointCheck() throws IOException, InterruptedException {
+		// Setup
+		RewardScheme rewardS = new RewardScheme();
+		Thread rewardServer = new Thread(new RewardServer(21575, rewardS));
+		rewardServer.start();
+		Thread.sleep(1000);	// Wait for the server to bind.
+		byte[] offCurve = compressedX(rewardS, false);
+		
+		// Issue and verify requests with a compressed point not on the curve are refused.
+		assertEquals(999, new RewardClient("127.0.0.1", 21575, RewardPacket.newBuilder()
+				.setPid(1)
+				.setE1(ByteString.copyFrom(offCurve))
+				.setCompressed(true)
+				.build()).recvPacket.getPid());
+		assertEquals(999, new RewardClient("127.0.0.1", 21575, RewardPacket.newBuilder()
+				.setPid(2)
+				.setE1(ByteString.copyFrom(offCurve))
+				.setE2(ByteString.copyFrom(rewardS.Zr.newRandomElement().toBytes()))
+				.setE3(ByteString.copyFrom(PointEncoding.toBytes(rewardS.y, true)))
+				.setCompressed(true)
+				.build()).recvPacket.getPid());
+		
+		// So are issue requests of h of order 2, (0, 0), which is on the curve, uncompressed.
+		byte[] order2 = new byte[rewardS.g1.toBytes().length];
+		try {
+			rewardS.recIssueMaster(rewardS.G1.newElementFromBytes(order2));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		assertEquals(999, new RewardClient("127.0.0.1", 21575, RewardPacket.newBuilder()
+				.setPid(1)
+				.setE1(ByteString.copyFrom(order2))
+				.build()).recvPacket.getPid());
+		assertEquals(999, new RewardClient("127.0.0.1", 21575, RewardPacket.newBuilder()
+				.setPid(5)
+				.addEList1(ByteString.copyFrom(rewardS.G1.newRandomElement().toBytes()))
+				.addEList1(ByteString.copyFrom(order2))
+				.build()).recvPacket.getPid());
+		
+		// The server is still serving.
+		RewardQuery query = new RewardQuery("127.0.0.1", 21575);
+		query.configureAsHelper();
+		byte[][] pre = query.recIssueHelperPre();
+		assertNotNull(query.recIssueMaster(pre[2]));
+		
+		rewardServer.interrupt();
+		rewardServer.join();
+	}
+	
+	/*
+	 * Returns a compressed point of G1 with a random x, for which x^3 + x of curve a is a square if onCurve.
+	 */
+	private byte[] compressedX(RewardScheme rewardS, boolean onCurve) {
+		Field<?> fq = ((Point<?>) rewardS.G1.newElement()).getX().getField();
+		Element x = fq.newRandomElement();
+		while (x.duplicate().square().add(fq.newOneElement()).mul(x).isSqr() != onCurve) {
+			x.setToRandom();
+		}
+		return Arrays.copyOf(x.toBytes(), x.getLengthInBytes() + 1);
+	}
+
+	@Test
+	public void precomputationCheck() throws InterruptedException {
+		// Setup: wait for the pool to fill up.
+		RewardScheme rewardS = new RewardScheme();
+		rewardS.setPrecomputation(2, 4);
+		PrecomputedTriples triples = rewardS.getPrecomputation();
+		for (int i=0; i<300 && triples.size() < 4; i++) {
+			Thread.sleep(100);
+		}
+		assertEquals(4, triples.size());
+		
+		// Issuance takes a precomputed triple, which makes a valid receipt.
+		Element[] rtn = rewardS.recIssueHelperPre();
+		assertEquals(1, triples.getHitCount());
+		Element sigma = rewardS.recIssueHelperPost(rtn[1], rewardS.recIssueMaster(rtn[2]), rewardS.y);
+		assertEquals(true, rewardS.verify(sigma, rtn[0], rewardS.y));
+		
+		// Distinct serial numbers, while the pool is refilled.
+		Set<String> sSet = new HashSet<String>();
+		sSet.add(rtn[0].toString());
+		for (int i=0; i<5; i++) {
+			assertTrue(sSet.add(rewardS.recIssueHelperPre()[0].toString()));
+		}
+		assertEquals(6, triples.getHitCount() + triples.getMissCount());
+		
+		// Disabled
+		rewardS.setPrecomputation(0, 0);
+		assertNull(rewardS.getPrecomputation());
+		assertEquals(3, rewardS.recIssueHelperPre().length);
+	}
+
+	@Test
+	public void jacobianCurveCheck() {
+		// Setup
+		RewardScheme rewardS = new RewardScheme();
+		JacobianCurve curve = JacobianCurve.getInstance(rewardS.G1);
+		assertNotNull(curve);
+		assertNull(JacobianCurve.getInstance(rewardS.Zr));
+		Element h = rewardS.G1.newRandomElement().getImmutable();
+		BigInteger order = rewardS.Zr.getOrder();
+		
+		// Same as CurveElement, including the exponents around the order and infinity.
+		for (BigInteger n : new BigInteger[] {BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(7), rewardS.x.toBigInteger(), 
+				order.subtract(BigInteger.ONE), order, order.add(BigInteger.ONE)}) {
+			assertEquals(h.duplicate().pow(n), curve.pow(h, n));
+		}
+		assertEquals(rewardS.G1.newOneElement(), curve.pow(rewardS.G1.newOneElement(), rewardS.x.toBigInteger()));
+		
+		// Hash to G1, including a digest which lifts to a point of order 2.
+		for (byte[] digest : new byte[][] {rewardS.hash.getByteDigest("s1"), rewardS.hash.getByteDigest("s2"), new byte[32]}) {
+			Element expected = rewardS.G1.newElement().setFromHash(digest, 0, digest.length);
+			assertArrayEquals(expected.toBytes(), curve.newElementFromHash(digest, 0, digest.length).toBytes());
+		}
+	}
+
+	@Test
+	public void montgomeryFieldCheck() {
+		// Setup
+		RewardScheme rewardS = new RewardScheme();
+		BigInteger q = ((Point) rewardS.G1.newRandomElement()).getX().getField().getOrder();
+		MontgomeryField fq = new MontgomeryField(q);
+		BigInteger[] values = new BigInteger[] {BigInteger.ZERO, BigInteger.ONE, q.subtract(BigInteger.ONE), 
+				rewardS.Zr.newRandomElement().toBigInteger(), ((Point) rewardS.G1.newRandomElement()).getX().toBigInteger()};
+		long[] r = fq.newElement();
+		
+		// Same as BigInteger mod q, including the values around q.
+		for (BigInteger a : values) {
+			long[] x = fq.newElement(a);
+			assertEquals(a, fq.toBigInteger(x));
+			fq.negate(x, r);
+			assertEquals(a.negate().mod(q), fq.toBigInteger(r));
+			fq.invert(x, r);
+			assertEquals(a.signum() == 0 ? a : a.modInverse(q), fq.toBigInteger(r));
+			for (BigInteger b : values) {
+				long[] y = fq.newElement(b);
+				fq.mul(x, y, r);
+				assertEquals(a.multiply(b).mod(q), fq.toBigInteger(r));
+				fq.add(x, y, r);
+				assertEquals(a.add(b).mod(q), fq.toBigInteger(r));
+				fq.sub(x, y, r);
+				assertEquals(a.subtract(b).mod(q), fq.toBigInteger(r));
+			}
+		}
+		fq.square(fq.newElement(q.subtract(BigInteger.ONE)), r);
+		assertTrue(Arrays.equals(fq.newOneElement(), r));
+	}
+
+	@Test
+	public void batchIssueCheck() {
+		// Setup
+		RewardScheme rewardS = new RewardScheme();
+		List<Element> hList = new ArrayList<Element>();
+		for (int i=0; i<8; i++) {
+			hList.add(rewardS.recIssueHelperPre()[2]);
+		}
+		hList.add(rewardS.G1.newOneElement().getImmutable());
+		
+		// Fixed exponent of every window size, and the exponents around it,
+		// recoded to their own bit length and to that of the group order.
+		BigInteger order = rewardS.Zr.getOrder();
+		for (int w=2; w<=7; w++) {
+			for (BigInteger e : new BigInteger[] {rewardS.x.toBigInteger(), BigInteger.ZERO, BigInteger.ONE, BigInteger.valueOf(255), 
+					BigInteger.valueOf(256), order.subtract(BigInteger.ONE)}) {
+				assertEquals(hList.get(0).duplicate().pow(e), new FixedExponentPow(e, w).pow(hList.get(0)));
+				assertEquals(hList.get(0).duplicate().pow(e), new FixedExponentPow(e, w, order.bitLength()).pow(hList.get(0)));
+			}
+		}
+		
+		// Sequential and parallel
+		for (ForkJoinPool pool : new ForkJoinPool[] {null, new ForkJoinPool(3)}) {
+			rewardS.setIssuePool(pool);
+			List<Element> psiList = rewardS.recIssueMasterBatch(hList);
+			assertEquals(hList.size(), psiList.size());
+			for (int i=0; i<hList.size(); i++) {
+				assertEquals(rewardS.recIssueMaster(hList.get(i)), psiList.get(i));
+			}
+		}
+		
+		// x is replaced.
+		rewardS.x = rewardS.Zr.newRandomElement().getImmutable();
+		assertEquals(rewardS.recIssueMaster(hList.get(0)), rewardS.recIssueMasterBatch(hList).get(0));
+	}
+
+	@Test
+	public void powTablesCheck() throws IOException {
+		// Setup
+		File file = File.createTempFile("powTables", ".dat");
+		file.deleteOnExit();
+		RewardScheme master = new RewardScheme();
+		master.setPowWindowSize(4);
+		master.savePowTables(file.getPath());
+		
+		// Helper skips building tables.
+		RewardScheme helper = new RewardScheme();
+		helper.configureAsHelper(master.y);
+		assertEquals(true, helper.loadPowTables(file.getPath()));
+		
+		Element[] rtn = helper.recIssueHelperPre();
+		Element s = rtn[0];
+		Element r = rtn[1];
+		Element h = rtn[2];
+		byte[] digest = helper.hash.getByteDigest(s.toBytes());
+		assertEquals(helper.g1.powZn(r).mul(helper.G1.newElement().setFromHash(digest, 0, digest.length)), h);
+		
+		Element psi = master.recIssueMaster(h);
+		Element sigma = helper.recIssueHelperPost(r, psi, helper.y);
+		assertEquals(true, master.verify(sigma, s, master.y));
+		
+		// Tables of another y are not loaded.
+		assertEquals(false, new RewardScheme().loadPowTables(file.getPath()));
+		
+		// Nor are those of another g1, here of another hash. The helper builds its own then.
+		RewardScheme otherHelper = new RewardScheme(CurveName.a, HashName.SHA1);
+		otherHelper.configureAsHelper(master.y);
+		assertEquals(false, otherHelper.loadPowTables(file.getPath()));
+		rtn = otherHelper.recIssueHelperPre();
+		digest = otherHelper.hash.getByteDigest(rtn[0].toBytes());
+		assertEquals(otherHelper.g1.powZn(rtn[1]).mul(otherHelper.G1.newElement().setFromHash(digest, 0, digest.length)), rtn[2]);
+	}
+	
 	@Test
 	public void aggVeriCheck() {
 		// Setup
@@ -213,6 +1340,219 @@ public class RewardSchemeTest {
 		
 		// Verify
 		assertEquals(true, rewardS.aggVerify(sigmaAgg, sList, yList));
+		
+		// Receipts of another master key
+		RewardScheme rewardS2 = new RewardScheme();
+		for (int i=0; i<3; i++) {
+			Element[] rtn = rewardS2.recIssueHelperPre();
+			Element psi = rewardS2.recIssueMaster(rtn[2]);
+			sigmaList.add(rewardS2.recIssueHelperPost(rtn[1], psi, rewardS2.y));
+			sList.add(rtn[0]);
+			yList.add(rewardS2.y);
+		}
+		sigmaAgg = rewardS.aggregate(sigmaList);
+		assertEquals(true, rewardS.aggVerify(sigmaAgg, sList, yList));
+		
+		// Parallel
+		ForkJoinPool pool = new ForkJoinPool(4);
+		rewardS.setAggVerifyPool(pool, 1);
+		assertEquals(true, rewardS.aggVerify(sigmaAgg, sList, yList));
+		
+		// Tampered
+		yList.set(0, rewardS2.y);
+		assertEquals(false, rewardS.aggVerify(sigmaAgg, sList, yList));
+		rewardS.setAggVerifyPool(null, 0);
+		assertEquals(false, rewardS.aggVerify(sigmaAgg, sList, yList));
+		pool.shutdown();
+	}
+	
+	@Test
+	public void hashCacheCheck() {
+		// Setup
+		RewardScheme rewardS = new RewardScheme();
+		List<Element> sigmaList = new ArrayList<Element>();
+		List<Element> sList = new ArrayList<Element>();
+		List<Element> yList = new ArrayList<Element>();
+		for (int i=0; i<5; i++) {
+			Element[] rtn = rewardS.recIssueHelperPre();
+			Element psi = rewardS.recIssueMaster(rtn[2]);
+			sigmaList.add(rewardS.recIssueHelperPost(rtn[1], psi, rewardS.y));
+			sList.add(rtn[0]);
+			yList.add(rewardS.y);
+		}
+		Element sigmaAgg = rewardS.aggregate(sigmaList);
+		ElementCache cache = rewardS.getHashCache();
+		
+		// The first aggregate misses, the resubmitted one hits.
+		assertEquals(true, rewardS.aggVerify(sigmaAgg, sList, yList));
+		assertEquals(0, cache.getHitCount());
+		assertEquals(5, cache.getMissCount());
+		assertEquals(true, rewardS.aggVerify(sigmaAgg, sList, yList));
+		assertEquals(5, cache.getHitCount());
+		
+		// verify uses cached H(s) as well.
+		assertEquals(true, rewardS.verify(sigmaList.get(0), sList.get(0), rewardS.y));
+		assertEquals(6, cache.getHitCount());
+		
+		// Bounded by memory, evicting least recently used entries.
+		cache = new ElementCache(10000, 1);
+		for (int i=0; i<100; i++) {
+			cache.put(ByteBuffer.allocate(4).putInt(i).array(), rewardS.g1);
+		}
+		assertEquals(true, cache.getBytes() <= 10000);
+		assertEquals(true, cache.getEvictionCount() > 0);
+		assertEquals(rewardS.g1, cache.get(ByteBuffer.allocate(4).putInt(99).array()));
+		assertEquals(null, cache.get(ByteBuffer.allocate(4).putInt(0).array()));
+		
+		// Disabled
+		rewardS.setHashCacheSize(0);
+		assertEquals(null, rewardS.getHashCache());
+		assertEquals(true, rewardS.aggVerify(rewardS.aggregate(sigmaList.subList(1, 5)), sList.subList(1, 5), yList.subList(1, 5)));
+	}
+	
+	@Test
+	public void batchVeriCheck() {
+		// Setup
+		RewardScheme rewardS = new RewardScheme();
+		List<Element> sigmaList = new ArrayList<Element>();
+		List<Element> sList = new ArrayList<Element>();
+		
+		for (int i=0; i<10; i++) {
+			Element[] rtn = rewardS.recIssueHelperPre();
+			Element s = rtn[0];
+			Element r = rtn[1];
+			Element h = rtn[2];
+			Element psi = rewardS.recIssueMaster(h);
+			Element sigma = rewardS.recIssueHelperPost(r, psi, rewardS.y);
+			sigmaList.add(sigma);
+			sList.add(s);
+		}
+		// Tamper receipt #3, and spend receipt #7 in advance.
+		sigmaList.set(3, rewardS.G1.newRandomElement().getImmutable());
+		assertEquals(true, rewardS.verify(sigmaList.get(7), sList.get(7), rewardS.y));
+		
+		// Verify
+		boolean[] isValid = rewardS.batchVerify(sigmaList, sList, rewardS.y);
+		for (int i=0; i<10; i++) {
+			assertEquals(i != 3 && i != 7, isValid[i]);
+		}
+		
+		// Every serial number is spent now.
+		isValid = rewardS.batchVerify(sigmaList, sList, rewardS.y);
+		for (int i=0; i<10; i++) {
+			assertEquals(false, isValid[i]);
+		}
+	}
+	
+	@Test
+	public void multiMillerCheck() {
+		// Setup
+		Pairing pairing = PairingFactory.getPairing("params/curves/a.properties");
+		MultiMillerPairing multiMiller = new MultiMillerPairing(pairing);
+		Element p1 = pairing.getG1().newRandomElement().getImmutable();
+		Element p2 = pairing.getG1().newRandomElement().getImmutable();
+		Element q1 = pairing.getG1().newRandomElement().getImmutable();
+		Element q2 = pairing.getG1().newRandomElement().getImmutable();
+		MultiMillerPairing.Lines[] lines = new MultiMillerPairing.Lines[] {
+				multiMiller.getPairingPreProcessingFromElement(p1),
+				multiMiller.getPairingPreProcessingFromElement(p2)
+		};
+		
+		// Same as pairings of jPBC
+		assertEquals(pairing.pairing(p1, q1), lines[0].pairing(q1));
+		assertEquals(pairing.pairing(p1, q1).mul(pairing.pairing(p2, q2)), 
+				multiMiller.pairing(lines, new Element[] {q1, q2}));
+		
+		// e(p1, q1) * e(p2, q2) == 1 iff q2 == q1^-1 when p1 == p2.
+		lines[1] = multiMiller.getPairingPreProcessingFromBytes(lines[0].toBytes());
+		assertEquals(true, multiMiller.isProductOne(lines, new Element[] {q1, q1.duplicate().invert()}));
+		assertEquals(false, multiMiller.isProductOne(lines, new Element[] {q1, q2}));
+	}
+	
+	@Test
+	public void spentSerialStoreCheck() throws InterruptedException {
+		// Setup
+		final SpentSerialStore store = new ConcurrentSpentSerialStore();
+		final AtomicInteger added = new AtomicInteger();
+		Thread[] threads = new Thread[8];
+		
+		// Every thread tries to spend the same 1000 serial numbers.
+		for (int t=0; t<threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i=0; i<1000; i++) {
+						if (store.addIfAbsent(ByteBuffer.allocate(20).putInt(i).array())) {
+							added.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		// Each serial number is spent exactly once.
+		assertEquals(1000, added.get());
+		assertEquals(1000, store.size());
+		assertEquals(true, store.contains(ByteBuffer.allocate(20).putInt(999).array()));
+		assertEquals(false, store.contains(ByteBuffer.allocate(20).putInt(1000).array()));
+	}
+	
+	@Test
+	public void mappedSpentSerialStoreCheck() throws IOException {
+		// Setup
+		File file = File.createTempFile("spent", ".dat");
+		file.delete();
+		file.deleteOnExit();
+		RewardScheme rewardS = new RewardScheme();
+		int width = rewardS.Zr.getLengthInBytes();
+		
+		// Small initial capacity, so that the table is resized several times.
+		MappedSpentSerialStore store = new MappedSpentSerialStore(file.getPath(), width, 4, false);
+		List<byte[]> serials = new ArrayList<byte[]>();
+		for (int i=0; i<100; i++) {
+			byte[] s = rewardS.Zr.newRandomElement().toBytes();
+			serials.add(s);
+			assertEquals(true, store.addIfAbsent(s));
+			assertEquals(false, store.addIfAbsent(s));
+		}
+		
+		// Spend a receipt through RewardScheme as well.
+		rewardS = new RewardScheme(CurveName.a, HashName.SHA256, store);
+		Element[] rtn = rewardS.recIssueHelperPre();
+		Element sigma = rewardS.recIssueHelperPost(rtn[1], rewardS.recIssueMaster(rtn[2]), rewardS.y);
+		assertEquals(true, rewardS.verify(sigma, rtn[0], rewardS.y));
+		store.close();
+		
+		// Reopen, as if the server is restarted.
+		store = new MappedSpentSerialStore(file.getPath(), width);
+		assertEquals(101, store.size());
+		for (byte[] s : serials) {
+			assertEquals(true, store.contains(s));
+		}
+		assertEquals(false, store.contains(rewardS.Zr.newRandomElement().toBytes()));
+		rewardS.L = store;
+		assertEquals(false, rewardS.verify(sigma, rtn[0], rewardS.y));
+		store.close();
+		
+		// Resizes leave no file behind, and a closed store, whose mapping is released, is not used.
+		assertEquals(false, new File(file.getPath() + ".resize").exists());
+		try {
+			store.contains(serials.get(0));
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		store.close();
+	}
+	
+	private List<ByteString> BytesListToByteStringList(List<byte[]> bList) {
+		List<ByteString> bsList= new ArrayList<ByteString>();
+		for (byte[] b : bList) {
+			bsList.add(ByteString.copyFrom(b));
+		}
+		return bsList;
 	}
 	
 	@Test
@@ -231,6 +1571,53 @@ public class RewardSchemeTest {
 		 */
 	}
 
+	@Test
+	public void rewardHashConcurrencyCheck() throws InterruptedException {
+		// Setup
+		final RewardScheme rewardS = new RewardScheme();
+		final int numThreads = 8;
+		final int numDigests = 2000;
+		final AtomicInteger mismatches = new AtomicInteger();
+		Thread[] threads = new Thread[numThreads];
+		
+		// digestInto writes the same digest as getByteDigest.
+		byte[] out = new byte[rewardS.hash.getDigestLength() + 2];
+		assertEquals(32, rewardS.hash.digestInto("abc".getBytes(), out, 2));
+		assertArrayEquals(rewardS.hash.getByteDigest("abc"), Arrays.copyOfRange(out, 2, out.length));
+		
+		// Every thread digests its own inputs with the shared Hash, and checks against a private MessageDigest.
+		for (int t=0; t<numThreads; t++) {
+			final int id = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						MessageDigest md = MessageDigest.getInstance("SHA-256");
+						byte[] buf = new byte[rewardS.hash.getDigestLength()];
+						for (int i=0; i<numDigests; i++) {
+							byte[] in = ByteBuffer.allocate(8).putInt(id).putInt(i).array();
+							byte[] expected = md.digest(in);
+							rewardS.hash.digestInto(in, buf, 0);
+							if (Arrays.equals(expected, buf) == false 
+									|| Arrays.equals(expected, rewardS.hash.getByteDigest(in)) == false) {
+								mismatches.incrementAndGet();
+							}
+						}
+					} catch (NoSuchAlgorithmException e) {
+						mismatches.incrementAndGet();
+					}
+				}
+			};
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		assertEquals(0, mismatches.get());
+	}
+
 	/*
 	 * Protocol Buffers related tests.
 	 */